@@ -3,7 +3,9 @@ CREATE TABLE users
     username varchar(20) PRIMARY KEY,
     hash     varbinary(100),
     salt     varbinary(100),
-    balance  int
+    balance  int,
+    res_version int NOT NULL DEFAULT 0,
+    booked_days int NOT NULL DEFAULT 0
 );
 
 CREATE TABLE reservations(
@@ -14,12 +16,83 @@ CREATE TABLE reservations(
     paid bit,
     canceled bit,
     price int,
+    booked_at datetime2 DEFAULT SYSUTCDATETIME(),
     CONSTRAINT FK_USERNAME FOREIGN KEY (username)
         REFERENCES users(username)
 );
 
 CREATE TABLE capacity(
-    fid int FOREIGN KEY REFERENCES flights(fid),
-    freeSeat int
+    fid int NOT NULL,
+    freeSeat int,
+    CONSTRAINT PK_capacity PRIMARY KEY (fid),
+    CONSTRAINT FK_capacity_fid FOREIGN KEY (fid) REFERENCES flights(fid)
 );
 
+CREATE TABLE ledger(
+    entry_id bigint IDENTITY(1,1) PRIMARY KEY,
+    username varchar(20) NOT NULL,
+    delta int NOT NULL
+);
+
+CREATE INDEX IX_ledger_username ON ledger(username) INCLUDE (delta);
+
+-- Booking events queued by the transactions that produce them, published to the EventLog by
+-- EventOutboxRelay
+CREATE TABLE event_outbox(
+    seq bigint IDENTITY(1,1) PRIMARY KEY,
+    type tinyint NOT NULL,
+    rid int NOT NULL,
+    username varchar(20) NOT NULL,
+    fid1 int NOT NULL,
+    fid2 int NOT NULL,
+    amount int NOT NULL
+);
+
+CREATE INDEX IX_reservations_username ON reservations(username, canceled) INCLUDE (fid1, fid2, paid, price);
+CREATE INDEX IX_reservations_hold ON reservations(booked_at) INCLUDE (username, fid1, fid2) WHERE paid = 0 AND canceled = 0;
+-- Flights is not dropped with the tables above, so its indexes may already exist
+IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'IX_flights_route') CREATE INDEX IX_flights_route ON flights(origin_city, dest_city, day_of_month, actual_time) INCLUDE (canceled, carrier_id, flight_num, capacity, price);
+IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'IX_flights_departure') CREATE INDEX IX_flights_departure ON flights(origin_city, day_of_month) INCLUDE (dest_city, actual_time, canceled, carrier_id, flight_num, capacity, price);
+
+-- One-hop connections of the often searched routes, kept current by TR_flights_connections
+CREATE TABLE connection_routes(
+    origin_city varchar(34) NOT NULL,
+    dest_city varchar(34) NOT NULL,
+    day_of_month int NOT NULL,
+    materialized_at datetime2 NOT NULL CONSTRAINT DF_connection_routes_materialized_at DEFAULT SYSUTCDATETIME(),
+    CONSTRAINT PK_connection_routes PRIMARY KEY (origin_city, dest_city, day_of_month)
+);
+
+CREATE INDEX IX_connection_routes_age ON connection_routes(materialized_at);
+
+CREATE TABLE connections(
+    origin_city varchar(34) NOT NULL,
+    dest_city varchar(34) NOT NULL,
+    day_of_month int NOT NULL,
+    total_time int NOT NULL,
+    fid1 int NOT NULL,
+    fid2 int NOT NULL,
+    CONSTRAINT PK_connections PRIMARY KEY (origin_city, dest_city, day_of_month, total_time, fid1, fid2)
+);
+
+CREATE INDEX IX_connections_fid1 ON connections(fid1);
+CREATE INDEX IX_connections_fid2 ON connections(fid2);
+
+CREATE OR ALTER TRIGGER TR_flights_connections ON flights AFTER INSERT, UPDATE, DELETE AS
+BEGIN
+    SET NOCOUNT ON
+    -- Prices and capacities are read from Flights when searching; only the pairing columns matter
+    IF EXISTS (SELECT * FROM inserted) AND EXISTS (SELECT * FROM deleted)
+        AND NOT (UPDATE(origin_city) OR UPDATE(dest_city) OR UPDATE(day_of_month) OR UPDATE(actual_time) OR UPDATE(canceled))
+        RETURN
+    DELETE FROM connections WHERE fid1 IN (SELECT fid FROM deleted)
+    DELETE FROM connections WHERE fid2 IN (SELECT fid FROM deleted)
+    -- New pairs are only added to the routes already materialized; a route being materialized is
+    -- waited for rather than read past
+    INSERT INTO connections (origin_city, dest_city, day_of_month, total_time, fid1, fid2)
+    SELECT f1.origin_city, f2.dest_city, f1.day_of_month, f1.actual_time + f2.actual_time, f1.fid, f2.fid
+    FROM flights AS f1 JOIN flights AS f2 ON f1.dest_city = f2.origin_city AND f1.day_of_month = f2.day_of_month
+    JOIN connection_routes AS R WITH (READCOMMITTEDLOCK) ON R.origin_city = f1.origin_city AND R.dest_city = f2.dest_city AND R.day_of_month = f1.day_of_month
+    WHERE f1.canceled = 0 AND f2.canceled = 0
+        AND (f1.fid IN (SELECT fid FROM inserted) OR f2.fid IN (SELECT fid FROM inserted))
+END;
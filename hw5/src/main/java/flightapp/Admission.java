@@ -0,0 +1,170 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Admission control in front of the backend, applied by {@link FlightService#execute}.
+ *
+ * Every command of a user draws from that user's token bucket for the command, so a client
+ * hammering search runs out of search tokens without touching its booking budget or anyone else's.
+ * Sessions that are not logged in are limited per session, and unrecognized commands get no
+ * bucket. One-hop searches, the expensive kind, additionally take a slot of a global semaphore, and
+ * the number of itineraries a search may ask for is capped. A rejected command returns at once with
+ * a short message and never reaches the database.
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.admission                  enable admission control (default false)
+ * flightapp.admission.[command]_rate   tokens per second of each user's bucket for the command,
+ *                                      0 for no limit (defaults: search 5, login 1, create 1,
+ *                                      others 0); buckets hold two seconds of tokens
+ * flightapp.admission.max_searches     concurrent one-hop searches in this process (default 16)
+ * flightapp.admission.max_itineraries  cap on a search's number of itineraries (default 100)
+ */
+public class Admission {
+  static final String RATE_LIMITED = "Too many requests, please retry later\n";
+  static final String BUSY = "Server busy, please retry later\n";
+
+  private static final Map<String, String> DEFAULT_RATES = new HashMap<>();
+  static {
+    DEFAULT_RATES.put("search", "5");
+    DEFAULT_RATES.put("login", "1");
+    DEFAULT_RATES.put("create", "1");
+  }
+
+  // The commands FlightService runs; anything else is rejected there and needs no bucket
+  private static final List<String> COMMANDS = Arrays.asList("login", "create", "search",
+      "cities", "book", "reservations", "pay", "cancel", "topup");
+
+  // Above this many buckets, full ones (idle long enough to refill) are dropped, at most once per
+  // SWEEP_NANOS
+  private static final int MAX_BUCKETS = 10000;
+  private static final long SWEEP_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final boolean enabled;
+  private final int maxItineraries;
+  private final Semaphore searches;
+  // Tokens per second by command, only commands with a limit
+  private final Map<String, Double> rates = new HashMap<>();
+  private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+  private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+  static class TokenBucket {
+    private final double perNano;
+    private final double capacity;
+    private double tokens;
+    private long last = System.nanoTime();
+
+    TokenBucket(double perSecond) {
+      perNano = perSecond / 1e9;
+      capacity = Math.max(1, 2 * perSecond);
+      tokens = capacity;
+    }
+
+    synchronized boolean tryTake() {
+      refill();
+      if (tokens < 1) {
+        return false;
+      }
+      tokens--;
+      return true;
+    }
+
+    synchronized boolean isFull() {
+      refill();
+      return tokens >= capacity;
+    }
+
+    private void refill() {
+      long now = System.nanoTime();
+      tokens = Math.min(capacity, tokens + (now - last) * perNano);
+      last = now;
+    }
+  }
+
+  Admission(boolean enabled, int maxSearches, int maxItineraries) {
+    this.enabled = enabled;
+    this.searches = new Semaphore(maxSearches);
+    this.maxItineraries = maxItineraries;
+    for (String command : COMMANDS) {
+      double rate = Double.parseDouble(Query.getSetting("flightapp.admission." + command + "_rate",
+          DEFAULT_RATES.getOrDefault(command, "0")));
+      if (rate > 0) {
+        rates.put(command, rate);
+      }
+    }
+  }
+
+  private static class Holder {
+    static final Admission SHARED = new Admission(
+        Boolean.parseBoolean(Query.getSetting("flightapp.admission", "false")),
+        Integer.parseInt(Query.getSetting("flightapp.admission.max_searches", "16")),
+        Integer.parseInt(Query.getSetting("flightapp.admission.max_itineraries", "100")));
+  }
+
+  /**
+   * Returns the admission control of this process, configured from the settings.
+   */
+  public static Admission shared() {
+    return Holder.SHARED;
+  }
+
+  /**
+   * Takes a token for {@code command} from the bucket of the user of {@code q}.
+   *
+   * @return null if the command may run, otherwise the response to return instead
+   */
+  public String admit(Query q, String command) {
+    if (!enabled) {
+      return null;
+    }
+    Double rate = rates.get(command);
+    if (rate == null) {
+      return null;
+    }
+    String user = q.loggedInUser();
+    String key = (user != null ? user.toLowerCase(Locale.ROOT)
+        : "session@" + q.session().id)
+        + "|" + command;
+    TokenBucket bucket = buckets.get(key);
+    if (bucket == null) {
+      if (buckets.size() >= MAX_BUCKETS) {
+        sweep();
+      }
+      bucket = buckets.computeIfAbsent(key, k -> new TokenBucket(rate));
+    }
+    return bucket.tryTake() ? null : RATE_LIMITED;
+  }
+
+  // Drops full buckets unless another thread did within the last SWEEP_NANOS
+  private void sweep() {
+    long last = lastSweep.get();
+    long now = System.nanoTime();
+    if (now - last >= SWEEP_NANOS && lastSweep.compareAndSet(last, now)) {
+      buckets.values().removeIf(TokenBucket::isFull);
+    }
+  }
+
+  /**
+   * Caps a search's requested number of itineraries.
+   */
+  public int capItineraries(int numberOfItineraries) {
+    return enabled ? Math.min(numberOfItineraries, maxItineraries) : numberOfItineraries;
+  }
+
+  /**
+   * Takes a search slot without waiting, for a one-hop search; direct ones always pass.
+   *
+   * @return false if all slots are taken
+   */
+  public boolean enterSearch(boolean directFlight) {
+    return !enabled || directFlight || searches.tryAcquire();
+  }
+
+  public void exitSearch(boolean directFlight) {
+    if (enabled && !directFlight) {
+      searches.release();
+    }
+  }
+}
@@ -0,0 +1,391 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/**
+ * Operational report: load factor per flight, revenue per carrier and day, and the exposure of
+ * unpaid holds.
+ *
+ * Flights, capacity and reservations are each read once, in one read-only transaction per database
+ * (snapshot isolation when the database allows it, so no locks are taken and bookings never wait
+ * on the report), into primitive column arrays. Flights are addressed by their position in those
+ * arrays; reservations store the positions of their flights. The aggregates are computed in
+ * process with parallel streams, none of them by the database.
+ *
+ * Seats sold come from capacity (a flight without a capacity row has sold none) and are reported
+ * next to the number of active reservations on the flight, which should be equal. Revenue counts
+ * paid, active reservations on the day and carrier of each leg; a two-leg reservation's price is
+ * split between its legs in proportion to their current prices. Holds are active unpaid
+ * reservations, counted on the carrier of their first leg and by age.
+ *
+ * In a sharded deployment Flights is read from shard 0 and capacity and reservations from every
+ * shard, each shard in its own transaction.
+ *
+ * Usage: Analytics [report file] (default analytics-report.txt), against the databases of
+ * dbconn.properties
+ */
+public class Analytics {
+  private static final String FLIGHTS_SQL =
+      "SELECT fid, carrier_id, day_of_month, capacity, price, canceled FROM Flights";
+  private static final String CAPACITY_SQL = "SELECT fid, freeSeat FROM capacity";
+  private static final String RESERVATIONS_SQL = "SELECT fid1, fid2, paid, canceled, price, "
+      + "COALESCE(DATEDIFF(second, booked_at, SYSUTCDATETIME()), 0) AS age FROM RESERVATIONS";
+
+  // day_of_month is 1 to 31
+  private static final int DAYS = 32;
+  private static final int[] HOLD_AGE_LIMITS = { 3600, 86400 };
+  private static final String[] HOLD_AGE_NAMES = { "under 1 hour", "1 to 24 hours", "over 1 day" };
+
+  // Flights, by position
+  int flights;
+  int[] fid = new int[1024];
+  int[] carrier = new int[1024];
+  int[] day = new int[1024];
+  int[] capacity = new int[1024];
+  int[] price = new int[1024];
+  boolean[] canceled = new boolean[1024];
+  // -1 without a capacity row
+  int[] freeSeats;
+  final List<String> carriers = new ArrayList<>();
+  private final Map<String, Integer> carrierIndex = new HashMap<>();
+  private int[] positionOfFid;
+
+  // Reservations, by position; res1 and res2 are flight positions, res2 -1 for a direct flight
+  int reservations;
+  int[] res1 = new int[1024];
+  int[] res2 = new int[1024];
+  boolean[] resPaid = new boolean[1024];
+  boolean[] resCanceled = new boolean[1024];
+  int[] resPrice = new int[1024];
+  int[] resAge = new int[1024];
+
+  // Aggregates
+  long[] sold;
+  long[] reserved;
+  long[] revenue;
+  long[] holdCount;
+  long[] holdAmount;
+  long[] holdCountByAge;
+  long[] holdAmountByAge;
+
+  public static void main(String[] args) throws SQLException, IOException {
+    String file = args.length > 0 ? args[0] : "analytics-report.txt";
+    Analytics report = new Analytics();
+    long start = System.nanoTime();
+    List<Connection> conns = Migrations.openAll();
+    try {
+      report.load(conns);
+    } finally {
+      for (Connection conn : conns) {
+        conn.close();
+      }
+    }
+    long loaded = System.nanoTime();
+    report.aggregate();
+    long aggregated = System.nanoTime();
+    try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+      report.write(out);
+    }
+    System.out.printf("%d flights, %d reservations: snapshot %d ms, aggregates %d ms, "
+        + "report in %s%n", report.flights, report.reservations, (loaded - start) / 1_000_000,
+        (aggregated - loaded) / 1_000_000, file);
+  }
+
+  /**
+   * Reads Flights from the first database and capacity and reservations from all of them.
+   */
+  void load(List<Connection> conns) throws SQLException {
+    for (int i = 0; i < conns.size(); i++) {
+      Connection conn = conns.get(i);
+      boolean first = i == 0;
+      try {
+        readSnapshot(conn, JdbcStorage.TRANSACTION_SNAPSHOT, first);
+      } catch (SQLException e) {
+        if (!JdbcStorage.isSnapshotDisallowed(e)) {
+          throw e;
+        }
+        readSnapshot(conn, Connection.TRANSACTION_READ_COMMITTED, first);
+      }
+    }
+  }
+
+  private void readSnapshot(Connection conn, int isolation, boolean withFlights)
+      throws SQLException {
+    conn.setTransactionIsolation(isolation);
+    conn.setReadOnly(true);
+    conn.setAutoCommit(false);
+    try (Statement s = conn.createStatement()) {
+      s.setFetchSize(10000);
+      if (withFlights) {
+        try (ResultSet rs = s.executeQuery(FLIGHTS_SQL)) {
+          while (rs.next()) {
+            addFlight(rs.getInt("fid"), rs.getString("carrier_id"), rs.getInt("day_of_month"),
+                rs.getInt("capacity"), rs.getInt("price"), rs.getInt("canceled") != 0);
+          }
+        }
+        indexFlights();
+      }
+      try (ResultSet rs = s.executeQuery(CAPACITY_SQL)) {
+        while (rs.next()) {
+          setFreeSeats(rs.getInt("fid"), rs.getInt("freeSeat"));
+        }
+      }
+      try (ResultSet rs = s.executeQuery(RESERVATIONS_SQL)) {
+        while (rs.next()) {
+          int fid2 = rs.getInt("fid2");
+          if (rs.wasNull()) {
+            fid2 = -1;
+          }
+          addReservation(rs.getInt("fid1"), fid2, rs.getInt("paid") != 0,
+              rs.getInt("canceled") != 0, rs.getInt("price"), rs.getInt("age"));
+        }
+      }
+      conn.commit();
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  void addFlight(int flightId, String carrierId, int dayOfMonth, int seats, int flightPrice,
+      boolean isCanceled) {
+    if (flights == fid.length) {
+      int length = 2 * flights;
+      fid = Arrays.copyOf(fid, length);
+      carrier = Arrays.copyOf(carrier, length);
+      day = Arrays.copyOf(day, length);
+      capacity = Arrays.copyOf(capacity, length);
+      price = Arrays.copyOf(price, length);
+      canceled = Arrays.copyOf(canceled, length);
+    }
+    fid[flights] = flightId;
+    carrier[flights] = carrierIndex.computeIfAbsent(carrierId, c -> {
+      carriers.add(c);
+      return carriers.size() - 1;
+    });
+    day[flights] = dayOfMonth;
+    capacity[flights] = seats;
+    price[flights] = flightPrice;
+    canceled[flights] = isCanceled;
+    flights++;
+  }
+
+  /**
+   * Maps fids to positions, once all flights are added.
+   */
+  void indexFlights() {
+    int maxFid = 0;
+    for (int i = 0; i < flights; i++) {
+      maxFid = Math.max(maxFid, fid[i]);
+    }
+    positionOfFid = new int[maxFid + 1];
+    Arrays.fill(positionOfFid, -1);
+    for (int i = 0; i < flights; i++) {
+      positionOfFid[fid[i]] = i;
+    }
+    freeSeats = new int[flights];
+    Arrays.fill(freeSeats, -1);
+  }
+
+  void setFreeSeats(int flightId, int free) {
+    int position = position(flightId);
+    if (position >= 0) {
+      freeSeats[position] = free;
+    }
+  }
+
+  void addReservation(int fid1, int fid2, boolean paid, boolean isCanceled, int amount, int age) {
+    int first = position(fid1);
+    if (first < 0) {
+      return;
+    }
+    if (reservations == res1.length) {
+      int length = 2 * reservations;
+      res1 = Arrays.copyOf(res1, length);
+      res2 = Arrays.copyOf(res2, length);
+      resPaid = Arrays.copyOf(resPaid, length);
+      resCanceled = Arrays.copyOf(resCanceled, length);
+      resPrice = Arrays.copyOf(resPrice, length);
+      resAge = Arrays.copyOf(resAge, length);
+    }
+    res1[reservations] = first;
+    res2[reservations] = fid2 < 0 ? -1 : position(fid2);
+    resPaid[reservations] = paid;
+    resCanceled[reservations] = isCanceled;
+    resPrice[reservations] = amount;
+    resAge[reservations] = age;
+    reservations++;
+  }
+
+  private int position(int flightId) {
+    return flightId >= 0 && flightId < positionOfFid.length ? positionOfFid[flightId] : -1;
+  }
+
+  /**
+   * Computes all aggregates from the loaded columns.
+   */
+  void aggregate() {
+    sold = new long[flights];
+    IntStream.range(0, flights).parallel().forEach(f -> {
+      sold[f] = freeSeats[f] < 0 ? 0 : capacity[f] - freeSeats[f];
+    });
+    reserved = add(
+        sumByKey(reservations, flights, r -> resCanceled[r] ? -1 : res1[r], r -> 1),
+        sumByKey(reservations, flights, r -> resCanceled[r] ? -1 : res2[r], r -> 1));
+
+    int carrierDays = carriers.size() * DAYS;
+    revenue = add(
+        sumByKey(reservations, carrierDays, r -> isRevenue(r) ? carrierDay(res1[r]) : -1,
+            r -> firstLegShare(r)),
+        sumByKey(reservations, carrierDays,
+            r -> isRevenue(r) && res2[r] >= 0 ? carrierDay(res2[r]) : -1,
+            r -> resPrice[r] - firstLegShare(r)));
+
+    IntUnaryOperator holdCarrier = r -> isHold(r) ? carrier[res1[r]] : -1;
+    holdCount = sumByKey(reservations, carriers.size(), holdCarrier, r -> 1);
+    holdAmount = sumByKey(reservations, carriers.size(), holdCarrier, r -> resPrice[r]);
+    IntUnaryOperator holdAge = r -> isHold(r) ? ageBucket(resAge[r]) : -1;
+    holdCountByAge = sumByKey(reservations, HOLD_AGE_NAMES.length, holdAge, r -> 1);
+    holdAmountByAge = sumByKey(reservations, HOLD_AGE_NAMES.length, holdAge, r -> resPrice[r]);
+  }
+
+  private boolean isRevenue(int r) {
+    return resPaid[r] && !resCanceled[r];
+  }
+
+  private boolean isHold(int r) {
+    return !resPaid[r] && !resCanceled[r];
+  }
+
+  private int carrierDay(int flight) {
+    return carrier[flight] * DAYS + day[flight];
+  }
+
+  private long firstLegShare(int r) {
+    if (res2[r] < 0) {
+      return resPrice[r];
+    }
+    long p1 = price[res1[r]];
+    long total = p1 + price[res2[r]];
+    return total == 0 ? resPrice[r] / 2 : resPrice[r] * p1 / total;
+  }
+
+  private static int ageBucket(int ageSeconds) {
+    int bucket = 0;
+    while (bucket < HOLD_AGE_LIMITS.length && ageSeconds >= HOLD_AGE_LIMITS[bucket]) {
+      bucket++;
+    }
+    return bucket;
+  }
+
+  /**
+   * Sums {@code value(i)} by {@code key(i)} over {@code i < n}, skipping negative keys. Each worker
+   * folds one contiguous chunk of the input into its own array; the arrays are added at the end.
+   */
+  static long[] sumByKey(int n, int keys, IntUnaryOperator key, IntToLongFunction value) {
+    int chunks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), n / 4096));
+    long[][] partial = new long[chunks][];
+    IntStream.range(0, chunks).parallel().forEach(c -> {
+      long[] sums = new long[keys];
+      int end = (int) ((long) n * (c + 1) / chunks);
+      for (int i = (int) ((long) n * c / chunks); i < end; i++) {
+        int k = key.applyAsInt(i);
+        if (k >= 0) {
+          sums[k] += value.applyAsLong(i);
+        }
+      }
+      partial[c] = sums;
+    });
+    long[] total = partial[0];
+    for (int c = 1; c < chunks; c++) {
+      total = add(total, partial[c]);
+    }
+    return total;
+  }
+
+  private static long[] add(long[] a, long[] b) {
+    IntStream.range(0, a.length).parallel().forEach(i -> a[i] += b[i]);
+    return a;
+  }
+
+  void write(PrintWriter out) {
+    out.println("Load factor by carrier (sold seats / seats of flights that are not canceled)");
+    long[] offered = sumByKey(flights, carriers.size(), f -> canceled[f] ? -1 : carrier[f],
+        f -> capacity[f]);
+    long[] soldByCarrier = sumByKey(flights, carriers.size(), f -> canceled[f] ? -1 : carrier[f],
+        f -> sold[f]);
+    out.println("carrier\tseats\tsold\tload factor");
+    for (int c : carriersByName()) {
+      out.println(carriers.get(c) + "\t" + offered[c] + "\t" + soldByCarrier[c] + "\t"
+          + fraction(soldByCarrier[c], offered[c]));
+    }
+
+    out.println();
+    out.println("Load factor per flight with seats sold or reserved, highest first");
+    out.println("fid\tcarrier\tday\tcapacity\tsold\treserved\tload factor");
+    // Sorted as (load factor in parts per million, descending; fid) packed into one long
+    long[] booked = IntStream.range(0, flights).parallel()
+        .filter(f -> sold[f] > 0 || reserved[f] > 0)
+        .mapToLong(f -> (long) (Integer.MAX_VALUE - perMillion(sold[f], capacity[f])) << 32
+            | fid[f])
+        .toArray();
+    Arrays.parallelSort(booked);
+    for (long packed : booked) {
+      int f = positionOfFid[(int) packed];
+      out.print(fid[f] + "\t" + carriers.get(carrier[f]) + "\t" + day[f] + "\t" + capacity[f]
+          + "\t" + sold[f] + "\t" + reserved[f] + "\t" + fraction(sold[f], capacity[f]));
+      out.println(sold[f] == reserved[f] ? "" : "\tsold and reserved differ");
+    }
+
+    out.println();
+    out.println("Revenue per carrier and day (paid, not canceled)");
+    out.println("carrier\tday\trevenue");
+    for (int c : carriersByName()) {
+      for (int d = 1; d < DAYS; d++) {
+        long amount = revenue[c * DAYS + d];
+        if (amount != 0) {
+          out.printf("%s\t%d\t%d%n", carriers.get(c), d, amount);
+        }
+      }
+    }
+
+    out.println();
+    out.println("Unpaid holds by carrier of the first flight");
+    out.println("carrier\tholds\tamount");
+    for (int c : carriersByName()) {
+      if (holdCount[c] != 0) {
+        out.printf("%s\t%d\t%d%n", carriers.get(c), holdCount[c], holdAmount[c]);
+      }
+    }
+    out.println();
+    out.println("Unpaid holds by age");
+    out.println("age\tholds\tamount");
+    for (int b = 0; b < HOLD_AGE_NAMES.length; b++) {
+      out.printf("%s\t%d\t%d%n", HOLD_AGE_NAMES[b], holdCountByAge[b], holdAmountByAge[b]);
+    }
+  }
+
+  private static int perMillion(long part, long whole) {
+    return whole <= 0 ? 0 : (int) Math.min(Integer.MAX_VALUE, Math.max(0, part * 1_000_000 / whole));
+  }
+
+  /**
+   * {@code part / whole} with four decimals; String.format is too slow for a million lines.
+   */
+  private static String fraction(long part, long whole) {
+    long tenThousandths = whole <= 0 ? 0 : Math.round(part * 10000.0 / whole);
+    String decimals = String.valueOf(10000 + Math.abs(tenThousandths) % 10000).substring(1);
+    return (tenThousandths < 0 ? "-" : "") + Math.abs(tenThousandths) / 10000 + "." + decimals;
+  }
+
+  private int[] carriersByName() {
+    return IntStream.range(0, carriers.size()).boxed()
+        .sorted(Comparator.comparing(carriers::get)).mapToInt(Integer::intValue).toArray();
+  }
+}
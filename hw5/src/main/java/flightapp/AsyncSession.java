@@ -0,0 +1,163 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Non-blocking facade over one {@link Query} session. Every transaction returns a
+ * CompletableFuture of the string the synchronous method would return.
+ *
+ * A session is single-threaded (its last search, its login), so calls run one at a time in the
+ * order they were made, each on the executor as soon as the previous one finished. Callers can
+ * therefore pipeline a workflow without waiting on it:
+ *
+ * <pre>
+ *   session.search("Seattle WA", "Boston MA", true, 1, 5)
+ *       .thenCompose(s -&gt; session.book(0))
+ *       .thenAccept(System.out::print);
+ * </pre>
+ *
+ * Independent sessions run in parallel. A call canceled or timed out before it started is skipped;
+ * one already running still completes its transaction (it commits or rolls back as usual), only its
+ * result is dropped, and the next call waits for it.
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.async.threads  0 for a virtual thread per call where the JVM has them (Java 21+),
+ *                          otherwise a cached pool; n &gt; 0 for a fixed pool of n threads (default 0)
+ */
+public class AsyncSession {
+  private final Query backend;
+  private final Executor executor;
+  private final long timeoutMillis;
+  private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+  /**
+   * @param timeoutMillis timeout of every call made without one, 0 for none
+   */
+  public AsyncSession(Query backend, Executor executor, long timeoutMillis) {
+    this.backend = backend;
+    this.executor = executor;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Returns the executor selected by flightapp.async.threads.
+   */
+  public static ExecutorService executorFromSettings() {
+    int threads = Integer.parseInt(Query.getSetting("flightapp.async.threads", "0"));
+    if (threads > 0) {
+      return Executors.newFixedThreadPool(threads);
+    }
+    try {
+      // Executors.newVirtualThreadPerTaskExecutor() is Java 21; the build targets Java 11
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  public CompletableFuture<String> login(String username, String password) {
+    return submit(q -> q.transaction_login(username, password));
+  }
+
+  public CompletableFuture<String> createCustomer(String username, String password,
+      int initAmount) {
+    return submit(q -> q.transaction_createCustomer(username, password, initAmount));
+  }
+
+  public CompletableFuture<String> search(String originCity, String destinationCity,
+      boolean directFlight, int dayOfMonth, int numberOfItineraries) {
+    return submit(q -> q.transaction_search(originCity, destinationCity, directFlight, dayOfMonth,
+        numberOfItineraries));
+  }
+
+  public CompletableFuture<String> search(String originCity, String destinationCity,
+      boolean directFlight, int dayOfMonth, int numberOfItineraries, SearchFilter filter) {
+    return submit(q -> q.transaction_search(originCity, destinationCity, directFlight, dayOfMonth,
+        numberOfItineraries, filter));
+  }
+
+  public CompletableFuture<String> cities(String prefix) {
+    return submit(q -> q.transaction_cities(prefix));
+  }
+
+  public CompletableFuture<String> book(int itineraryId) {
+    return submit(q -> q.transaction_book(itineraryId));
+  }
+
+  public CompletableFuture<String> bookGroup(int itineraryId, int seats) {
+    return submit(q -> q.transaction_bookGroup(itineraryId, seats));
+  }
+
+  public CompletableFuture<String> pay(int reservationId) {
+    return submit(q -> q.transaction_pay(reservationId));
+  }
+
+  public CompletableFuture<String> payBulk(List<Integer> reservationIds) {
+    return submit(q -> q.transaction_payBulk(reservationIds));
+  }
+
+  public CompletableFuture<String> reservations() {
+    return submit(Query::transaction_reservations);
+  }
+
+  public CompletableFuture<String> cancel(int reservationId) {
+    return submit(q -> q.transaction_cancel(reservationId));
+  }
+
+  public CompletableFuture<String> topUp(int amount) {
+    return submit(q -> q.transaction_topUp(amount));
+  }
+
+  /**
+   * Runs a FlightService command line, e.g. "search ..." or "book 0".
+   */
+  public CompletableFuture<String> execute(String command) {
+    return submit(q -> FlightService.execute(q, command));
+  }
+
+  public CompletableFuture<String> submit(Function<Query, String> work) {
+    return submit(work, timeoutMillis);
+  }
+
+  /**
+   * Queues {@code work} behind the session's earlier calls.
+   *
+   * @param timeoutMillis time after which the returned future fails with a TimeoutException, 0 for
+   *                      none
+   */
+  public synchronized CompletableFuture<String> submit(Function<Query, String> work,
+      long timeoutMillis) {
+    CompletableFuture<String> result = new CompletableFuture<>();
+    tail = tail.handleAsync((ignored, error) -> {
+      if (!result.isDone()) {
+        try {
+          result.complete(work.apply(backend));
+        } catch (RuntimeException e) {
+          result.completeExceptionally(e);
+        }
+      }
+      return null;
+    }, executor);
+    if (timeoutMillis > 0) {
+      result.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    return result;
+  }
+
+  /**
+   * Closes the session once every call made so far has finished.
+   */
+  public synchronized CompletableFuture<Void> close() {
+    return tail.thenRunAsync(() -> {
+      try {
+        backend.closeConnection();
+      } catch (SQLException e) {
+        throw new CompletionException(e);
+      }
+    }, executor);
+  }
+}
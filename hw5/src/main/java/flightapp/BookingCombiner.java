@@ -0,0 +1,178 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Combines concurrent single-seat bookings of the same first flight into one transaction.
+ *
+ * Bookings are queued per fid. A booking session that finds no combiner on the fid becomes the
+ * combiner: it drains the queue and books batches on its own storage with
+ * {@link Query#bookCombined(List)}, which locks each user and capacity row once, writes one capacity
+ * update per flight and one multi-row reservation insert, until its own booking is done. It then
+ * hands the slot to the session of the oldest queued booking, if any. Every other session blocks on
+ * its booking's future until it gets the result its own booking would have returned, or the slot.
+ * During a flash sale on one flight the capacity row is thus locked once per batch instead of once
+ * per booking. A lost batch (deadlock) is rerun, up to 10 times. A session interrupted while its
+ * booking is still queued withdraws it and fails; once a combiner has taken the booking, the session
+ * waits for the real outcome.
+ *
+ * Only used with a single database and without group commit, which already batches bookings.
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.book_combiner             combine bookings of the same flight (default false)
+ * flightapp.book_combiner_batch_size  most bookings per transaction, at most 300 (default 64)
+ */
+class BookingCombiner {
+  private static final int MAX_ATTEMPTS = 10;
+  // Six parameters per inserted row, 2100 per statement
+  private static final int MAX_BATCH_SIZE = 300;
+  // Outcome handing a waiting session the slot; compared by identity
+  private static final String TAKE_OVER = new String("take over");
+
+  private static BookingCombiner shared;
+  private static boolean configured;
+
+  private final int batchSize;
+  private final ConcurrentHashMap<Integer, Slot> slots = new ConcurrentHashMap<>();
+
+  static class Request {
+    final Session session;
+    final Session.Handle itinerary;
+    // Completed with the result, or with TAKE_OVER while still queued
+    private final CompletableFuture<String> outcome = new CompletableFuture<>();
+    private volatile String result;
+
+    Request(Session session, Session.Handle itinerary) {
+      this.session = session;
+      this.itinerary = itinerary;
+    }
+
+    void finish(String result) {
+      this.result = result;
+      outcome.complete(result);
+    }
+  }
+
+  private static class Slot {
+    final Queue<Request> queue = new ConcurrentLinkedQueue<>();
+    // Whether a session is combining; guarded by the slot, like enqueueing and handing off
+    boolean busy;
+  }
+
+  BookingCombiner(int batchSize) {
+    this.batchSize = Math.min(batchSize, MAX_BATCH_SIZE);
+  }
+
+  /**
+   * Returns the combiner shared by all sessions of this process, or null if it is disabled.
+   */
+  static synchronized BookingCombiner shared() {
+    if (!configured) {
+      configured = true;
+      if (Boolean.parseBoolean(Query.getSetting("flightapp.book_combiner", "false"))) {
+        shared = new BookingCombiner(
+            Integer.parseInt(Query.getSetting("flightapp.book_combiner_batch_size", "64")));
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Books one seat on {@code itinerary} for the user of {@code q}'s session, combined with the
+   * concurrent bookings of the same first flight. {@code q}'s storage may run other sessions'
+   * bookings meanwhile.
+   */
+  String book(Query q, Session.Handle itinerary) {
+    Slot slot = slots.computeIfAbsent(itinerary.fid1, fid -> new Slot());
+    Request request = new Request(q.session(), itinerary);
+    boolean combiner;
+    synchronized (slot) {
+      slot.queue.add(request);
+      combiner = !slot.busy;
+      slot.busy = true;
+    }
+    if (!combiner) {
+      String outcome = await(slot, request);
+      if (outcome != TAKE_OVER) {
+        return outcome;
+      }
+    }
+    try {
+      while (request.result == null) {
+        combine(q, slot);
+      }
+    } finally {
+      handOff(slot);
+    }
+    return request.result;
+  }
+
+  /**
+   * Waits for the outcome of a queued booking. If interrupted, withdraws the booking while it is
+   * still queued, and otherwise keeps waiting for the outcome.
+   */
+  private static String await(Slot slot, Request request) {
+    try {
+      return request.outcome.get();
+    } catch (InterruptedException e) {
+      synchronized (slot) {
+        if (!request.outcome.isDone() && slot.queue.remove(request)) {
+          Thread.currentThread().interrupt();
+          return "Booking failed\n";
+        }
+      }
+      // a combiner has taken the booking, or the slot was just handed to this session
+      String outcome = request.outcome.join();
+      Thread.currentThread().interrupt();
+      return outcome;
+    } catch (ExecutionException e) {
+      return "Booking failed\n";
+    }
+  }
+
+  /**
+   * Gives the slot to the oldest queued booking's session, or frees it if none is queued.
+   */
+  private static void handOff(Slot slot) {
+    synchronized (slot) {
+      Request next = slot.queue.peek();
+      if (next == null) {
+        slot.busy = false;
+      } else {
+        next.outcome.complete(TAKE_OVER);
+      }
+    }
+  }
+
+  /**
+   * Books up to one batch of the slot's queued requests in one transaction.
+   */
+  private void combine(Query q, Slot slot) {
+    List<Request> batch = new ArrayList<>();
+    Request next;
+    while (batch.size() < batchSize && (next = slot.queue.poll()) != null) {
+      batch.add(next);
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+      try {
+        String[] results = q.bookCombined(batch);
+        if (results != null) {
+          for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).finish(results[i]);
+          }
+          return;
+        }
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+        break;
+      }
+    }
+    for (Request r : batch) {
+      r.finish("Booking failed\n");
+    }
+  }
+}
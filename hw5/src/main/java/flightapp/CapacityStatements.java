@@ -0,0 +1,75 @@
+package flightapp;
+
+import java.sql.*;
+
+/**
+ * Remaining-seat bookkeeping on one database. The capacity row of a flight is created lazily from
+ * Flights.capacity the first time the flight is booked.
+ */
+class CapacityStatements {
+  private static final String CHECK_FLIGHT_CAPACITY_SQL = "SELECT capacity FROM Flights WHERE fid = ?";
+  // UPDLOCK serializes concurrent bookings of the flight, HOLDLOCK keeps two of them from both
+  // creating the missing row
+  static final String GET_CAPACITY_SQL =
+      "SELECT * FROM CAPACITY AS CAP WITH (UPDLOCK, HOLDLOCK) WHERE CAP.FID = ?";
+  private static final String INSERT_CAPACITY_SQL = "INSERT INTO capacity VALUES(?,?)";
+  private static final String UPDATE_CAPACITY_SQL = "UPDATE capacity set freeSeat = ? where fid = ?";
+  private static final String RELEASE_CAPACITY_SQL =
+      "UPDATE capacity SET freeSeat = freeSeat + ? WHERE fid = ?";
+
+  private final StatementCache statements;
+
+  CapacityStatements(StatementCache statements) {
+    this.statements = statements;
+  }
+
+  /**
+   * Returns the number of free seats on flight {@code fid}.
+   */
+  int remaining(int fid) throws SQLException {
+    PreparedStatement getCapacity = statements.get(GET_CAPACITY_SQL);
+    getCapacity.clearParameters();
+    getCapacity.setInt(1, fid);
+    try (ResultSet rs = getCapacity.executeQuery()) {
+      if (rs.next()) {
+        return rs.getInt("freeSeat");
+      }
+    }
+    int capacity = flightCapacity(fid);
+    PreparedStatement insertCapacity = statements.get(INSERT_CAPACITY_SQL);
+    insertCapacity.clearParameters();
+    insertCapacity.setInt(1, fid);
+    insertCapacity.setInt(2, capacity);
+    insertCapacity.executeUpdate();
+    return capacity;
+  }
+
+  void update(int fid, int freeSeats) throws SQLException {
+    PreparedStatement updateCapacity = statements.get(UPDATE_CAPACITY_SQL);
+    updateCapacity.clearParameters();
+    updateCapacity.setInt(1, freeSeats);
+    updateCapacity.setInt(2, fid);
+    updateCapacity.executeUpdate();
+  }
+
+  /**
+   * Returns {@code seats} to a flight whose capacity row exists, without reading it first.
+   */
+  void release(int fid, int seats) throws SQLException {
+    PreparedStatement releaseCapacity = statements.get(RELEASE_CAPACITY_SQL);
+    releaseCapacity.clearParameters();
+    releaseCapacity.setInt(1, seats);
+    releaseCapacity.setInt(2, fid);
+    releaseCapacity.executeUpdate();
+  }
+
+  private int flightCapacity(int fid) throws SQLException {
+    PreparedStatement checkFlightCapacity = statements.get(CHECK_FLIGHT_CAPACITY_SQL);
+    checkFlightCapacity.clearParameters();
+    checkFlightCapacity.setInt(1, fid);
+    try (ResultSet results = checkFlightCapacity.executeQuery()) {
+      results.next();
+      return results.getInt("capacity");
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The distinct origin and destination cities of the flights that are not canceled, as a sorted
+ * array for prefix lookups.
+ *
+ * Names compare case-insensitively, like the database's collation. A prefix is found by binary
+ * search for its first match followed by a scan of the matches, so both the cities command and
+ * the unknown-city check of a search take a few string comparisons. The array of a few hundred
+ * names is immutable and shared by all sessions of the process through a volatile field, so a
+ * lookup takes no lock. On the database it is reloaded at most once per refresh interval, so
+ * cities of flights added later are picked up: one session reloads while the others keep using
+ * the old index.
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.city_index                  reject searches of unknown cities (default true)
+ * flightapp.city_index.refresh_seconds  age after which the index is reloaded (default 600)
+ */
+public class CityIndex {
+  static final int MAX_SUGGESTIONS = 20;
+
+  private static final String CITIES_SQL = "SELECT origin_city AS city FROM Flights "
+      + "WHERE canceled = 0 UNION SELECT dest_city FROM Flights WHERE canceled = 0";
+
+  static final boolean REJECT_UNKNOWN =
+      Boolean.parseBoolean(Query.getSetting("flightapp.city_index", "true"));
+  private static final long REFRESH_MILLIS =
+      Long.parseLong(Query.getSetting("flightapp.city_index.refresh_seconds", "600")) * 1000;
+
+  private static volatile CityIndex shared;
+  private static final AtomicBoolean reloading = new AtomicBoolean();
+
+  private final String[] cities;
+  private final long loadedAt = System.currentTimeMillis();
+
+  CityIndex(Collection<String> names) {
+    TreeSet<String> distinct = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    distinct.addAll(names);
+    cities = distinct.toArray(new String[0]);
+  }
+
+  /**
+   * Returns the index of the database of {@code conn}. The first use loads it; once it is older
+   * than the refresh interval, the first session to notice reloads it, and a failed reload keeps
+   * the old index.
+   */
+  static CityIndex shared(Connection conn) throws SQLException {
+    CityIndex index = shared;
+    if (index == null) {
+      synchronized (CityIndex.class) {
+        if (shared == null) {
+          shared = load(conn);
+        }
+        return shared;
+      }
+    }
+    if (System.currentTimeMillis() - index.loadedAt >= REFRESH_MILLIS
+        && reloading.compareAndSet(false, true)) {
+      try {
+        shared = index = load(conn);
+      } catch (SQLException e) {
+        System.err.println("Cannot reload the city index: " + e.getMessage());
+      } finally {
+        reloading.set(false);
+      }
+    }
+    return index;
+  }
+
+  private static CityIndex load(Connection conn) throws SQLException {
+    List<String> names = new ArrayList<>();
+    try (Statement s = conn.createStatement(); ResultSet rs = s.executeQuery(CITIES_SQL)) {
+      while (rs.next()) {
+        names.add(rs.getString("city"));
+      }
+    }
+    return new CityIndex(names);
+  }
+
+  public boolean contains(String city) {
+    return Arrays.binarySearch(cities, city, String.CASE_INSENSITIVE_ORDER) >= 0;
+  }
+
+  /**
+   * Up to {@code limit} cities starting with {@code prefix}, in alphabetical order.
+   */
+  public List<String> withPrefix(String prefix, int limit) {
+    int i = Arrays.binarySearch(cities, prefix, String.CASE_INSENSITIVE_ORDER);
+    // Insertion point if absent: names with the prefix sort at or after it
+    i = i < 0 ? -i - 1 : i;
+    List<String> matches = new ArrayList<>();
+    while (i < cities.length && matches.size() < limit
+        && cities[i].regionMatches(true, 0, prefix, 0, prefix.length())) {
+      matches.add(cities[i++]);
+    }
+    return matches;
+  }
+
+  /**
+   * Response of the cities command.
+   */
+  String suggest(String prefix) {
+    List<String> matches = withPrefix(prefix, MAX_SUGGESTIONS);
+    if (matches.isEmpty()) {
+      return "No cities match " + prefix + "\n";
+    }
+    StringBuffer sb = new StringBuffer();
+    for (String city : matches) {
+      sb.append(city).append("\n");
+    }
+    return sb.toString();
+  }
+}
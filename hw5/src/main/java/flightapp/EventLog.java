@@ -0,0 +1,413 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Local append-only log of booking events (book, pay, cancel), for downstream consumers that
+ * would otherwise poll the reservations table.
+ *
+ * Transactions queue their events in the event_outbox table, and the {@link EventOutboxRelay} of
+ * the process that has the log open appends them; the memory engine, which has no tables, appends
+ * at commit. Appending is a copy into a memory-mapped segment. Events are numbered from 1 without
+ * gaps.
+ * The log is a directory of fixed-size segments named after the sequence number of their first
+ * event; when an event does not fit, a new segment is started, and segments older than the
+ * retention period are deleted. The OS writes mapped pages back on its own; a flusher forces the
+ * active segment to disk every flush interval, so a machine crash loses at most that much.
+ *
+ * Record layout, big-endian: int payload length, int CRC32 of the payload, then the payload: long
+ * seq, long time millis, byte type, int rid, int fid1, int fid2 (-1 if none), int amount, byte
+ * username length, username UTF-8. The length is written last, and a zero length marks the end of
+ * the written part of a segment, so a reader never sees half a record.
+ *
+ * One process writes a log directory: the writer holds an exclusive lock on the directory's
+ * writer.lock file while open, and a second writer fails to open. A process that cannot open the
+ * log still queues its events in the outbox, for the writer's relay to publish. Any number of
+ * {@link Reader}s, in this or other processes, can tail it from a sequence number.
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.events                   publish booking events (default false)
+ * flightapp.events.dir               log directory (default events)
+ * flightapp.events.segment_mb        segment size (default 64)
+ * flightapp.events.retention_hours   age after which full segments are deleted (default 168)
+ * flightapp.events.flush_ms          interval of forcing the active segment to disk (default 1000)
+ */
+public class EventLog implements Closeable {
+  public static final byte BOOK = 1;
+  public static final byte PAY = 2;
+  public static final byte CANCEL = 3;
+
+  static final String LOCK_FILE = "writer.lock";
+
+  private static final int HEADER = 8;
+  private static final int FIXED_PAYLOAD = 8 + 8 + 1 + 4 * 4 + 1;
+
+  private static EventLog shared;
+  private static boolean configured;
+  private static Boolean enabled;
+
+  private final Path dir;
+  private final int segmentBytes;
+  private final long retentionMillis;
+  private final FileChannel lockChannel;
+  private FileChannel channel;
+  private MappedByteBuffer active;
+  private long nextSeq;
+  private volatile long lastSeq;
+  private ScheduledExecutorService flusher;
+
+  /**
+   * One booking event.
+   */
+  public static class Event {
+    public final long seq;
+    public final long timeMillis;
+    public final byte type;
+    public final int rid;
+    public final int fid1;
+    public final int fid2;
+    public final int amount;
+    public final String username;
+
+    Event(long seq, long timeMillis, byte type, int rid, int fid1, int fid2, int amount,
+        String username) {
+      this.seq = seq;
+      this.timeMillis = timeMillis;
+      this.type = type;
+      this.rid = rid;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+      this.amount = amount;
+      this.username = username;
+    }
+
+    @Override
+    public String toString() {
+      String[] types = { "?", "book", "pay", "cancel" };
+      return seq + " " + types[type] + " rid " + rid + " user " + username + " fids " + fid1 + ","
+          + fid2 + " amount " + amount;
+    }
+  }
+
+  /**
+   * Opens the log in {@code dir} for writing, continuing after its last event.
+   *
+   * @throws IOException if another writer has the directory open
+   */
+  public EventLog(Path dir, int segmentBytes, long retentionMillis) throws IOException {
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    this.retentionMillis = retentionMillis;
+    Files.createDirectories(dir);
+    lockChannel = FileChannel.open(dir.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+    try {
+      if (lockChannel.tryLock() == null) {
+        throw new IOException("event log " + dir + " is open in another process");
+      }
+      recover();
+    } catch (OverlappingFileLockException e) {
+      lockChannel.close();
+      throw new IOException("event log " + dir + " is already open in this process");
+    } catch (IOException | RuntimeException e) {
+      lockChannel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens the newest segment, or the first one of an empty log, and finds the end of its events.
+   */
+  private void recover() throws IOException {
+    List<Long> segments = segments(dir);
+    if (segments.isEmpty()) {
+      open(1);
+      nextSeq = 1;
+    } else {
+      long first = segments.get(segments.size() - 1);
+      open(first);
+      nextSeq = first;
+      ByteBuffer view = active.duplicate();
+      Event e;
+      while ((e = read(view)) != null) {
+        nextSeq = e.seq + 1;
+      }
+      active.position(view.position());
+    }
+    lastSeq = nextSeq - 1;
+  }
+
+  /**
+   * Whether booking events are published (flightapp.events).
+   */
+  static synchronized boolean enabled() {
+    if (enabled == null) {
+      enabled = Boolean.parseBoolean(Query.getSetting("flightapp.events", "false"));
+    }
+    return enabled;
+  }
+
+  /**
+   * Returns the log of this process, opening it on first use, or null if events are disabled.
+   */
+  static synchronized EventLog shared() {
+    if (!configured) {
+      configured = true;
+      if (enabled()) {
+        try {
+          shared = new EventLog(Paths.get(Query.getSetting("flightapp.events.dir", "events")),
+              Integer.parseInt(Query.getSetting("flightapp.events.segment_mb", "64")) << 20,
+              Long.parseLong(Query.getSetting("flightapp.events.retention_hours", "168"))
+                  * 3600_000);
+          shared.startFlusher(
+              Long.parseLong(Query.getSetting("flightapp.events.flush_ms", "1000")));
+        } catch (IOException e) {
+          System.err.println("ERROR: event log not opened, events stay queued in event_outbox "
+              + "for its writer: " + e.getMessage());
+        }
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Appends an event and returns its sequence number.
+   */
+  public synchronized long append(byte type, int rid, String username, int fid1, int fid2,
+      int amount) throws IOException {
+    byte[] user = username.getBytes(StandardCharsets.UTF_8);
+    int payloadLength = FIXED_PAYLOAD + user.length;
+    if (active.remaining() < HEADER + payloadLength + 4) {
+      roll();
+    }
+    long seq = nextSeq;
+    int start = active.position();
+    ByteBuffer payload = active.duplicate();
+    payload.position(start + HEADER);
+    payload.putLong(seq).putLong(System.currentTimeMillis()).put(type).putInt(rid).putInt(fid1)
+        .putInt(fid2).putInt(amount).put((byte) user.length).put(user);
+    CRC32 crc = new CRC32();
+    ByteBuffer checked = active.duplicate();
+    checked.position(start + HEADER).limit(start + HEADER + payloadLength);
+    crc.update(checked);
+    active.putInt(start + 4, (int) crc.getValue());
+    active.putInt(start, payloadLength);
+    active.position(start + HEADER + payloadLength);
+    nextSeq = seq + 1;
+    lastSeq = seq;
+    return seq;
+  }
+
+  /**
+   * Sequence number of the last event appended, 0 if none.
+   */
+  public long lastSeq() {
+    return lastSeq;
+  }
+
+  /**
+   * Returns a reader positioned at the first retained event with a sequence number of at least
+   * {@code fromSeq}.
+   */
+  public Reader reader(long fromSeq) throws IOException {
+    return new Reader(dir, fromSeq);
+  }
+
+  /**
+   * Starts a new segment at the next sequence number and drops expired ones.
+   */
+  private void roll() throws IOException {
+    active.force();
+    channel.close();
+    open(nextSeq);
+    long cutoff = System.currentTimeMillis() - retentionMillis;
+    List<Long> segments = segments(dir);
+    for (long first : segments.subList(0, segments.size() - 1)) {
+      Path file = segmentFile(dir, first);
+      if (Files.getLastModifiedTime(file).toMillis() < cutoff) {
+        Files.deleteIfExists(file);
+      }
+    }
+  }
+
+  private void open(long firstSeq) throws IOException {
+    if (HEADER + FIXED_PAYLOAD + 255 + 4 > segmentBytes) {
+      throw new IOException("segment too small");
+    }
+    channel = FileChannel.open(segmentFile(dir, firstSeq), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    active = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+  }
+
+  private void startFlusher(long periodMillis) {
+    if (periodMillis <= 0) {
+      return;
+    }
+    flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "event-flush");
+      t.setDaemon(true);
+      return t;
+    });
+    flusher.scheduleWithFixedDelay(() -> {
+      synchronized (this) {
+        active.force();
+      }
+    }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (flusher != null) {
+      flusher.shutdownNow();
+    }
+    active.force();
+    channel.close();
+    // releases the writer lock
+    lockChannel.close();
+  }
+
+  /**
+   * Reads the record at the buffer's position and moves past it, or returns null at the end of the
+   * written part (zero length, or a record still being written).
+   */
+  private static Event read(ByteBuffer buf) {
+    int start = buf.position();
+    if (buf.remaining() < HEADER) {
+      return null;
+    }
+    int length = buf.getInt(start);
+    if (length < FIXED_PAYLOAD || buf.remaining() < HEADER + length) {
+      return null;
+    }
+    ByteBuffer payload = buf.duplicate();
+    payload.position(start + HEADER).limit(start + HEADER + length);
+    CRC32 crc = new CRC32();
+    crc.update(payload.duplicate());
+    if ((int) crc.getValue() != buf.getInt(start + 4)) {
+      return null;
+    }
+    long seq = payload.getLong();
+    long time = payload.getLong();
+    byte type = payload.get();
+    int rid = payload.getInt();
+    int fid1 = payload.getInt();
+    int fid2 = payload.getInt();
+    int amount = payload.getInt();
+    byte[] user = new byte[payload.get() & 0xff];
+    payload.get(user);
+    buf.position(start + HEADER + length);
+    return new Event(seq, time, type, rid, fid1, fid2, amount,
+        new String(user, StandardCharsets.UTF_8));
+  }
+
+  private static Path segmentFile(Path dir, long firstSeq) {
+    return dir.resolve(String.format("%020d.log", firstSeq));
+  }
+
+  /**
+   * First sequence numbers of the segments in {@code dir}, in increasing order.
+   */
+  private static List<Long> segments(Path dir) throws IOException {
+    List<Long> segments = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        segments.add(Long.parseLong(name.substring(0, name.length() - 4)));
+      }
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  /**
+   * Tails a log directory. Not thread-safe; use one reader per consumer.
+   */
+  public static class Reader implements Closeable {
+    private final Path dir;
+    private long nextSeq;
+    private long segment = -1;
+    private MappedByteBuffer buf;
+
+    Reader(Path dir, long fromSeq) {
+      this.dir = dir;
+      this.nextSeq = Math.max(1, fromSeq);
+    }
+
+    /**
+     * Returns the next event, or null if the reader has caught up with the writer.
+     */
+    public Event poll() throws IOException {
+      boolean rechecked = false;
+      while (true) {
+        if (buf == null && !openSegment()) {
+          return null;
+        }
+        Event e = read(buf);
+        if (e != null) {
+          if (e.seq < nextSeq) {
+            continue;
+          }
+          nextSeq = e.seq + 1;
+          return e;
+        }
+        // End of this segment's data: move on only if a newer segment exists, and after one more
+        // look, since the writer may have added the segment's last event before rolling
+        List<Long> segments = segments(dir);
+        int i = segments.indexOf(segment);
+        if (i < 0 || i == segments.size() - 1) {
+          return null;
+        }
+        if (!rechecked) {
+          rechecked = true;
+          continue;
+        }
+        buf = null;
+        rechecked = false;
+      }
+    }
+
+    /**
+     * Sequence number of the next event this reader returns; consumers store it as their offset.
+     */
+    public long position() {
+      return nextSeq;
+    }
+
+    /**
+     * Maps the segment holding {@code nextSeq}, or the oldest one if it has been deleted.
+     */
+    private boolean openSegment() throws IOException {
+      List<Long> segments = segments(dir);
+      long target = -1;
+      for (long first : segments) {
+        if (first <= nextSeq || target == -1) {
+          target = first;
+        }
+        if (first > nextSeq) {
+          break;
+        }
+      }
+      if (target == -1) {
+        return false;
+      }
+      try (FileChannel channel = FileChannel.open(segmentFile(dir, target),
+          StandardOpenOption.READ)) {
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+      segment = target;
+      return true;
+    }
+
+    @Override
+    public void close() {
+      buf = null;
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Background job that publishes the booking events queued in the event_outbox table to this
+ * process's {@link EventLog}; it is the log's only writer.
+ *
+ * Every transaction that produces events inserts them in the same transaction: book, pay and
+ * cancel through {@link JdbcStorage#queueEvent}, {@link HoldExpiry} and {@link FlightCancellation}
+ * in their batches, so an event is queued if and only if its transaction commits, whichever
+ * process ran it. Each batch deletes up to {@code batchSize} of the oldest rows, reading past
+ * rows other transactions hold, and appends them to the log in seq order before it commits.
+ * Delivery is at least once: a crash between the append and the commit publishes the batch again.
+ *
+ * In a sharded deployment one relay runs per shard, and reservation IDs are published global.
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.events.outbox_seconds     delay between relays, 0 disables relaying (default 1)
+ * flightapp.events.outbox_batch_size  maximum events published per transaction (default 500)
+ */
+public class EventOutboxRelay implements Runnable {
+  // Rows of transactions still running, or claimed by another relay, are read past; OUTPUT order
+  // is unspecified, so the batch is sorted before it is appended
+  private static final String CLAIM_SQL = "WITH batch AS (SELECT TOP (?) * FROM EVENT_OUTBOX "
+      + "WITH (UPDLOCK, READPAST) ORDER BY seq) DELETE FROM batch OUTPUT DELETED.seq, "
+      + "DELETED.type, DELETED.rid, DELETED.username, DELETED.fid1, DELETED.fid2, DELETED.amount";
+
+  /**
+   * One queued event, with its reservation ID made global.
+   */
+  private static class Queued {
+    final byte type;
+    final int rid;
+    final String username;
+    final int fid1;
+    final int fid2;
+    final int amount;
+
+    Queued(byte type, int rid, String username, int fid1, int fid2, int amount) {
+      this.type = type;
+      this.rid = rid;
+      this.username = username;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+      this.amount = amount;
+    }
+  }
+
+  private final Connection conn;
+  private final EventLog log;
+  // Null, or the shard map and this relay's shard, to make reservation IDs global
+  private final ShardMap shardMap;
+  private final int shard;
+  private final int batchSize;
+  private final PreparedStatement claim;
+
+  public EventOutboxRelay(Connection conn, EventLog log, ShardMap shardMap, int shard,
+      int batchSize) throws SQLException {
+    this.conn = conn;
+    this.log = log;
+    this.shardMap = shardMap;
+    this.shard = shard;
+    this.batchSize = batchSize;
+    // READPAST is only allowed below REPEATABLE READ
+    conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+    claim = conn.prepareStatement(CLAIM_SQL);
+  }
+
+  /**
+   * Starts relaying on its own connections if booking events are enabled and this process has the
+   * log open, unless flightapp.events.outbox_seconds is 0.
+   *
+   * @return the scheduler running the relays, which closes their connections when it terminates,
+   *         or null if this process does not relay
+   */
+  public static ScheduledExecutorService start() throws SQLException, IOException {
+    if (!EventLog.enabled()) {
+      return null;
+    }
+    EventLog log = EventLog.shared();
+    int period = Integer.parseInt(Query.getSetting("flightapp.events.outbox_seconds", "1"));
+    if (log == null) {
+      // shared() reported why; the process holding the log relays this one's events
+      return null;
+    }
+    if (period <= 0) {
+      System.err.println("WARNING: flightapp.events.outbox_seconds is 0, booking events stay "
+          + "queued in event_outbox");
+      return null;
+    }
+    int batch = Integer.parseInt(Query.getSetting("flightapp.events.outbox_batch_size", "500"));
+    List<EventOutboxRelay> relays = new ArrayList<>();
+    ShardMap shardMap = ShardMap.fromSettings();
+    if (shardMap == null) {
+      relays.add(new EventOutboxRelay(Query.openConnectionFromDbConn(), log, null, 0, batch));
+    } else {
+      for (int i = 0; i < shardMap.size(); i++) {
+        relays.add(new EventOutboxRelay(shardMap.open(i), log, shardMap, i, batch));
+      }
+    }
+    ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread t = new Thread(r, "event-outbox");
+      t.setDaemon(true);
+      return t;
+    }) {
+      @Override
+      protected void terminated() {
+        for (EventOutboxRelay relay : relays) {
+          try {
+            relay.close();
+          } catch (SQLException e) {
+            e.printStackTrace();
+          }
+        }
+      }
+    };
+    scheduler.scheduleWithFixedDelay(() -> relays.forEach(EventOutboxRelay::run), period, period,
+        TimeUnit.SECONDS);
+    return scheduler;
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (relay() == batchSize) {
+        // a full batch means more events may be waiting; keep draining
+      }
+    } catch (SQLException | IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Publishes and deletes one batch of queued events in a single transaction.
+   *
+   * @return the number of events published
+   */
+  public int relay() throws SQLException, IOException {
+    try {
+      conn.setAutoCommit(false);
+      claim.clearParameters();
+      claim.setInt(1, batchSize);
+      TreeMap<Long, Queued> batch = new TreeMap<>();
+      try (ResultSet rs = claim.executeQuery()) {
+        while (rs.next()) {
+          int rid = rs.getInt("rid");
+          batch.put(rs.getLong("seq"), new Queued(rs.getByte("type"),
+              shardMap == null ? rid : shardMap.globalRid(shard, rid), rs.getString("username"),
+              rs.getInt("fid1"), rs.getInt("fid2"), rs.getInt("amount")));
+        }
+      }
+      for (Queued e : batch.values()) {
+        log.append(e.type, e.rid, e.username, e.fid1, e.fid2, e.amount);
+      }
+      conn.commit();
+      return batch.size();
+    } catch (SQLException | IOException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  public void close() throws SQLException {
+    conn.close();
+  }
+}
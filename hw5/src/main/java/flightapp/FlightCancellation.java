@@ -0,0 +1,281 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Administrative cancellation of a flight by the airline, with refunds for its reservations.
+ *
+ * First the flight's free seats are set to 0, so bookings of it fail from then on, and it is marked
+ * canceled in Flights, which drops it from searches (the connections trigger removes its one-hop
+ * pairs). Then its active reservations are canceled in batches, each one set-based transaction:
+ * pick up to {@code batchSize} users holding reservations of the flight, lock their rows in name
+ * order (book also locks the user first; pay and cancel lock the reservation first and may
+ * deadlock with a batch), mark their reservations of the flight
+ * canceled, append one ledger credit per user for the paid ones, bump the users' reservation
+ * versions and recompute their booked days, queue a cancel event per reservation in the event
+ * outbox, and return the seats of the itineraries' other flights. A batch that deadlocks with
+ * user traffic is rerun, up to 10 times. Seats a racing hold
+ * expiry or user cancel gives back to the flight meanwhile are zeroed again by a second pass, which
+ * also sweeps anything booked with them.
+ *
+ * This runs as its own process, so it neither writes the {@link EventLog}, whose writer is the
+ * server, nor touches the server's city index: the {@link EventOutboxRelay} of the server publishes
+ * the queued events, and the server's index keeps the flight's cities until its next reload
+ * (flightapp.city_index.refresh_seconds). A search of them then just finds no flights.
+ *
+ * With --rebook the passengers are first moved to alternative itineraries by
+ * {@link Reaccommodation}, once the flight is closed to bookings; only those left without seats are
+ * canceled and refunded. Rebooking needs a single database.
+ *
+ * In a sharded deployment Flights is updated on every shard, the seats on the shard owning the
+ * flight's capacity, and reservations are swept on every shard; the other flights' seats are then
+ * returned to their owning shards after each batch commits.
+ *
+ * Usage: FlightCancellation [--rebook] fid [fid ...], against the databases of dbconn.properties
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.cancel_flight_batch_users  users whose reservations are canceled per transaction
+ *                                      (default 500)
+ */
+public class FlightCancellation {
+  private static final int MAX_ATTEMPTS = 10;
+
+  private static final String CANCEL_FLIGHT_SQL = "UPDATE Flights SET canceled = 1 WHERE fid = ?";
+  // HOLDLOCK keeps a booking from creating the row between the update and the insert
+  private static final String ZERO_SEATS_SQL =
+      "UPDATE capacity WITH (UPDLOCK, HOLDLOCK) SET freeSeat = 0 WHERE fid = ?; "
+      + "IF @@ROWCOUNT = 0 INSERT INTO capacity (fid, freeSeat) VALUES(?, 0)";
+  // Returns the other flight (-1 if none), paid flag and price of every reservation canceled
+  private static final String CANCEL_BATCH_SQL =
+      "SET NOCOUNT ON;"
+      + "DECLARE @fid int = ?;"
+      + "DECLARE @users TABLE (username varchar(20) PRIMARY KEY);"
+      + "DECLARE @batch TABLE (rid int PRIMARY KEY, username varchar(20), fid1 int, fid2 int, "
+      + "paid bit, price int);"
+      + "DECLARE @locked int;"
+      + "INSERT INTO @users SELECT DISTINCT TOP (?) username FROM RESERVATIONS "
+      + "WHERE canceled = 0 AND (fid1 = @fid OR fid2 = @fid);"
+      + "SELECT @locked = COUNT(*) FROM USERS WITH (UPDLOCK) "
+      + "WHERE username IN (SELECT username FROM @users);"
+      + "UPDATE RESERVATIONS SET canceled = 1 OUTPUT INSERTED.rid, INSERTED.username, "
+      + "INSERTED.fid1, INSERTED.fid2, INSERTED.paid, INSERTED.price INTO @batch "
+      + "WHERE canceled = 0 AND (fid1 = @fid OR fid2 = @fid) "
+      + "AND username IN (SELECT username FROM @users);"
+      + "INSERT INTO LEDGER (username, delta) "
+      + "SELECT username, SUM(price) FROM @batch WHERE paid = 1 GROUP BY username;"
+      + "UPDATE USERS SET res_version = res_version + 1, booked_days = " + JdbcStorage.BOOKED_DAYS_SQL
+      + " WHERE username IN (SELECT username FROM @users);"
+      + "INSERT INTO EVENT_OUTBOX (type, rid, username, fid1, fid2, amount) "
+      + "SELECT " + EventLog.CANCEL + ", rid, username, fid1, fid2, "
+      + "CASE WHEN paid = 1 THEN price ELSE 0 END FROM @batch;"
+      + "SELECT CASE WHEN fid1 = @fid THEN fid2 ELSE fid1 END AS other_fid, paid, price "
+      + "FROM @batch;";
+
+  private final List<Connection> conns;
+  private final ShardMap shardMap;
+  private final int batchSize;
+  // Moves passengers before the sweep, null to cancel them all
+  private Reaccommodation reaccommodation;
+
+  /**
+   * @param conns the database, or every shard in shard order
+   */
+  public FlightCancellation(List<Connection> conns, ShardMap shardMap, int batchSize)
+      throws SQLException {
+    this.conns = conns;
+    this.shardMap = shardMap;
+    this.batchSize = batchSize;
+    for (Connection conn : conns) {
+      conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+    }
+  }
+
+  public static void main(String[] args) throws SQLException, IOException {
+    boolean rebook = args.length > 0 && args[0].equals("--rebook");
+    if (args.length == (rebook ? 1 : 0)) {
+      System.err.println("Usage: FlightCancellation [--rebook] fid [fid ...]");
+      System.exit(1);
+    }
+    List<Connection> conns = Migrations.openAll();
+    try {
+      FlightCancellation cancellation = new FlightCancellation(conns, ShardMap.fromSettings(),
+          Integer.parseInt(Query.getSetting("flightapp.cancel_flight_batch_users", "500")));
+      if (rebook) {
+        cancellation.rebookWith(Reaccommodation.fromSettings(conns.get(0)));
+      }
+      for (int i = rebook ? 1 : 0; i < args.length; i++) {
+        System.out.print(cancellation.cancel(Integer.parseInt(args[i])));
+      }
+    } finally {
+      for (Connection conn : conns) {
+        conn.close();
+      }
+    }
+  }
+
+  /**
+   * Rebooks the passengers of canceled flights with {@code reaccommodation} before canceling what
+   * is left.
+   *
+   * @throws IllegalStateException if the deployment is sharded
+   */
+  public void rebookWith(Reaccommodation reaccommodation) {
+    if (shardMap != null) {
+      throw new IllegalStateException("Rebooking is not supported with sharding");
+    }
+    this.reaccommodation = reaccommodation;
+  }
+
+  /**
+   * Cancels flight {@code fid} and all reservations of it, refunding the paid ones, after moving
+   * what it can to other flights if rebooking is on. Running it again for the same flight finishes
+   * an interrupted cancellation.
+   *
+   * @return a summary of one line, two with rebooking
+   */
+  public String cancel(int fid) throws SQLException, IOException {
+    if (!closeFlight(fid)) {
+      return "No such flight " + fid + "\n";
+    }
+    String rebooked = reaccommodation == null ? "" : reaccommodation.run(fid);
+    long[] totals = new long[3];
+    sweep(fid, totals);
+    // Seats a racing hold expiry or user cancel returned to the flight, and bookings made with them
+    closeFlight(fid);
+    sweep(fid, totals);
+    return rebooked + "Canceled flight " + fid + ": " + totals[0] + " reservations canceled, " + totals[1]
+        + " refunded (" + totals[2] + ")\n";
+  }
+
+  /**
+   * Sets the flight's free seats to 0 and marks it canceled on every database, the owner of its
+   * capacity first.
+   *
+   * @return false if there is no such flight
+   */
+  private boolean closeFlight(int fid) throws SQLException {
+    int owner = shardMap == null ? 0 : shardMap.capacityShardOf(fid);
+    List<Integer> order = new ArrayList<>();
+    order.add(owner);
+    for (int i = 0; i < conns.size(); i++) {
+      if (i != owner) {
+        order.add(i);
+      }
+    }
+    for (int shard : order) {
+      Connection conn = conns.get(shard);
+      for (int attempt = 1; ; attempt++) {
+        try {
+          conn.setAutoCommit(false);
+          int flights;
+          try (PreparedStatement cancelFlight = conn.prepareStatement(CANCEL_FLIGHT_SQL)) {
+            cancelFlight.setInt(1, fid);
+            flights = cancelFlight.executeUpdate();
+          }
+          if (flights == 0) {
+            conn.rollback();
+            return false;
+          }
+          if (shard == owner) {
+            try (PreparedStatement zeroSeats = conn.prepareStatement(ZERO_SEATS_SQL)) {
+              zeroSeats.setInt(1, fid);
+              zeroSeats.setInt(2, fid);
+              zeroSeats.execute();
+            }
+          }
+          conn.commit();
+          break;
+        } catch (SQLException e) {
+          conn.rollback();
+          if (!JdbcStorage.isDeadLock(e) || attempt == MAX_ATTEMPTS) {
+            throw e;
+          }
+        } finally {
+          conn.setAutoCommit(true);
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Cancels the flight's active reservations on every database, one batch per transaction.
+   *
+   * @param totals incremented by the reservations canceled, the paid ones and the amount refunded
+   */
+  private void sweep(int fid, long[] totals) throws SQLException {
+    for (int shard = 0; shard < conns.size(); shard++) {
+      Map<Integer, Integer> released = new HashMap<>();
+      while (cancelBatch(conns.get(shard), fid, released, totals) > 0) {
+        if (shardMap != null && !released.isEmpty()) {
+          releaseRemoteSeats(released);
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs one batch on {@code conn}, rerunning it after a deadlock.
+   *
+   * @return the number of reservations canceled
+   */
+  private int cancelBatch(Connection conn, int fid, Map<Integer, Integer> released, long[] totals)
+      throws SQLException {
+    for (int attempt = 1; ; attempt++) {
+      released.clear();
+      long[] batch = new long[3];
+      try {
+        conn.setAutoCommit(false);
+        try (PreparedStatement cancelBatch = conn.prepareStatement(CANCEL_BATCH_SQL)) {
+          cancelBatch.setInt(1, fid);
+          cancelBatch.setInt(2, batchSize);
+          try (ResultSet rs = cancelBatch.executeQuery()) {
+            while (rs.next()) {
+              batch[0]++;
+              if (rs.getBoolean("paid")) {
+                batch[1]++;
+                batch[2] += rs.getInt("price");
+              }
+              int other = rs.getInt("other_fid");
+              if (!rs.wasNull() && other != -1) {
+                released.merge(other, 1, Integer::sum);
+              }
+            }
+          }
+        }
+        if (shardMap == null && !released.isEmpty()) {
+          HoldExpiry.releaseSeats(conn, released);
+        }
+        conn.commit();
+        for (int i = 0; i < totals.length; i++) {
+          totals[i] += batch[i];
+        }
+        return (int) batch[0];
+      } catch (SQLException e) {
+        conn.rollback();
+        if (!JdbcStorage.isDeadLock(e) || attempt == MAX_ATTEMPTS) {
+          throw e;
+        }
+      } finally {
+        conn.setAutoCommit(true);
+      }
+    }
+  }
+
+  /**
+   * Returns seats to the shards owning the flights' capacity rows, after the batch committed, so a
+   * failure leaves seats held rather than oversold.
+   */
+  private void releaseRemoteSeats(Map<Integer, Integer> released) throws SQLException {
+    Map<Integer, Map<Integer, Integer>> byShard = new HashMap<>();
+    for (Map.Entry<Integer, Integer> e : released.entrySet()) {
+      byShard.computeIfAbsent(shardMap.capacityShardOf(e.getKey()), k -> new HashMap<>())
+          .put(e.getKey(), e.getValue());
+    }
+    for (Map.Entry<Integer, Map<Integer, Integer>> e : byShard.entrySet()) {
+      HoldExpiry.releaseSeats(conns.get(e.getKey()), e.getValue());
+    }
+  }
+}
@@ -2,10 +2,13 @@ package flightapp;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 import java.sql.*;
 
 public class FlightService {
+  // How long quitting waits for a background job's running sweep before exiting anyway
+  private static final int JOB_SHUTDOWN_SECONDS = 10;
 
   /**
    * Execute the specified command on the database query connection
@@ -13,12 +16,19 @@ public class FlightService {
   public static String execute(Query q, String command) {
     String[] tokens = tokenize(command.trim());
     String response;
+    Admission admission = Admission.shared();
+    String rejection = tokens.length == 0 ? null : admission.admit(q, tokens[0]);
 
     // empty input
     if (tokens.length == 0) {
       response = "Please enter a command";
     }
 
+    // over the user's rate for this command
+    else if (rejection != null) {
+      response = rejection;
+    }
+
     // login
     else if (tokens[0].equals("login")) {
       if (tokens.length == 3) {
@@ -44,29 +54,59 @@ public class FlightService {
 
     // search
     else if (tokens[0].equals("search")) {
-      if (tokens.length == 6) {
+      if (tokens.length >= 6) {
         String originCity = tokens[1];
         String destinationCity = tokens[2];
         boolean direct = tokens[3].equals("1");
         try {
           int day = Integer.valueOf(tokens[4]);
-          int count = Integer.valueOf(tokens[5]);
-          response = q.transaction_search(originCity, destinationCity, direct, day, count);
+          int count = admission.capItineraries(Integer.valueOf(tokens[5]));
+          SearchFilter filter = SearchFilter.parse(Arrays.copyOfRange(tokens, 6, tokens.length));
+          direct = filter.directOnly(direct);
+          if (!admission.enterSearch(direct)) {
+            response = Admission.BUSY;
+          } else {
+            try {
+              response = q.transaction_search(originCity, destinationCity, direct, day, count,
+                  filter);
+            } finally {
+              admission.exitSearch(direct);
+            }
+          }
         } catch (NumberFormatException e) {
           response = "Failed to parse integer";
+        } catch (IllegalArgumentException e) {
+          response = "Error: " + e.getMessage() + "\n";
         }
       } else {
         response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
       }
     }
 
+    // cities
+    else if (tokens[0].equals("cities")) {
+      if (tokens.length == 2) {
+        response = q.transaction_cities(tokens[1]);
+      } else {
+        response = "Error: Please provide a city name prefix";
+      }
+    }
+
     // book
     else if (tokens[0].equals("book")) {
       if (tokens.length == 2) {
         int itinerary_id = Integer.parseInt(tokens[1]);
         response = q.transaction_book(itinerary_id);
+      } else if (tokens.length == 3) {
+        try {
+          int itinerary_id = Integer.parseInt(tokens[1]);
+          int seats = Integer.parseInt(tokens[2]);
+          response = q.transaction_bookGroup(itinerary_id, seats);
+        } catch (NumberFormatException e) {
+          response = "Failed to parse integer";
+        }
       } else {
-        response = "Error: Please provide an itinerary_id";
+        response = "Error: Please provide an itinerary_id and optionally a number of seats";
       }
     }
 
@@ -77,11 +117,23 @@ public class FlightService {
 
     // pay
     else if (tokens[0].equals("pay")) {
-      if (tokens.length == 2) {
+      if (tokens.length == 2 && tokens[1].equals("all")) {
+        response = q.transaction_payBulk(null);
+      } else if (tokens.length == 2) {
         int reservation_id = Integer.parseInt(tokens[1]);
         response = q.transaction_pay(reservation_id);
+      } else if (tokens.length > 2) {
+        try {
+          List<Integer> reservation_ids = new ArrayList<>();
+          for (int i = 1; i < tokens.length; i++) {
+            reservation_ids.add(Integer.parseInt(tokens[i]));
+          }
+          response = q.transaction_payBulk(reservation_ids);
+        } catch (NumberFormatException e) {
+          response = "Failed to parse integer";
+        }
       } else {
-        response = "Error: Please provide a reservation_id";
+        response = "Error: Please provide a reservation_id, several reservation_ids or 'all'";
       }
     }
 
@@ -95,6 +147,19 @@ public class FlightService {
       }
     }
 
+    // topup
+    else if (tokens[0].equals("topup")) {
+      if (tokens.length == 2) {
+        try {
+          response = q.transaction_topUp(Integer.parseInt(tokens[1]));
+        } catch (NumberFormatException e) {
+          response = "Failed to parse integer";
+        }
+      } else {
+        response = "Error: Please provide an amount";
+      }
+    }
+
     // quit
     else if (tokens[0].equals("quit")) {
       response = "Goodbye\n";
@@ -117,30 +182,87 @@ public class FlightService {
    */
   public static void main(String[] args) throws IOException, SQLException {
     /* prepare the database connection stuff */
-    Query q = new Query();
-    menu(q);
+    // Connects while the menu is printed and the first command is typed: loading the JDBC driver
+    // and logging in to the server take most of the startup time
+    List<ScheduledExecutorService> jobs = new ArrayList<>();
+    FutureTask<Query> opening = new FutureTask<>(() -> {
+      Query q = Query.open();
+      // Migrations and the background jobs maintain database tables; the memory engine has none
+      if (q.storage() instanceof JdbcStorage) {
+        Migrations.migrateOnStartup();
+        q.cityIndex();
+        jobs.add(HoldExpiry.start());
+        jobs.add(LedgerCompactor.start());
+        jobs.add(EventOutboxRelay.start());
+      }
+      return q;
+    });
+    Thread opener = new Thread(opening, "open-backend");
+    opener.setDaemon(true);
+    opener.start();
+    menu(opening);
+    Query q = await(opening);
+    // A job closes its connections once a sweep that is still running has finished
+    for (ScheduledExecutorService job : jobs) {
+      if (job != null) {
+        job.shutdown();
+      }
+    }
+    for (ScheduledExecutorService job : jobs) {
+      if (job != null) {
+        try {
+          job.awaitTermination(JOB_SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
     q.closeConnection();
   }
 
+  /**
+   * Waits for a background task, such as the backend being opened, rethrowing what failed it.
+   */
+  static <T> T await(Future<T> task) throws IOException, SQLException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SQLException) {
+        throw (SQLException) cause;
+      } else if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
   /**
    * REPL (Read-Execute-Print-Loop) for Flights application for the specified
    * application-to-database connection
    * 
-   * @param q
+   * @param backend the session, possibly still connecting
    * @throws IOException
    */
-  private static void menu(Query q) throws IOException {
+  private static void menu(Future<Query> backend) throws IOException, SQLException {
     while (true) {
       // print the command options
       System.out.println();
       System.out.println(" *** Please enter one of the following commands *** ");
       System.out.println("> create <username> <password> <initial amount>");
       System.out.println("> login <username> <password>");
-      System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
-      System.out.println("> book <itinerary id>");
-      System.out.println("> pay <reservation id>");
+      System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries> [carrier=<id>] [max_price=<n>] [max_minutes=<n>] [max_legs=<1|2>]");
+      System.out.println("> cities <city name prefix>");
+      System.out.println("> book <itinerary id> [<number of seats>]");
+      System.out.println("> pay <reservation id> [<reservation id> ...] | pay all");
       System.out.println("> reservations");
       System.out.println("> cancel <reservation id>");
+      System.out.println("> topup <amount>");
       System.out.println("> quit");
 
       // read an input command from the REPL
@@ -149,7 +271,7 @@ public class FlightService {
       String command = r.readLine();
 
       // execute the given input command
-      String response = execute(q, command);
+      String response = execute(await(backend), command);
       System.out.print(response);
       if (response.equals("Goodbye\n")) {
         break;
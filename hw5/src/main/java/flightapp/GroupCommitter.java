@@ -0,0 +1,191 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Shared committer that runs the book and pay requests of concurrent sessions in one database
+ * transaction per window, so many requests share one log flush.
+ *
+ * A session submits its request and blocks. The committer thread collects requests until the
+ * window has passed since the first one or the batch is full, then runs them in submission order on
+ * its own connection, each behind a savepoint, and commits once. Every caller then gets exactly the
+ * result the request would have returned on its own: a request that fails is rolled back to its
+ * savepoint without touching the others, and results are only handed out after the commit. If the
+ * batch transaction is lost (deadlock) the whole batch is rerun, up to 10 times; requests that
+ * threw are not rerun.
+ *
+ * Only used with a single database; sharded sessions commit on their own.
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.group_commit_window_ms  longest wait for more requests, 0 disables group commit
+ *                                   (default 0)
+ * flightapp.group_commit_batch_size most requests per transaction (default 64)
+ */
+class GroupCommitter implements Runnable {
+  private static final int MAX_ATTEMPTS = 10;
+
+  private static GroupCommitter shared;
+  private static boolean configured;
+
+  private final Query worker;
+  private final JdbcStorage storage;
+  private final Connection conn;
+  private final long windowNanos;
+  private final int batchSize;
+  private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+  private static class Request {
+    final Query session;
+    final Function<Query, String> work;
+    final String failure;
+    final CompletableFuture<String> result = new CompletableFuture<>();
+
+    Request(Query session, Function<Query, String> work, String failure) {
+      this.session = session;
+      this.work = work;
+      this.failure = failure;
+    }
+  }
+
+  GroupCommitter(JdbcStorage storage, long windowMillis, int batchSize) {
+    this.storage = storage;
+    this.worker = new Query(storage);
+    this.conn = storage.connection();
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.batchSize = batchSize;
+    storage.grouped = true;
+  }
+
+  /**
+   * Returns the committer shared by all sessions of this process, starting it on first use, or null
+   * if group commit is disabled or cannot start.
+   */
+  static synchronized GroupCommitter shared() {
+    if (!configured) {
+      configured = true;
+      long window = Long.parseLong(Query.getSetting("flightapp.group_commit_window_ms", "0"));
+      int batch = Integer.parseInt(Query.getSetting("flightapp.group_commit_batch_size", "64"));
+      if (window > 0) {
+        try {
+          shared = new GroupCommitter(new JdbcStorage(), window, batch);
+          Thread t = new Thread(shared, "group-commit");
+          t.setDaemon(true);
+          t.start();
+        } catch (Exception e) {
+          System.err.println("Group commit disabled: " + e.getMessage());
+        }
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Runs {@code work} on the committer's Query in the next batch and waits for the batch to commit.
+   *
+   * @param failure result to report if the batch cannot be committed
+   */
+  String submit(Query session, Function<Query, String> work, String failure) {
+    Request request = new Request(session, work, failure);
+    queue.add(request);
+    try {
+      return request.result.join();
+    } catch (CompletionException e) {
+      throw (RuntimeException) e.getCause();
+    }
+  }
+
+  @Override
+  public void run() {
+    List<Request> batch = new ArrayList<>();
+    try {
+      while (true) {
+        batch.add(queue.take());
+        long deadline = System.nanoTime() + windowNanos;
+        while (batch.size() < batchSize) {
+          Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+        commit(batch);
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      batch.addAll(queue);
+      for (Request request : batch) {
+        request.result.complete(request.failure);
+      }
+    }
+  }
+
+  /**
+   * Runs one batch in a single transaction and completes its requests. A request that throws is
+   * rolled back to its savepoint, handed its error and left out of any rerun; only a lost batch
+   * transaction counts as an attempt.
+   */
+  private void commit(List<Request> batch) {
+    String[] results = new String[batch.size()];
+    boolean[] failed = new boolean[batch.size()];
+    for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+      try {
+        conn.setAutoCommit(false);
+        storage.batchAborted = false;
+        storage.discardQueuedEvents();
+        for (int i = 0; i < batch.size() && !storage.batchAborted; i++) {
+          if (failed[i]) {
+            continue;
+          }
+          Request request = batch.get(i);
+          worker.adopt(request.session);
+          Savepoint savepoint = conn.setSavepoint();
+          try {
+            results[i] = request.work.apply(worker);
+          } catch (RuntimeException e) {
+            conn.rollback(savepoint);
+            storage.discardQueuedEvents();
+            failed[i] = true;
+            request.result.completeExceptionally(e);
+          }
+        }
+        if (!storage.batchAborted) {
+          conn.commit();
+          conn.setAutoCommit(true);
+          for (int i = 0; i < batch.size(); i++) {
+            if (!failed[i]) {
+              batch.get(i).result.complete(results[i]);
+            }
+          }
+          return;
+        }
+        conn.rollback();
+      } catch (SQLException e) {
+        rollbackQuietly();
+        if (!JdbcStorage.isDeadLock(e)) {
+          e.printStackTrace();
+          break;
+        }
+      }
+    }
+    rollbackQuietly();
+    for (int i = 0; i < batch.size(); i++) {
+      if (!failed[i]) {
+        batch.get(i).result.complete(batch.get(i).failure);
+      }
+    }
+  }
+
+  private void rollbackQuietly() {
+    try {
+      if (!conn.getAutoCommit()) {
+        conn.rollback();
+      }
+      conn.setAutoCommit(true);
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,232 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Background sweeper that expires unpaid reservations whose hold is older than a configurable TTL
+ * and releases their seats back to the capacity table.
+ *
+ * Each sweep is one short transaction: it picks up to {@code batchSize} expired holds, locks their
+ * owners' user rows one at a time in name order, as every other multi-user transaction does,
+ * cancels the holds that are still unpaid with one UPDATE, bumps the owners' reservation versions
+ * and returns the seats with one set-based capacity update. Reservations locked by live payments or
+ * cancels are skipped (READPAST) and picked up by a later sweep. Recomputing the owners' booked days
+ * still reads their other reservations, though, so a sweep that holds an owner's row can deadlock
+ * with a pay or cancel of that owner that holds one of those reservations and waits for the user
+ * row. A sweep that loses a deadlock or lock timeout is rerun, up to 10 times.
+ *
+ * If booking events are enabled, the sweep queues a cancel event (amount 0) per expired hold in
+ * event_outbox, for the {@link EventOutboxRelay} to publish.
+ *
+ * In a sharded deployment one sweeper runs per shard. Seats are then returned to the shards that
+ * own the flights' capacity rows right after the sweep commits, one UPDATE per owning shard.
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.hold_ttl_seconds   hold lifetime of an unpaid reservation, 0 disables expiry (default 0)
+ * flightapp.hold_sweep_seconds delay between sweeps (default 60)
+ * flightapp.hold_batch_size    maximum reservations expired per transaction (default 500)
+ */
+public class HoldExpiry implements Runnable {
+  private static final int MAX_ATTEMPTS = 10;
+
+  // Returns the rid, owner and flights of every hold it expires; %s is the outbox insert, if any
+  private static final String EXPIRE_HOLDS_SQL =
+      "SET NOCOUNT ON;"
+      + "DECLARE @holds TABLE (rid int PRIMARY KEY, username varchar(20));"
+      + "DECLARE @users TABLE (username varchar(20) PRIMARY KEY);"
+      + "DECLARE @expired TABLE (rid int PRIMARY KEY, username varchar(20), fid1 int, fid2 int);"
+      + "DECLARE @user varchar(20), @locked int;"
+      + "INSERT INTO @holds SELECT TOP (?) rid, username FROM RESERVATIONS WITH (READPAST) "
+      + "WHERE paid = 0 AND canceled = 0 AND booked_at < DATEADD(second, -?, SYSUTCDATETIME());"
+      + "INSERT INTO @users SELECT DISTINCT username FROM @holds;"
+      + "SELECT @user = MIN(username) FROM @users;"
+      + "WHILE @user IS NOT NULL BEGIN "
+      + "SELECT @locked = COUNT(*) FROM USERS WITH (UPDLOCK) WHERE username = @user;"
+      + "SELECT @user = MIN(username) FROM @users WHERE username > @user; END;"
+      + "UPDATE R SET canceled = 1 OUTPUT INSERTED.rid, INSERTED.username, INSERTED.fid1, "
+      + "INSERTED.fid2 INTO @expired FROM RESERVATIONS AS R WITH (READPAST) "
+      + "JOIN @holds AS H ON R.rid = H.rid WHERE R.paid = 0 AND R.canceled = 0;"
+      + "UPDATE USERS SET res_version = res_version + 1, booked_days = " + JdbcStorage.BOOKED_DAYS_SQL
+      + " WHERE username IN (SELECT username FROM @expired);"
+      + "%s"
+      + "SELECT rid, username, fid1, fid2 FROM @expired;";
+  private static final String QUEUE_EVENTS_SQL =
+      "INSERT INTO EVENT_OUTBOX (type, rid, username, fid1, fid2, amount) "
+      + "SELECT " + EventLog.CANCEL + ", rid, username, fid1, fid2, 0 FROM @expired;";
+
+  private final Connection conn;
+  private final ShardMap shardMap;
+  private final Connection[] shardConns;
+  private final int ttlSeconds;
+  private final int batchSize;
+  private final PreparedStatement expireHolds;
+
+  public HoldExpiry(Connection conn, int ttlSeconds, int batchSize) throws SQLException {
+    this(conn, null, null, ttlSeconds, batchSize);
+  }
+
+  /**
+   * Creates the sweeper of one shard; {@code shardConns} are used to release seats on the shards
+   * that own them.
+   */
+  public HoldExpiry(Connection conn, ShardMap shardMap, Connection[] shardConns, int ttlSeconds,
+      int batchSize) throws SQLException {
+    this.conn = conn;
+    this.shardMap = shardMap;
+    this.shardConns = shardConns;
+    this.ttlSeconds = ttlSeconds;
+    this.batchSize = batchSize;
+    // READPAST is only allowed below REPEATABLE READ; the sweep itself is a single UPDATE.
+    conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+    expireHolds = conn.prepareStatement(
+        String.format(EXPIRE_HOLDS_SQL, EventLog.enabled() ? QUEUE_EVENTS_SQL : ""));
+  }
+
+  /**
+   * Starts a sweeper on its own connection if flightapp.hold_ttl_seconds is set.
+   *
+   * @return the scheduler running the sweeps, which closes their connections when it terminates,
+   *         or null if hold expiry is disabled
+   */
+  public static ScheduledExecutorService start() throws SQLException, IOException {
+    int ttl = Integer.parseInt(Query.getSetting("flightapp.hold_ttl_seconds", "0"));
+    if (ttl <= 0) {
+      return null;
+    }
+    int period = Integer.parseInt(Query.getSetting("flightapp.hold_sweep_seconds", "60"));
+    int batch = Integer.parseInt(Query.getSetting("flightapp.hold_batch_size", "500"));
+    List<HoldExpiry> sweepers = new ArrayList<>();
+    ShardMap shardMap = ShardMap.fromSettings();
+    if (shardMap == null) {
+      sweepers.add(new HoldExpiry(Query.openConnectionFromDbConn(), ttl, batch));
+    } else {
+      Connection[] shardConns = new Connection[shardMap.size()];
+      for (int i = 0; i < shardConns.length; i++) {
+        shardConns[i] = shardMap.open(i);
+      }
+      for (Connection shardConn : shardConns) {
+        sweepers.add(new HoldExpiry(shardConn, shardMap, shardConns, ttl, batch));
+      }
+    }
+    ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread t = new Thread(r, "hold-expiry");
+      t.setDaemon(true);
+      return t;
+    }) {
+      @Override
+      protected void terminated() {
+        for (HoldExpiry sweeper : sweepers) {
+          try {
+            sweeper.close();
+          } catch (SQLException e) {
+            e.printStackTrace();
+          }
+        }
+      }
+    };
+    scheduler.scheduleWithFixedDelay(() -> sweepers.forEach(HoldExpiry::run), period, period,
+        TimeUnit.SECONDS);
+    return scheduler;
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (sweep() == batchSize) {
+        // a full batch means more holds may have expired; keep draining
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Expires one batch of holds and releases their seats in a single transaction.
+   *
+   * @return the number of reservations expired
+   */
+  public int sweep() throws SQLException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        conn.setAutoCommit(false);
+        Map<Integer, Integer> released = new HashMap<>();
+        int expired = 0;
+        expireHolds.clearParameters();
+        expireHolds.setInt(1, batchSize);
+        expireHolds.setInt(2, ttlSeconds);
+        try (ResultSet rs = expireHolds.executeQuery()) {
+          while (rs.next()) {
+            expired++;
+            int fid1 = rs.getInt("fid1");
+            int fid2 = rs.getInt("fid2");
+            released.merge(fid1, 1, Integer::sum);
+            if (fid2 != -1) {
+              released.merge(fid2, 1, Integer::sum);
+            }
+          }
+        }
+        if (shardMap == null && !released.isEmpty()) {
+          releaseSeats(conn, released);
+        }
+        conn.commit();
+        if (shardMap != null && !released.isEmpty()) {
+          conn.setAutoCommit(true);
+          releaseRemoteSeats(released);
+        }
+        return expired;
+      } catch (SQLException e) {
+        if (conn.getAutoCommit()) {
+          // the sweep committed and only returning seats to other shards failed; rerunning would
+          // expire the next batch instead
+          throw e;
+        }
+        conn.rollback();
+        if (!JdbcStorage.isDeadLock(e) || attempt == MAX_ATTEMPTS) {
+          throw e;
+        }
+      } finally {
+        conn.setAutoCommit(true);
+      }
+    }
+  }
+
+  /**
+   * Adds the released seat counts to every affected flight with one UPDATE ... FROM (VALUES ...).
+   */
+  static void releaseSeats(Connection conn, Map<Integer, Integer> released)
+      throws SQLException {
+    String rows = String.join(",", Collections.nCopies(released.size(), "(?,?)"));
+    String sql = "UPDATE C SET freeSeat = C.freeSeat + V.n FROM capacity AS C "
+        + "JOIN (VALUES " + rows + ") AS V(fid, n) ON C.fid = V.fid";
+    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+      int p = 1;
+      for (Map.Entry<Integer, Integer> e : released.entrySet()) {
+        ps.setInt(p++, e.getKey());
+        ps.setInt(p++, e.getValue());
+      }
+      ps.executeUpdate();
+    }
+  }
+
+  /**
+   * Groups released seats by the shard owning each flight's capacity and releases them there. Runs
+   * after the expiry committed, so a failure leaves seats held rather than oversold.
+   */
+  private void releaseRemoteSeats(Map<Integer, Integer> released) throws SQLException {
+    Map<Integer, Map<Integer, Integer>> byShard = new HashMap<>();
+    for (Map.Entry<Integer, Integer> e : released.entrySet()) {
+      byShard.computeIfAbsent(shardMap.capacityShardOf(e.getKey()), k -> new HashMap<>())
+          .put(e.getKey(), e.getValue());
+    }
+    for (Map.Entry<Integer, Map<Integer, Integer>> e : byShard.entrySet()) {
+      releaseSeats(shardConns[e.getKey()], e.getValue());
+    }
+  }
+
+  public void close() throws SQLException {
+    conn.close();
+  }
+}
@@ -0,0 +1,1067 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * {@link Storage} on SQL Server: one database, or one per shard with the session on its user's
+ * home shard (see {@link ShardMap}), optionally with a read replica for searches and flight lookups
+ * (see {@link ReplicaRouter}).
+ *
+ * Writers run at READ COMMITTED and take the locks they need explicitly: the user row (UPDLOCK),
+ * also for a debit, reservation rows WITH (UPDLOCK), and capacity rows WITH (UPDLOCK, HOLDLOCK).
+ * Reading a user's reservations uses snapshot isolation when the database allows it.
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.snapshot_reads      read reservations at snapshot isolation (default true)
+ * flightapp.search.connections  answer one-hop searches of often searched routes from the
+ *                               connections table instead of a Flights self-join (default true)
+ * flightapp.search.connections.min_searches     searches of a route and day in this process before
+ *                                               it is materialized (default 3)
+ * flightapp.search.connections.max_age_seconds  age at which a materialized route is dropped, to
+ *                                               be materialized again if still searched
+ *                                               (default 3600)
+ */
+class JdbcStorage implements Storage {
+  // DB Connection
+  private Connection conn;
+
+  // Sharded deployment: one connection per shard, conn is the session's home shard.
+  // shardMap is null when running against a single database.
+  private ShardMap shardMap;
+  private Connection[] shardConns;
+  private int currentShard;
+
+  // Read-only replica for searches and flight lookups, null when reads use the primary
+  private ReplicaRouter replicaRouter;
+
+  // Group commit: sessions opened from dbconn.properties hand book and pay to the shared
+  // GroupCommitter when it is enabled. The committer's own storage runs them with grouped set,
+  // inside its batch transaction and behind one savepoint each, and sets batchAborted when the
+  // batch transaction is lost (deadlock) and must be rerun.
+  private final boolean groupCommit;
+  boolean grouped;
+  boolean batchAborted;
+  private Savepoint savepoint;
+  // Booking events of the current transaction, batched on the outbox insert and written to
+  // event_outbox by commit(); null if there are none
+  private PreparedStatement queuedEvents;
+
+  // Remaining-seat statements, one per database (indexed by capacity-owning shard)
+  private CapacityStatements[] capacity;
+  // Seats the current transaction returns to flights owned by other shards, by shard and fid;
+  // released once the home shard has committed
+  private final SortedMap<Integer, SortedMap<Integer, Integer>> remoteReleases = new TreeMap<>();
+
+  // Statements of each connection, prepared on first use
+  private final Map<Connection, StatementCache> statementCaches = new IdentityHashMap<>();
+
+  private static final int WRITE_ISOLATION = Connection.TRANSACTION_READ_COMMITTED;
+
+  // Most reservation IDs bound in one IN-list; a statement takes at most 2100 parameters
+  private static final int MAX_IN_LIST = 2000;
+
+  static final int TRANSACTION_SNAPSHOT = 0x1000; // SQLServerConnection.TRANSACTION_SNAPSHOT
+  private static volatile boolean snapshotReads =
+      Boolean.parseBoolean(Query.getSetting("flightapp.snapshot_reads", "true"));
+
+  private static final boolean CONNECTIONS_TABLE =
+      Boolean.parseBoolean(Query.getSetting("flightapp.search.connections", "true"));
+  private static final int MIN_ROUTE_SEARCHES =
+      Integer.parseInt(Query.getSetting("flightapp.search.connections.min_searches", "3"));
+  private static final int ROUTE_MAX_AGE_SECONDS =
+      Integer.parseInt(Query.getSetting("flightapp.search.connections.max_age_seconds", "3600"));
+  // Aged-out routes dropped by each materialization
+  private static final int ROUTE_EVICTION_BATCH = 10;
+  // Searches per route and day in this process, forgotten once this many routes are counted
+  private static final int MAX_COUNTED_ROUTES = 10000;
+  private static final Map<String, Integer> routeSearches = new ConcurrentHashMap<>();
+
+  // Bitmap of the days with an active reservation, recomputed for users.booked_days
+  static final String BOOKED_DAYS_SQL = "(SELECT COALESCE(SUM(DISTINCT POWER(2, F.day_of_month - 1)), 0) "
+      + "FROM RESERVATIONS AS R JOIN FLIGHTS AS F ON F.fid = R.fid1 "
+      + "WHERE R.username = USERS.username AND R.canceled = 0)";
+
+  // Current balance of user U: the compacted users.balance plus the deltas not yet folded into it
+  static final String BALANCE_SQL = "(U.balance + (SELECT COALESCE(SUM(L.delta), 0) "
+      + "FROM LEDGER AS L WHERE L.username = U.username))";
+
+  // For check dangling
+  private static final String TRANCOUNT_SQL = "SELECT @@TRANCOUNT AS tran_count";
+  private static final String CHECK_USERNAME_SQL =
+      "SELECT * FROM USERS WHERE Username = ?";
+  static final String LOCK_USER_SQL =
+      "SELECT U.booked_days, " + BALANCE_SQL + " AS balance FROM USERS AS U WITH (UPDLOCK) WHERE U.username = ?";
+  private static final String INSERT_USER_SQL =
+      "INSERT INTO users (username, hash, salt, balance) VALUES(?,?,?,?)";
+  static final String LIST_VALID_RESERVATION_SQL =
+      "SELECT * FROM RESERVATIONS WHERE username = ? AND canceled = 0";
+  static final String LIST_SINGLE_VALID_RESERVATION_SQL =
+      "SELECT * FROM RESERVATIONS WITH (UPDLOCK) WHERE username = ? AND canceled = 0 AND rid = ?";
+  // Appends the debit only if it leaves the balance at or above the floor of 0, and returns the
+  // balance before it. The user row is locked before the ledger is read, like every writer of both
+  // does: it keeps other debits and the compactor off this user until the transaction ends.
+  private static final String DEBIT_BALANCE_SQL = "SET NOCOUNT ON; "
+      + "DECLARE @balance int = (SELECT balance FROM USERS WITH (UPDLOCK) WHERE username = ?); "
+      + "SET @balance = @balance + (SELECT COALESCE(SUM(delta), 0) FROM LEDGER WHERE username = ?); "
+      + "IF @balance - ? >= 0 INSERT INTO LEDGER (username, delta) VALUES(?, -?); "
+      + "SELECT @balance AS balance";
+  private static final String CREDIT_BALANCE_SQL =
+      "INSERT INTO LEDGER (username, delta) VALUES(?,?)";
+  private static final String QUEUE_EVENT_SQL = "INSERT INTO EVENT_OUTBOX "
+      + "(type, rid, username, fid1, fid2, amount) VALUES(?,?,?,?,?,?)";
+  private static final String FLIGHT_INFO_SQL =
+      "SELECT * FROM Flights WHERE fid = ?";
+  private static final String DELETE_RESERVATION_SQL =
+      "DELETE FROM RESERVATIONS WHERE rid = ?";
+  private static final String GET_RESERVATION_VERSION_SQL =
+      "SELECT res_version FROM USERS WHERE username = ?";
+  private static final String BUMP_RESERVATION_VERSION_SQL =
+      "UPDATE USERS SET res_version = res_version + 1, booked_days = booked_days | ? OUTPUT INSERTED.res_version WHERE username = ?";
+  private static final String MARK_BOOKED_DAY_SQL =
+      "UPDATE USERS SET res_version = res_version + 1, booked_days = booked_days | ? WHERE username = ?";
+  private static final String REBUILD_BOOKED_DAYS_SQL =
+      "UPDATE USERS SET res_version = res_version + 1, booked_days = " + BOOKED_DAYS_SQL + " OUTPUT INSERTED.res_version WHERE username = ?";
+  // Searches of a route and day; the SearchFilter predicates and the ORDER BY are appended
+  static final String DIRECT_SEARCH_SQL = "SELECT TOP (?) "
+      + "fid, day_of_month,carrier_id,flight_num,origin_city,dest_city,actual_time,capacity,price "
+      + "FROM Flights WHERE origin_city = ? AND dest_city = ? AND canceled = 0 AND day_of_month = ?";
+  static final String ONE_HOP_SEARCH_SQL = "SELECT TOP (?) "
+      + "f1.fid as f1_fid, f1.day_of_month as f1_day_of_month, f1.carrier_id as f1_carrier_id, f1.flight_num as f1_flight_num, f1.origin_city as f1_origin_city, f1.dest_city as f1_dest_city, f1.actual_time as f1_actual_time, f1.capacity as f1_capacity, f1.price as f1_price, "
+      + "f2.fid as f2_fid, f2.day_of_month as f2_day_of_month, f2.carrier_id as f2_carrier_id, f2.flight_num as f2_flight_num, f2.origin_city as f2_origin_city, f2.dest_city as f2_dest_city, f2.actual_time as f2_actual_time, f2.capacity as f2_capacity, f2.price as f2_price "
+      + "FROM Flights as f1, Flights as f2 WHERE f1.origin_city = ? AND f2.dest_city = ? "
+      + "AND f1.dest_city = f2.origin_city AND f1.day_of_month = f2.day_of_month AND f1.day_of_month = ? "
+      + "AND f1.canceled = 0 and f2.canceled = 0";
+  // One-hop connections of a materialized route and day, shortest first; see
+  // materializeConnections. The marker row is held for the statement, so an eviction cannot delete
+  // the pairs halfway through the read; an evicted route returns no rows.
+  private static final String ONE_HOP_CONNECTIONS_SQL = "SELECT TOP (?) "
+      + "f1.fid as f1_fid, f1.day_of_month as f1_day_of_month, f1.carrier_id as f1_carrier_id, f1.flight_num as f1_flight_num, f1.origin_city as f1_origin_city, f1.dest_city as f1_dest_city, f1.actual_time as f1_actual_time, f1.capacity as f1_capacity, f1.price as f1_price, "
+      + "f2.fid as f2_fid, f2.day_of_month as f2_day_of_month, f2.carrier_id as f2_carrier_id, f2.flight_num as f2_flight_num, f2.origin_city as f2_origin_city, f2.dest_city as f2_dest_city, f2.actual_time as f2_actual_time, f2.capacity as f2_capacity, f2.price as f2_price "
+      + "FROM CONNECTION_ROUTES AS R WITH (REPEATABLEREAD) JOIN CONNECTIONS AS C ON C.origin_city = R.origin_city "
+      + "AND C.dest_city = R.dest_city AND C.day_of_month = R.day_of_month "
+      + "JOIN FLIGHTS AS f1 ON f1.fid = C.fid1 JOIN FLIGHTS AS f2 ON f2.fid = C.fid2 "
+      + "WHERE R.origin_city = ? AND R.dest_city = ? AND R.day_of_month = ?";
+  private static final String ONE_HOP_CONNECTIONS_ORDER = " ORDER BY C.total_time, C.fid1, C.fid2";
+  // Returns whether the route is materialized, materializing it first if asked to. The unlocked
+  // check keeps searches of a materialized route from serializing on its row. The marker is
+  // inserted before the pairs are read from Flights, without locks on Flights: the flights trigger
+  // waits for the marker and redoes the pairs of any flight changed meanwhile. Up to
+  // ROUTE_EVICTION_BATCH routes older than the maximum age are dropped in the same transaction,
+  // skipping any a search is reading.
+  private static final String MATERIALIZE_CONNECTIONS_SQL = "SET NOCOUNT ON; SET XACT_ABORT ON; "
+      + "DECLARE @origin varchar(34) = ?, @dest varchar(34) = ?, @day int = ?, @create bit = ?, "
+      + "@evict int = ?, @max_age int = ?; "
+      + "IF @create = 1 AND NOT EXISTS (SELECT * FROM CONNECTION_ROUTES WHERE origin_city = @origin AND dest_city = @dest AND day_of_month = @day) BEGIN "
+      + "BEGIN TRANSACTION; "
+      + "IF NOT EXISTS (SELECT * FROM CONNECTION_ROUTES WITH (UPDLOCK, HOLDLOCK) WHERE origin_city = @origin AND dest_city = @dest AND day_of_month = @day) BEGIN "
+      + "INSERT INTO CONNECTION_ROUTES (origin_city, dest_city, day_of_month) VALUES(@origin, @dest, @day); "
+      + "INSERT INTO CONNECTIONS (origin_city, dest_city, day_of_month, total_time, fid1, fid2) "
+      + "SELECT f1.origin_city, f2.dest_city, f1.day_of_month, f1.actual_time + f2.actual_time, f1.fid, f2.fid "
+      + "FROM FLIGHTS AS f1 JOIN FLIGHTS AS f2 "
+      + "ON f1.dest_city = f2.origin_city AND f1.day_of_month = f2.day_of_month "
+      + "WHERE f1.origin_city = @origin AND f2.dest_city = @dest AND f1.day_of_month = @day AND f1.canceled = 0 AND f2.canceled = 0; "
+      + "DECLARE @aged TABLE (origin_city varchar(34), dest_city varchar(34), day_of_month int); "
+      + "DELETE TOP (@evict) FROM CONNECTION_ROUTES WITH (READPAST) "
+      + "OUTPUT DELETED.origin_city, DELETED.dest_city, DELETED.day_of_month INTO @aged "
+      + "WHERE materialized_at < DATEADD(second, -@max_age, SYSUTCDATETIME()); "
+      + "DELETE C FROM CONNECTIONS AS C JOIN @aged AS A ON C.origin_city = A.origin_city "
+      + "AND C.dest_city = A.dest_city AND C.day_of_month = A.day_of_month; END "
+      + "COMMIT TRANSACTION; END "
+      + "SELECT CASE WHEN EXISTS (SELECT * FROM CONNECTION_ROUTES WHERE origin_city = @origin AND dest_city = @dest AND day_of_month = @day) "
+      + "THEN 1 ELSE 0 END AS ready";
+
+  /**
+   * Connects as configured in dbconn.properties: sharded if shards are configured, otherwise to
+   * one database with the optional read replica and group commit.
+   */
+  JdbcStorage() throws SQLException, IOException {
+    this(null, null, null, null);
+  }
+
+  JdbcStorage(String serverURL, String dbName, String adminName, String password)
+      throws SQLException, IOException {
+    shardMap = serverURL == null ? ShardMap.fromSettings() : null;
+    groupCommit = serverURL == null && shardMap == null;
+    if (shardMap != null) {
+      shardConns = new Connection[shardMap.size()];
+      capacity = new CapacityStatements[shardMap.size()];
+      for (int i = 0; i < shardConns.length; i++) {
+        shardConns[i] = shardMap.open(i);
+        capacity[i] = new CapacityStatements(statementCache(shardConns[i]));
+      }
+      conn = shardConns[0];
+    } else {
+      conn = serverURL == null ? Query.openConnectionFromDbConn()
+          : Query.openConnectionFromCredential(serverURL, dbName, adminName, password);
+      capacity = new CapacityStatements[] { new CapacityStatements(statementCache(conn)) };
+      replicaRouter = serverURL == null ? ReplicaRouter.fromSettings() : null;
+    }
+  }
+
+  /**
+   * The connection to the current (home) shard.
+   */
+  Connection connection() {
+    return conn;
+  }
+
+  /**
+   * Returns the statement for {@code sql} on the current connection, preparing it on first use.
+   */
+  private PreparedStatement statement(String sql) throws SQLException {
+    return statementCache(conn).get(sql);
+  }
+
+  private StatementCache statementCache(Connection c) {
+    return statementCaches.computeIfAbsent(c, StatementCache::new);
+  }
+
+  /**
+   * In a sharded deployment, moves the session to the shard that stores {@code username}. No-op
+   * when running against a single database.
+   */
+  private void useHomeShard(String username) {
+    if (shardMap == null) {
+      return;
+    }
+    int shard = shardMap.shardOf(username);
+    if (shard != currentShard) {
+      conn = shardConns[shard];
+      currentShard = shard;
+    }
+  }
+
+  /**
+   * Sets the isolation level of the next transaction, skipping the round trip if unchanged.
+   */
+  private void useIsolation(int level) throws SQLException {
+    if (conn.getTransactionIsolation() != level) {
+      conn.setTransactionIsolation(level);
+    }
+  }
+
+  /**
+   * Prepares a single-statement read of {@code username}'s rows on their home shard.
+   */
+  private void readAs(String username) throws SQLException {
+    useHomeShard(username);
+    if (conn.getAutoCommit()) {
+      useIsolation(Connection.TRANSACTION_READ_COMMITTED);
+    }
+  }
+
+  // Transactions
+
+  /**
+   * Starts a transaction on {@code username}'s home shard. When grouped, the transaction is the
+   * committer's batch and this only marks a savepoint.
+   */
+  public void begin(String username) throws SQLException {
+    if (grouped) {
+      savepoint = conn.setSavepoint();
+      return;
+    }
+    useHomeShard(username);
+    useIsolation(WRITE_ISOLATION);
+    conn.setAutoCommit(false);
+  }
+
+  /**
+   * Commits what {@link #begin} started; when grouped the committer commits the whole batch.
+   */
+  public void commit() throws SQLException {
+    if (queuedEvents != null) {
+      try {
+        queuedEvents.executeBatch();
+      } finally {
+        discardQueuedEvents();
+      }
+    }
+    if (!grouped) {
+      commitCapacity();
+      conn.commit();
+      conn.setAutoCommit(true);
+      releaseRemoteSeats();
+    }
+    savepoint = null;
+  }
+
+  /**
+   * Rolls back what {@link #begin} started. When grouped, only this request's work is undone; if
+   * that fails the batch transaction is gone and the batch is marked aborted.
+   */
+  public void rollback() throws SQLException {
+    discardQueuedEvents();
+    if (!grouped) {
+      rollbackCapacity();
+      remoteReleases.clear();
+      if (!conn.getAutoCommit()) {
+        conn.rollback();
+        conn.setAutoCommit(true);
+      }
+      return;
+    }
+    try {
+      if (savepoint != null) {
+        conn.rollback(savepoint);
+      }
+    } catch (SQLException e) {
+      batchAborted = true;
+      throw e;
+    } finally {
+      savepoint = null;
+    }
+  }
+
+  /**
+   * Rolls back after {@code e}. A deadlock is retried, unless grouped: then the whole batch
+   * transaction is lost and the committer reruns it. Duplicate keys are an expected outcome and
+   * not reported.
+   */
+  public boolean abort(SQLException e) {
+    if (grouped && isDeadLock(e)) {
+      batchAborted = true;
+      savepoint = null;
+      return false;
+    }
+    try {
+      rollback();
+    } catch (SQLException e2) {
+      e2.printStackTrace();
+      return false;
+    }
+    if (isDeadLock(e)) {
+      return true;
+    }
+    if (!isDuplicateKey(e)) {
+      e.printStackTrace();
+    }
+    return false;
+  }
+
+  /**
+   * Throw IllegalStateException if transaction not completely complete, rollback.
+   *
+   */
+  public void checkDanglingTransaction() {
+    if (grouped) {
+      // the batch transaction stays open until the committer commits it
+      return;
+    }
+    try {
+      PreparedStatement tranCountStatement = statement(TRANCOUNT_SQL);
+      try (ResultSet rs = tranCountStatement.executeQuery()) {
+        rs.next();
+        int count = rs.getInt("tran_count");
+        if (count > 0) {
+          throw new IllegalStateException(
+              "Transaction not fully commit/rollback. Number of transaction in process: " + count);
+        }
+      } finally {
+        conn.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      throw new IllegalStateException("Database error", e);
+    }
+  }
+
+  /**
+   * Events go to the event_outbox table with the transaction, for the {@link EventOutboxRelay} to
+   * publish; the rid is stored shard-local, as the relay expects.
+   */
+  public void queueEvent(byte type, int rid, String username, int fid1, int fid2, int amount)
+      throws SQLException {
+    if (queuedEvents == null) {
+      queuedEvents = statement(QUEUE_EVENT_SQL);
+    }
+    queuedEvents.setByte(1, type);
+    queuedEvents.setInt(2, localRid(rid));
+    queuedEvents.setString(3, username);
+    queuedEvents.setInt(4, fid1);
+    queuedEvents.setInt(5, fid2);
+    queuedEvents.setInt(6, amount);
+    queuedEvents.addBatch();
+  }
+
+  /**
+   * Drops the events queued since the last commit, of a transaction or request that is undone.
+   */
+  void discardQueuedEvents() throws SQLException {
+    if (queuedEvents != null) {
+      PreparedStatement events = queuedEvents;
+      queuedEvents = null;
+      events.clearBatch();
+    }
+  }
+
+  public boolean batched() {
+    return grouped;
+  }
+
+  public GroupCommitter committer() {
+    return groupCommit && !grouped ? GroupCommitter.shared() : null;
+  }
+
+  public BookingCombiner combiner() {
+    return groupCommit && !grouped ? BookingCombiner.shared() : null;
+  }
+
+  // Flights
+
+  public Query.Flight flight(int fid) throws SQLException {
+    if (readConnection() != conn) {
+      try {
+        return flight(replicaRouter.flightInfo(), fid);
+      } catch (SQLException e) {
+        replicaRouter.failed(e);
+      }
+    }
+    return flight(statement(FLIGHT_INFO_SQL), fid);
+  }
+
+  private static Query.Flight flight(PreparedStatement flightInfo, int fid) throws SQLException {
+    flightInfo.clearParameters();
+    flightInfo.setInt(1, fid);
+    try (ResultSet rs = flightInfo.executeQuery()) {
+      rs.next();
+      return flight(rs, "");
+    }
+  }
+
+  /**
+   * Reads the flight columns named {@code prefix} + column of the current row.
+   */
+  private static Query.Flight flight(ResultSet rs, String prefix) throws SQLException {
+    Query.Flight f = new Query.Flight();
+    f.fid = rs.getInt(prefix + "fid");
+    f.dayOfMonth = rs.getInt(prefix + "day_of_month");
+    f.carrierId = rs.getString(prefix + "carrier_id");
+    f.flightNum = rs.getString(prefix + "flight_num");
+    f.originCity = rs.getString(prefix + "origin_city");
+    f.destCity = rs.getString(prefix + "dest_city");
+    f.time = rs.getInt(prefix + "actual_time");
+    f.capacity = rs.getInt(prefix + "capacity");
+    f.price = rs.getInt(prefix + "price");
+    return f;
+  }
+
+  /**
+   * Returns the replica connection if one is configured and usable, otherwise the primary.
+   */
+  private Connection readConnection() {
+    return replicaRouter == null ? conn : replicaRouter.reader(conn);
+  }
+
+  /**
+   * Forgets the statements of a replica connection that failed; reads go to the primary until the
+   * router reconnects.
+   */
+  private void replicaFailed(Connection reader, SQLException e) {
+    replicaRouter.failed(e);
+    statementCaches.remove(reader);
+  }
+
+  public List<Query.Flight> directFlights(String originCity, String destCity, int dayOfMonth,
+      int limit, SearchFilter filter) throws SQLException {
+    Connection reader = readConnection();
+    if (reader != conn) {
+      try {
+        return directFlights(reader, originCity, destCity, dayOfMonth, limit, filter);
+      } catch (SQLException e) {
+        replicaFailed(reader, e);
+      }
+    }
+    useIsolation(Connection.TRANSACTION_READ_COMMITTED);
+    return directFlights(conn, originCity, destCity, dayOfMonth, limit, filter);
+  }
+
+  private List<Query.Flight> directFlights(Connection reader, String originCity, String destCity,
+      int dayOfMonth, int limit, SearchFilter filter) throws SQLException {
+    PreparedStatement directSearch = statementCache(reader).get(
+        DIRECT_SEARCH_SQL + filter.where("actual_time", "") + " ORDER BY actual_time ASC");
+    directSearch.clearParameters();
+    directSearch.setInt(1, limit);
+    directSearch.setString(2, originCity);
+    directSearch.setString(3, destCity);
+    directSearch.setInt(4, dayOfMonth);
+    filter.bind(directSearch, 5, 1);
+    List<Query.Flight> flights = new ArrayList<>();
+    try (ResultSet rs = directSearch.executeQuery()) {
+      while (rs.next()) {
+        flights.add(flight(rs, ""));
+      }
+    }
+    return flights;
+  }
+
+  public List<Query.Flight[]> oneHopFlights(String originCity, String destCity, int dayOfMonth,
+      int limit, SearchFilter filter) throws SQLException {
+    Connection reader = readConnection();
+    if (reader != conn) {
+      try {
+        return oneHopFlights(reader, originCity, destCity, dayOfMonth, limit, filter);
+      } catch (SQLException e) {
+        replicaFailed(reader, e);
+      }
+    }
+    useIsolation(Connection.TRANSACTION_READ_COMMITTED);
+    return oneHopFlights(conn, originCity, destCity, dayOfMonth, limit, filter);
+  }
+
+  private List<Query.Flight[]> oneHopFlights(Connection reader, String originCity,
+      String destCity, int dayOfMonth, int limit, SearchFilter filter) throws SQLException {
+    if (CONNECTIONS_TABLE && reader == conn
+        && materializeConnections(originCity, destCity, dayOfMonth)) {
+      List<Query.Flight[]> pairs = oneHopFlights(statement(ONE_HOP_CONNECTIONS_SQL
+          + filter.where("C.total_time", "f1.", "f2.") + ONE_HOP_CONNECTIONS_ORDER),
+          originCity, destCity, dayOfMonth, limit, filter);
+      // Nothing found may also mean the route was just evicted; the self-join tells them apart
+      if (!pairs.isEmpty()) {
+        return pairs;
+      }
+    }
+    return oneHopFlights(statementCache(reader).get(ONE_HOP_SEARCH_SQL
+        + filter.where("f1.actual_time + f2.actual_time", "f1.", "f2.")
+        + " ORDER BY f1.actual_time+f2.actual_time ASC"),
+        originCity, destCity, dayOfMonth, limit, filter);
+  }
+
+  private List<Query.Flight[]> oneHopFlights(PreparedStatement oneHop, String originCity,
+      String destCity, int dayOfMonth, int limit, SearchFilter filter) throws SQLException {
+    oneHop.clearParameters();
+    oneHop.setInt(1, limit);
+    oneHop.setString(2, originCity);
+    oneHop.setString(3, destCity);
+    oneHop.setInt(4, dayOfMonth);
+    filter.bind(oneHop, 5, 2);
+    List<Query.Flight[]> pairs = new ArrayList<>();
+    try (ResultSet rs = oneHop.executeQuery()) {
+      while (rs.next()) {
+        pairs.add(new Query.Flight[] { flight(rs, "f1_"), flight(rs, "f2_") });
+      }
+    }
+    return pairs;
+  }
+
+  /**
+   * Whether the connections table holds the pairs of a route and day. A route not yet there is
+   * filled once this process has searched it {@link #MIN_ROUTE_SEARCHES} times; from then on the
+   * flights trigger keeps it current until it ages out.
+   *
+   * @return false if the route is not (yet) materialized, or materializing it deadlocked with a
+   *         change to Flights, in which case the caller falls back to the self-join
+   */
+  private boolean materializeConnections(String originCity, String destinationCity,
+      int dayOfMonth) throws SQLException {
+    if (routeSearches.size() > MAX_COUNTED_ROUTES) {
+      routeSearches.clear();
+    }
+    int searches = routeSearches.merge(originCity + "|" + destinationCity + "|" + dayOfMonth, 1,
+        Integer::sum);
+    PreparedStatement materialize = statement(MATERIALIZE_CONNECTIONS_SQL);
+    materialize.clearParameters();
+    materialize.setString(1, originCity);
+    materialize.setString(2, destinationCity);
+    materialize.setInt(3, dayOfMonth);
+    materialize.setBoolean(4, searches >= MIN_ROUTE_SEARCHES);
+    materialize.setInt(5, ROUTE_EVICTION_BATCH);
+    materialize.setInt(6, ROUTE_MAX_AGE_SECONDS);
+    try (ResultSet rs = materialize.executeQuery()) {
+      rs.next();
+      return rs.getBoolean("ready");
+    } catch (SQLException e) {
+      if (isDeadLock(e)) {
+        return false;
+      }
+      throw e;
+    }
+  }
+
+  public CityIndex cities() throws SQLException {
+    return CityIndex.shared(conn);
+  }
+
+  // Users
+
+  public UserRow user(String username) throws SQLException {
+    readAs(username);
+    PreparedStatement checkUsername = statement(CHECK_USERNAME_SQL);
+    checkUsername.clearParameters();
+    checkUsername.setString(1, username);
+    try (ResultSet rs = checkUsername.executeQuery()) {
+      if (!rs.next()) {
+        return null;
+      }
+      return new UserRow(rs.getString("username"), rs.getBytes("hash"), rs.getBytes("salt"));
+    }
+  }
+
+  /**
+   * A concurrent create of the same name fails on the primary key, so no range lock is needed.
+   */
+  public boolean insertUser(String username, byte[] hash, byte[] salt, int balance)
+      throws SQLException {
+    PreparedStatement insertUser = statement(INSERT_USER_SQL);
+    insertUser.clearParameters();
+    insertUser.setString(1, username);
+    insertUser.setBytes(2, hash);
+    insertUser.setBytes(3, salt);
+    insertUser.setInt(4, balance);
+    try {
+      insertUser.executeUpdate();
+      return true;
+    } catch (SQLException e) {
+      if (isDuplicateKey(e)) {
+        return false;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Book takes this lock first, which serializes one user's same-day checks without range locks.
+   */
+  public int lockUser(String username) throws SQLException {
+    PreparedStatement lockUser = statement(LOCK_USER_SQL);
+    lockUser.clearParameters();
+    lockUser.setString(1, username);
+    try (ResultSet rs = lockUser.executeQuery()) {
+      rs.next();
+      return rs.getInt("booked_days");
+    }
+  }
+
+  public int debit(String username, int amount) throws SQLException {
+    PreparedStatement debitBalance = statement(DEBIT_BALANCE_SQL);
+    debitBalance.clearParameters();
+    debitBalance.setString(1, username);
+    debitBalance.setString(2, username);
+    debitBalance.setInt(3, amount);
+    debitBalance.setString(4, username);
+    debitBalance.setInt(5, amount);
+    try (ResultSet rs = debitBalance.executeQuery()) {
+      rs.next();
+      return rs.getInt("balance");
+    }
+  }
+
+  /**
+   * Credits never need the balance, so they are a blind insert that takes no user lock.
+   */
+  public void credit(String username, int amount) throws SQLException {
+    PreparedStatement creditBalance = statement(CREDIT_BALANCE_SQL);
+    creditBalance.clearParameters();
+    creditBalance.setString(1, username);
+    creditBalance.setInt(2, amount);
+    creditBalance.executeUpdate();
+  }
+
+  // Reservations
+
+  /**
+   * One multi-row insert.
+   */
+  public List<Integer> insertReservations(String username, int fid1, int fid2, int price,
+      int count) throws SQLException {
+    StringBuffer sql = new StringBuffer("INSERT INTO RESERVATIONS (username, fid1, fid2, paid, canceled, price) OUTPUT INSERTED.rid VALUES ");
+    for(int i = 0; i < count; i++){
+      sql.append(i == 0 ? "" : ",").append("(?,?,?,?,?,?)");
+    }
+    List<Integer> rids = new ArrayList<>();
+    // a single booking reuses its prepared statement, a group's is prepared for its size
+    PreparedStatement ps = count == 1 ? statement(sql.toString())
+        : conn.prepareStatement(sql.toString());
+    try {
+      int p = 1;
+      for(int i = 0; i < count; i++){
+        ps.setString(p++, username);
+        ps.setInt(p++, fid1);
+        ps.setInt(p++, fid2);
+        ps.setBoolean(p++, false);
+        ps.setBoolean(p++, false);
+        ps.setInt(p++, price);
+      }
+      try (ResultSet rs = ps.executeQuery()) {
+        while(rs.next()){
+          rids.add(globalRid(rs.getInt("rid")));
+        }
+      }
+    } finally {
+      if (count != 1) {
+        ps.close();
+      }
+    }
+    Collections.sort(rids);
+    return rids;
+  }
+
+  /**
+   * One multi-row insert.
+   */
+  public Map<String, Integer> insertReservations(List<NewReservation> rows) throws SQLException {
+    StringBuffer sql = new StringBuffer("INSERT INTO RESERVATIONS (username, fid1, fid2, paid, canceled, price) OUTPUT INSERTED.rid, INSERTED.username VALUES ");
+    for(int i = 0; i < rows.size(); i++){
+      sql.append(i == 0 ? "" : ",").append("(?,?,?,?,?,?)");
+    }
+    Map<String, Integer> rids = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+      int p = 1;
+      for (NewReservation r : rows) {
+        ps.setString(p++, r.username);
+        ps.setInt(p++, r.fid1);
+        ps.setInt(p++, r.fid2);
+        ps.setBoolean(p++, false);
+        ps.setBoolean(p++, false);
+        ps.setInt(p++, r.price);
+      }
+      try (ResultSet rs = ps.executeQuery()) {
+        while(rs.next()){
+          rids.put(rs.getString("username"), globalRid(rs.getInt("rid")));
+        }
+      }
+    }
+    return rids;
+  }
+
+  public ReservationRow reservation(String username, int rid) throws SQLException {
+    PreparedStatement listSingleValidReservation = statement(LIST_SINGLE_VALID_RESERVATION_SQL);
+    listSingleValidReservation.clearParameters();
+    listSingleValidReservation.setString(1, username);
+    listSingleValidReservation.setInt(2, localRid(rid));
+    try (ResultSet rs = listSingleValidReservation.executeQuery()) {
+      return rs.next() ? reservation(rs) : null;
+    }
+  }
+
+  private ReservationRow reservation(ResultSet rs) throws SQLException {
+    return new ReservationRow(globalRid(rs.getInt("rid")), rs.getInt("fid1"), rs.getInt("fid2"),
+        rs.getInt("price"), rs.getBoolean("paid"));
+  }
+
+  public List<ReservationRow> unpaidReservations(String username, Collection<Integer> rids)
+      throws SQLException {
+    String sql = "SELECT rid, fid1, fid2, price, paid FROM RESERVATIONS WITH (UPDLOCK) WHERE username = ? AND paid = 0 AND canceled = 0";
+    List<ReservationRow> unpaid = new ArrayList<>();
+    if(rids == null){
+      try (PreparedStatement ps = conn.prepareStatement(sql + " ORDER BY rid")) {
+        bindUserAndRids(ps, username, Collections.emptyList());
+        readReservations(ps, unpaid);
+      }
+      return unpaid;
+    }
+    // chunks go in increasing rid order, so the rows come back (and are locked) in ID order
+    for (List<Integer> chunk : inListChunks(rids)) {
+      try (PreparedStatement ps = conn.prepareStatement(
+          sql + " AND rid IN (" + placeholders(chunk.size()) + ") ORDER BY rid")) {
+        bindUserAndRids(ps, username, chunk);
+        readReservations(ps, unpaid);
+      }
+    }
+    return unpaid;
+  }
+
+  private void readReservations(PreparedStatement ps, List<ReservationRow> rows)
+      throws SQLException {
+    try (ResultSet rs = ps.executeQuery()) {
+      while(rs.next()){
+        rows.add(reservation(rs));
+      }
+    }
+  }
+
+  public void markPaid(String username, Collection<Integer> rids) throws SQLException {
+    for (List<Integer> chunk : inListChunks(rids)) {
+      try (PreparedStatement ps = conn.prepareStatement(
+          "UPDATE RESERVATIONS SET paid = 1 WHERE username = ? AND rid IN ("
+              + placeholders(chunk.size()) + ")")) {
+        bindUserAndRids(ps, username, chunk);
+        ps.executeUpdate();
+      }
+    }
+  }
+
+  /**
+   * Splits {@code rids}, in increasing order, into IN-lists of at most {@link #MAX_IN_LIST}.
+   */
+  private static List<List<Integer>> inListChunks(Collection<Integer> rids) {
+    List<Integer> sorted = new ArrayList<>(new TreeSet<>(rids));
+    List<List<Integer>> chunks = new ArrayList<>();
+    for (int i = 0; i < sorted.size(); i += MAX_IN_LIST) {
+      chunks.add(sorted.subList(i, Math.min(i + MAX_IN_LIST, sorted.size())));
+    }
+    return chunks;
+  }
+
+  private static String placeholders(int n) {
+    return String.join(",", Collections.nCopies(n, "?"));
+  }
+
+  /**
+   * Binds {@code username} to the first parameter and {@code rids} to the ones after it.
+   */
+  private void bindUserAndRids(PreparedStatement ps, String username, Collection<Integer> rids)
+      throws SQLException {
+    ps.setString(1, username);
+    int p = 2;
+    for(int rid : rids){
+      ps.setInt(p++, localRid(rid));
+    }
+  }
+
+  public void deleteReservation(String username, int rid) throws SQLException {
+    PreparedStatement deleteReservation = statement(DELETE_RESERVATION_SQL);
+    deleteReservation.clearParameters();
+    deleteReservation.setInt(1, localRid(rid));
+    deleteReservation.executeUpdate();
+  }
+
+  /**
+   * Reads at snapshot isolation when the database allows it, so the listing neither blocks on nor
+   * blocks the user's writers.
+   */
+  public ReservationList reservations(String username) throws SQLException {
+    useHomeShard(username);
+    useIsolation(snapshotReads ? TRANSACTION_SNAPSHOT : Connection.TRANSACTION_READ_COMMITTED);
+    conn.setAutoCommit(false);
+    try {
+      int version = reservationVersion(username);
+      List<ReservationRow> rows = new ArrayList<>();
+      PreparedStatement listValidReservation = statement(LIST_VALID_RESERVATION_SQL);
+      listValidReservation.clearParameters();
+      listValidReservation.setString(1, username);
+      try (ResultSet rs = listValidReservation.executeQuery()) {
+        while (rs.next()) {
+          rows.add(reservation(rs));
+        }
+      }
+      conn.commit();
+      conn.setAutoCommit(true);
+      rows.sort(Comparator.comparingInt(r -> r.rid));
+      return new ReservationList(version, rows);
+    } catch (SQLException e) {
+      conn.rollback();
+      conn.setAutoCommit(true);
+      if (snapshotReads && isSnapshotDisallowed(e)) {
+        System.err.println("Snapshot isolation is not enabled, reading at READ COMMITTED");
+        snapshotReads = false;
+        return reservations(username);
+      }
+      throw e;
+    }
+  }
+
+  public int reservationVersion(String username) throws SQLException {
+    useHomeShard(username);
+    PreparedStatement getReservationVersion = statement(GET_RESERVATION_VERSION_SQL);
+    getReservationVersion.clearParameters();
+    getReservationVersion.setString(1, username);
+    try (ResultSet rs = getReservationVersion.executeQuery()) {
+      rs.next();
+      return rs.getInt("res_version");
+    }
+  }
+
+  public int markBookedDays(String username, int dayBits) throws SQLException {
+    PreparedStatement bumpReservationVersion = statement(BUMP_RESERVATION_VERSION_SQL);
+    bumpReservationVersion.clearParameters();
+    bumpReservationVersion.setInt(1, dayBits);
+    bumpReservationVersion.setString(2, username);
+    try (ResultSet rs = bumpReservationVersion.executeQuery()) {
+      rs.next();
+      return rs.getInt("res_version");
+    }
+  }
+
+  public void markBookedDays(Map<String, Integer> dayBitsByUser) throws SQLException {
+    PreparedStatement markBookedDay = statement(MARK_BOOKED_DAY_SQL);
+    for (Map.Entry<String, Integer> user : dayBitsByUser.entrySet()) {
+      markBookedDay.setInt(1, user.getValue());
+      markBookedDay.setString(2, user.getKey());
+      markBookedDay.addBatch();
+    }
+    markBookedDay.executeBatch();
+  }
+
+  public int rebuildBookedDays(String username) throws SQLException {
+    PreparedStatement rebuildBookedDays = statement(REBUILD_BOOKED_DAYS_SQL);
+    rebuildBookedDays.clearParameters();
+    rebuildBookedDays.setString(1, username);
+    try (ResultSet rs = rebuildBookedDays.executeQuery()) {
+      rs.next();
+      return rs.getInt("res_version");
+    }
+  }
+
+  // Capacity
+
+  public int freeSeats(int fid) throws SQLException {
+    return capacityFor(fid).remaining(fid);
+  }
+
+  public void setFreeSeats(int fid, int freeSeats) throws SQLException {
+    capacityFor(fid).update(fid, freeSeats);
+  }
+
+  /**
+   * Seats owned by the home shard are returned in the transaction; seats owned by another shard
+   * only after it commits, see {@link #releaseRemoteSeats()}.
+   */
+  public void releaseSeats(int fid, int seats) throws SQLException {
+    if (shardMap == null) {
+      capacity[0].release(fid, seats);
+      return;
+    }
+    int shard = shardMap.capacityShardOf(fid);
+    if (shard == currentShard) {
+      capacity[shard].release(fid, seats);
+    } else {
+      remoteReleases.computeIfAbsent(shard, s -> new TreeMap<>()).merge(fid, seats, Integer::sum);
+    }
+  }
+
+  /**
+   * Returns the capacity statements of the database that owns flight {@code fid}'s capacity row.
+   * In a sharded deployment a remote owner joins the current transaction on its own connection,
+   * which {@link #commitCapacity()} or {@link #rollbackCapacity()} must then end.
+   */
+  private CapacityStatements capacityFor(int fid) throws SQLException {
+    if (shardMap == null) {
+      return capacity[0];
+    }
+    int shard = shardMap.capacityShardOf(fid);
+    if (shard != currentShard && shardConns[shard].getAutoCommit()) {
+      shardConns[shard].setAutoCommit(false);
+    }
+    return capacity[shard];
+  }
+
+  /**
+   * Commits the seats taken on other shards. Called right before conn.commit(), so a failure in
+   * between can only leave seats held without a reservation, never overbook a flight.
+   */
+  private void commitCapacity() throws SQLException {
+    if (shardConns == null) {
+      return;
+    }
+    for (int i = 0; i < shardConns.length; i++) {
+      if (i != currentShard && !shardConns[i].getAutoCommit()) {
+        shardConns[i].commit();
+        shardConns[i].setAutoCommit(true);
+      }
+    }
+  }
+
+  /**
+   * Returns the seats of {@link #releaseSeats} owned by other shards, each in its own autocommit
+   * update, after the home shard committed the reservation's removal. Like
+   * {@link HoldExpiry}, a failure here leaves seats held rather than oversold, and is only reported:
+   * the transaction has committed.
+   */
+  private void releaseRemoteSeats() {
+    for (Map.Entry<Integer, SortedMap<Integer, Integer>> shard : remoteReleases.entrySet()) {
+      for (Map.Entry<Integer, Integer> flight : shard.getValue().entrySet()) {
+        try {
+          capacity[shard.getKey()].release(flight.getKey(), flight.getValue());
+        } catch (SQLException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+    remoteReleases.clear();
+  }
+
+  private void rollbackCapacity() throws SQLException {
+    if (shardConns == null) {
+      return;
+    }
+    for (int i = 0; i < shardConns.length; i++) {
+      if (i != currentShard && !shardConns[i].getAutoCommit()) {
+        shardConns[i].rollback();
+        shardConns[i].setAutoCommit(true);
+      }
+    }
+  }
+
+  /**
+   * Converts a rid of the home shard's reservations table to a system-wide reservation ID.
+   */
+  private int globalRid(int localRid) {
+    return shardMap == null ? localRid : shardMap.globalRid(currentShard, localRid);
+  }
+
+  /**
+   * Converts a reservation ID to a rid of the home shard's reservations table (0 if none).
+   */
+  private int localRid(int rid) {
+    return shardMap == null ? rid : shardMap.localRid(currentShard, rid);
+  }
+
+  // Lifecycle
+
+  /**
+   * Clear the data in any custom tables created. schema_version is kept, since the tables'
+   * structure stays as migrated; the materialized connections are dropped with the search counts
+   * of this process, so routes are materialized again from scratch.
+   *
+   * WARNING! Do not drop any tables and do not clear the flights table.
+   */
+  public void clear() {
+    for (Connection c : (shardConns != null ? shardConns : new Connection[] { conn })) {
+      clearTables(c);
+    }
+    routeSearches.clear();
+  }
+
+  private static void clearTables(Connection conn) {
+    try {
+      Statement statement = conn.createStatement();
+      statement.executeUpdate("ALTER TABLE reservations\n" +
+              "DROP CONSTRAINT FK_username");
+      statement.executeUpdate("TRUNCATE TABLE users");
+      statement.executeUpdate("TRUNCATE TABLE reservations");
+      statement.executeUpdate("TRUNCATE TABLE capacity");
+      statement.executeUpdate("TRUNCATE TABLE ledger");
+      statement.executeUpdate("TRUNCATE TABLE event_outbox");
+      statement.executeUpdate("TRUNCATE TABLE connections");
+      statement.executeUpdate("TRUNCATE TABLE connection_routes");
+      statement.executeUpdate("ALTER TABLE reservations\n" +
+              "ADD CONSTRAINT FK_username\n" +
+              "FOREIGN KEY (username) REFERENCES users(username)");
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+  public void close() throws SQLException {
+    if (replicaRouter != null) {
+      replicaRouter.close();
+    }
+    if (shardConns != null) {
+      for (Connection c : shardConns) {
+        c.close();
+      }
+    } else {
+      conn.close();
+    }
+  }
+
+  /**
+   * Whether {@code ex} ended a lock wait that a rerun may get past: the transaction was a deadlock
+   * victim (1205), or waited longer than the shard connections' LOCK_TIMEOUT (1222), which also
+   * ends deadlocks spanning two shards that neither server can see.
+   */
+  static boolean isDeadLock(SQLException ex) {
+    return ex.getErrorCode() == 1205 || ex.getErrorCode() == 1222;
+  }
+
+  private static boolean isDuplicateKey(SQLException ex) {
+    return ex.getErrorCode() == 2627;
+  }
+
+  static boolean isSnapshotDisallowed(SQLException ex) {
+    return ex.getErrorCode() == 3952;
+  }
+}
@@ -0,0 +1,139 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Background job that folds balance ledger entries into users.balance so the ledger, and the sum a
+ * payment reads over it, stays short.
+ *
+ * Each batch moves up to {@code batchSize} entries in one transaction: it picks the oldest committed
+ * entries, locks their users' rows WITH (UPDLOCK, READPAST), deletes the picked entries of the users
+ * it locked and adds their per-user sums to users.balance. Like a debit or a cancel, it locks the
+ * user before the user's entries, and it skips users a live transaction (or another compactor)
+ * holds instead of waiting for them, so it cannot deadlock with them. A debit reads users.balance
+ * and the entries under the same user lock, so it never sees entries both folded and still in the
+ * ledger. A user's balance (users.balance plus their remaining entries) is the same before and
+ * after every batch.
+ *
+ * In a sharded deployment one compactor runs per shard; ledger entries never leave their shard.
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.ledger_compact_seconds delay between compactions, 0 disables compaction (default 60)
+ * flightapp.ledger_batch_size      maximum entries folded per transaction (default 1000)
+ */
+public class LedgerCompactor implements Runnable {
+  // The picked entries are only deleted once their user is locked, so an entry another compactor
+  // folded in the meantime is simply not found again
+  private static final String COMPACT_SQL =
+      "SET NOCOUNT ON;"
+      + "DECLARE @batch TABLE (entry_id bigint PRIMARY KEY, username varchar(20));"
+      + "DECLARE @users TABLE (username varchar(20) PRIMARY KEY);"
+      + "DECLARE @moved TABLE (username varchar(20), delta int);"
+      + "INSERT INTO @batch SELECT TOP (?) entry_id, username "
+      + "FROM LEDGER WITH (READPAST) ORDER BY entry_id;"
+      + "INSERT INTO @users SELECT username FROM USERS WITH (UPDLOCK, READPAST) "
+      + "WHERE username IN (SELECT username FROM @batch);"
+      + "DELETE L OUTPUT DELETED.username, DELETED.delta INTO @moved FROM LEDGER AS L "
+      + "JOIN @batch AS B ON L.entry_id = B.entry_id JOIN @users AS K ON K.username = B.username;"
+      + "UPDATE U SET balance = U.balance + M.delta FROM USERS AS U JOIN "
+      + "(SELECT username, SUM(delta) AS delta FROM @moved GROUP BY username) AS M "
+      + "ON U.username = M.username;"
+      + "SELECT COUNT(*) AS moved FROM @moved;";
+
+  private final Connection conn;
+  private final int batchSize;
+  private final PreparedStatement compact;
+
+  public LedgerCompactor(Connection conn, int batchSize) throws SQLException {
+    this.conn = conn;
+    this.batchSize = batchSize;
+    // READPAST is only allowed below REPEATABLE READ
+    conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+    compact = conn.prepareStatement(COMPACT_SQL);
+  }
+
+  /**
+   * Starts compaction on its own connections unless flightapp.ledger_compact_seconds is 0.
+   *
+   * @return the scheduler running the compactions, which closes their connections when it
+   *         terminates, or null if compaction is disabled
+   */
+  public static ScheduledExecutorService start() throws SQLException, IOException {
+    int period = Integer.parseInt(Query.getSetting("flightapp.ledger_compact_seconds", "60"));
+    if (period <= 0) {
+      return null;
+    }
+    int batch = Integer.parseInt(Query.getSetting("flightapp.ledger_batch_size", "1000"));
+    List<LedgerCompactor> compactors = new ArrayList<>();
+    ShardMap shardMap = ShardMap.fromSettings();
+    if (shardMap == null) {
+      compactors.add(new LedgerCompactor(Query.openConnectionFromDbConn(), batch));
+    } else {
+      for (int i = 0; i < shardMap.size(); i++) {
+        compactors.add(new LedgerCompactor(shardMap.open(i), batch));
+      }
+    }
+    ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread t = new Thread(r, "ledger-compaction");
+      t.setDaemon(true);
+      return t;
+    }) {
+      @Override
+      protected void terminated() {
+        for (LedgerCompactor compactor : compactors) {
+          try {
+            compactor.close();
+          } catch (SQLException e) {
+            e.printStackTrace();
+          }
+        }
+      }
+    };
+    scheduler.scheduleWithFixedDelay(() -> compactors.forEach(LedgerCompactor::run), period, period,
+        TimeUnit.SECONDS);
+    return scheduler;
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (compact() == batchSize) {
+        // a full batch means more entries may be waiting; keep draining
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Folds one batch of ledger entries into users.balance in a single transaction.
+   *
+   * @return the number of entries folded
+   */
+  public int compact() throws SQLException {
+    try {
+      conn.setAutoCommit(false);
+      compact.clearParameters();
+      compact.setInt(1, batchSize);
+      int moved;
+      try (ResultSet rs = compact.executeQuery()) {
+        rs.next();
+        moved = rs.getInt("moved");
+      }
+      conn.commit();
+      return moved;
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  public void close() throws SQLException {
+    conn.close();
+  }
+}
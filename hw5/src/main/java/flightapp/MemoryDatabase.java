@@ -0,0 +1,263 @@
+package flightapp;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * In-process data behind {@link MemoryStorage}: flights loaded once from a CSV export of the
+ * Flights table, and users, reservations and seat counts in concurrent hash maps.
+ *
+ * Locking is per entity. A user's reservations and reservation version are guarded by the user's
+ * lock, and debits of their balance by its ledger lock, so payments do not wait for bookings;
+ * credits are atomic adds that take no lock. The free seats of a flight are guarded by its
+ * {@link Seats}' lock. Like the capacity table, a
+ * flight's seat count is created from Flights.capacity the first time it is needed.
+ *
+ * City names are matched case-insensitively, as with the database's default collation.
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.memory.flights  CSV file with the Flights columns in table order, no header
+ *                           (default flights-small.csv)
+ */
+class MemoryDatabase {
+  static class User {
+    final String username;
+    final byte[] hash;
+    final byte[] salt;
+    final ReentrantLock lock = new ReentrantLock();
+    final ReentrantLock ledger = new ReentrantLock();
+    final AtomicInteger balance;
+    int resVersion;
+    final SortedMap<Integer, Reservation> reservations = new TreeMap<>();
+
+    User(String username, byte[] hash, byte[] salt, int balance) {
+      this.username = username;
+      this.hash = hash;
+      this.salt = salt;
+      this.balance = new AtomicInteger(balance);
+    }
+  }
+
+  static class Reservation {
+    final int rid;
+    final Query.Flight flight1;
+    final Query.Flight flight2;
+    final int price;
+    boolean paid;
+
+    Reservation(int rid, Query.Flight flight1, Query.Flight flight2, int price) {
+      this.rid = rid;
+      this.flight1 = flight1;
+      this.flight2 = flight2;
+      this.price = price;
+    }
+  }
+
+  static class Seats {
+    final ReentrantLock lock = new ReentrantLock();
+    int free;
+
+    Seats(int free) {
+      this.free = free;
+    }
+  }
+
+  // Orders one-hop itineraries like the search query: total time, then fids
+  private static final Comparator<Query.Flight[]> BY_TOTAL_TIME =
+      Comparator.<Query.Flight[]>comparingInt(p -> p[0].time + p[1].time)
+          .thenComparingInt(p -> p[0].fid).thenComparingInt(p -> p[1].fid);
+
+  private static MemoryDatabase shared;
+
+  // Read-only after loading. routes and departures only hold flights that are not canceled.
+  private final Map<Integer, Query.Flight> flights = new HashMap<>();
+  private final Map<String, List<Query.Flight>> routes = new HashMap<>();
+  private final Map<String, List<Query.Flight>> departures = new HashMap<>();
+  private CityIndex cities;
+
+  private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Integer, Seats> seats = new ConcurrentHashMap<>();
+  private final AtomicInteger nextRid = new AtomicInteger(1);
+
+  /**
+   * Returns the database shared by all memory sessions of this process, loading the flights on
+   * first use.
+   */
+  static synchronized MemoryDatabase shared() throws IOException {
+    if (shared == null) {
+      MemoryDatabase db = new MemoryDatabase();
+      try (BufferedReader in = new BufferedReader(
+          new FileReader(Query.getSetting("flightapp.memory.flights", "flights-small.csv")))) {
+        db.load(in);
+      }
+      shared = db;
+    }
+    return shared;
+  }
+
+  /**
+   * Adds the flights of a Flights CSV export and indexes them by route and by departure.
+   */
+  void load(BufferedReader in) throws IOException {
+    String line;
+    while ((line = in.readLine()) != null) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      String[] c = splitCsv(line);
+      Query.Flight f = new Query.Flight();
+      f.fid = Integer.parseInt(c[0]);
+      f.dayOfMonth = Integer.parseInt(c[2]);
+      f.carrierId = c[4];
+      f.flightNum = c[5];
+      f.originCity = c[6];
+      f.destCity = c[8];
+      f.time = parseInt(c[14]);
+      f.capacity = parseInt(c[16]);
+      f.price = parseInt(c[17]);
+      flights.put(f.fid, f);
+      if (parseInt(c[13]) == 0) {
+        routes.computeIfAbsent(routeKey(f.originCity, f.destCity, f.dayOfMonth),
+            k -> new ArrayList<>()).add(f);
+        departures.computeIfAbsent(departureKey(f.originCity, f.dayOfMonth),
+            k -> new ArrayList<>()).add(f);
+      }
+    }
+    Comparator<Query.Flight> byTime =
+        Comparator.<Query.Flight>comparingInt(f -> f.time).thenComparingInt(f -> f.fid);
+    routes.values().forEach(l -> l.sort(byTime));
+    departures.values().forEach(l -> l.sort(byTime));
+    List<String> names = new ArrayList<>();
+    for (List<Query.Flight> route : routes.values()) {
+      names.add(route.get(0).originCity);
+      names.add(route.get(0).destCity);
+    }
+    cities = new CityIndex(names);
+  }
+
+  /**
+   * Cities of the flights that are not canceled.
+   */
+  CityIndex cities() {
+    return cities;
+  }
+
+  Query.Flight flight(int fid) {
+    return flights.get(fid);
+  }
+
+  /**
+   * Direct flights of one day, shortest first.
+   */
+  List<Query.Flight> direct(String originCity, String destCity, int dayOfMonth) {
+    return routes.getOrDefault(routeKey(originCity, destCity, dayOfMonth),
+        Collections.emptyList());
+  }
+
+  /**
+   * Up to {@code limit} one-hop itineraries of one day that match {@code filter}, shortest total
+   * time first.
+   */
+  List<Query.Flight[]> oneHop(String originCity, String destCity, int dayOfMonth, int limit,
+      SearchFilter filter) {
+    PriorityQueue<Query.Flight[]> best = new PriorityQueue<>(BY_TOTAL_TIME.reversed());
+    for (Query.Flight f1 : departures.getOrDefault(departureKey(originCity, dayOfMonth),
+        Collections.emptyList())) {
+      if (!filter.acceptsFirst(f1)) {
+        continue;
+      }
+      for (Query.Flight f2 : direct(f1.destCity, destCity, dayOfMonth)) {
+        if (!filter.accepts(f1, f2)) {
+          continue;
+        }
+        best.add(new Query.Flight[] { f1, f2 });
+        if (best.size() > limit) {
+          best.poll();
+        }
+      }
+    }
+    List<Query.Flight[]> result = new ArrayList<>(best);
+    result.sort(BY_TOTAL_TIME);
+    return result;
+  }
+
+  User user(String username) {
+    return users.get(username.toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Adds {@code user} unless the name is taken.
+   *
+   * @return false if a user of that name already exists
+   */
+  boolean addUser(User user) {
+    return users.putIfAbsent(user.username.toLowerCase(Locale.ROOT), user) == null;
+  }
+
+  /**
+   * Removes {@code user}, whose creation is rolled back.
+   */
+  void removeUser(User user) {
+    users.remove(user.username.toLowerCase(Locale.ROOT), user);
+  }
+
+  /**
+   * Reserves {@code count} consecutive reservation IDs and returns the first.
+   */
+  int nextRids(int count) {
+    return nextRid.getAndAdd(count);
+  }
+
+  /**
+   * Returns the seat count of flight {@code fid}, creating it on first use.
+   */
+  Seats seats(int fid) {
+    return seats.computeIfAbsent(fid, k -> new Seats(flights.get(k).capacity));
+  }
+
+  /**
+   * Drops all users, reservations and seat counts and restarts reservation IDs at 1.
+   */
+  void clear() {
+    users.clear();
+    seats.clear();
+    nextRid.set(1);
+  }
+
+  private static String routeKey(String originCity, String destCity, int dayOfMonth) {
+    return originCity.toLowerCase(Locale.ROOT) + "|" + destCity.toLowerCase(Locale.ROOT) + "|"
+        + dayOfMonth;
+  }
+
+  private static String departureKey(String originCity, int dayOfMonth) {
+    return originCity.toLowerCase(Locale.ROOT) + "|" + dayOfMonth;
+  }
+
+  private static int parseInt(String s) {
+    return s.isEmpty() ? 0 : Integer.parseInt(s);
+  }
+
+  /**
+   * Splits one CSV line; fields may be double-quoted.
+   */
+  private static String[] splitCsv(String line) {
+    List<String> fields = new ArrayList<>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (char ch : line.toCharArray()) {
+      if (ch == '"') {
+        quoted = !quoted;
+      } else if (ch == ',' && !quoted) {
+        fields.add(field.toString().trim());
+        field.setLength(0);
+      } else {
+        field.append(ch);
+      }
+    }
+    fields.add(field.toString().trim());
+    return fields.toArray(new String[0]);
+  }
+}
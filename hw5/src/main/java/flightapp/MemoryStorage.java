@@ -0,0 +1,338 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * {@link Storage} on a {@link MemoryDatabase}, so the service can be tested and benchmarked without
+ * a database server.
+ *
+ * A transaction locks the users, balances and seat counts it touches, in the order {@link Query}
+ * asks for them, and holds the locks until it ends, which gives the same per-user serialization as
+ * the database engine. Every change records how to undo it, so a rule that rejects a transaction
+ * rolls it back like a database would. Reads outside a transaction lock the user only for the read.
+ *
+ * Hold expiry, ledger compaction, group commit, sharding and the read replica only apply to the
+ * database engine.
+ */
+class MemoryStorage implements Storage {
+  // users.username is a varchar(20)
+  private static final int MAX_USERNAME_LENGTH = 20;
+
+  private final MemoryDatabase db;
+
+  // Locks held by the current transaction, and how to undo its changes, newest last
+  private final List<ReentrantLock> held = new ArrayList<>();
+  private final List<Runnable> undo = new ArrayList<>();
+  // Booking events of the current transaction, appended to the event log when it commits
+  private final List<Runnable> queuedEvents = new ArrayList<>();
+  private boolean active;
+
+  MemoryStorage(MemoryDatabase db) {
+    this.db = db;
+  }
+
+  // Transactions
+
+  public void begin(String username) {
+    active = true;
+  }
+
+  public void commit() {
+    undo.clear();
+    // Appended while the transaction's locks are held, so each entity's events are in order
+    queuedEvents.forEach(Runnable::run);
+    queuedEvents.clear();
+    end();
+  }
+
+  public void rollback() {
+    for (int i = undo.size() - 1; i >= 0; i--) {
+      undo.get(i).run();
+    }
+    undo.clear();
+    queuedEvents.clear();
+    end();
+  }
+
+  private void end() {
+    for (ReentrantLock lock : held) {
+      lock.unlock();
+    }
+    held.clear();
+    active = false;
+  }
+
+  /**
+   * Nothing here deadlocks or times out, so a failure is never worth a rerun.
+   */
+  public boolean abort(SQLException e) {
+    rollback();
+    e.printStackTrace();
+    return false;
+  }
+
+  public void checkDanglingTransaction() {
+    if (active || !held.isEmpty() || !undo.isEmpty()) {
+      rollback();
+      throw new IllegalStateException("Transaction not fully commit/rollback");
+    }
+  }
+
+  /**
+   * There is no outbox table here; the process owns the event log and appends to it directly.
+   */
+  public void queueEvent(byte type, int rid, String username, int fid1, int fid2, int amount) {
+    EventLog log = EventLog.shared();
+    if (log == null) {
+      return;
+    }
+    queuedEvents.add(() -> {
+      try {
+        log.append(type, rid, username, fid1, fid2, amount);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+  }
+
+  /**
+   * Locks {@code lock} until the transaction ends, unless it already holds it.
+   */
+  private void hold(ReentrantLock lock) {
+    if (!lock.isHeldByCurrentThread()) {
+      lock.lock();
+      held.add(lock);
+    }
+  }
+
+  /**
+   * Returns the user named {@code username}, locked until the transaction ends.
+   */
+  private MemoryDatabase.User locked(String username) {
+    MemoryDatabase.User u = db.user(username);
+    hold(u.lock);
+    return u;
+  }
+
+  // Flights
+
+  public Query.Flight flight(int fid) {
+    return db.flight(fid);
+  }
+
+  public List<Query.Flight> directFlights(String originCity, String destCity, int dayOfMonth,
+      int limit, SearchFilter filter) {
+    List<Query.Flight> flights = new ArrayList<>();
+    for (Query.Flight f : db.direct(originCity, destCity, dayOfMonth)) {
+      if (flights.size() == limit) {
+        break;
+      }
+      if (filter.accepts(f, null)) {
+        flights.add(f);
+      }
+    }
+    return flights;
+  }
+
+  public List<Query.Flight[]> oneHopFlights(String originCity, String destCity, int dayOfMonth,
+      int limit, SearchFilter filter) {
+    return db.oneHop(originCity, destCity, dayOfMonth, limit, filter);
+  }
+
+  public CityIndex cities() {
+    return db.cities();
+  }
+
+  // Users
+
+  public UserRow user(String username) {
+    MemoryDatabase.User u = db.user(username);
+    return u == null ? null : new UserRow(u.username, u.hash, u.salt);
+  }
+
+  public boolean insertUser(String username, byte[] hash, byte[] salt, int balance) {
+    if (username.length() > MAX_USERNAME_LENGTH) {
+      return false;
+    }
+    MemoryDatabase.User u = new MemoryDatabase.User(username, hash, salt, balance);
+    hold(u.lock);
+    if (!db.addUser(u)) {
+      return false;
+    }
+    undo.add(() -> db.removeUser(u));
+    return true;
+  }
+
+  public int lockUser(String username) {
+    MemoryDatabase.User u = locked(username);
+    int days = 0;
+    for (MemoryDatabase.Reservation r : u.reservations.values()) {
+      days |= 1 << (r.flight1.dayOfMonth - 1);
+    }
+    return days;
+  }
+
+  /**
+   * Credits only raise the balance, so it still covers the debit when the transaction commits.
+   */
+  public int debit(String username, int amount) {
+    MemoryDatabase.User u = db.user(username);
+    hold(u.ledger);
+    int balance = u.balance.get();
+    if (balance >= amount) {
+      u.balance.addAndGet(-amount);
+      undo.add(() -> u.balance.addAndGet(amount));
+    }
+    return balance;
+  }
+
+  public void credit(String username, int amount) {
+    MemoryDatabase.User u = db.user(username);
+    u.balance.addAndGet(amount);
+    undo.add(() -> u.balance.addAndGet(-amount));
+  }
+
+  // Reservations
+
+  public List<Integer> insertReservations(String username, int fid1, int fid2, int price,
+      int count) {
+    MemoryDatabase.User u = locked(username);
+    Query.Flight flight1 = db.flight(fid1);
+    Query.Flight flight2 = fid2 == -1 ? null : db.flight(fid2);
+    int first = db.nextRids(count);
+    List<Integer> rids = new ArrayList<>();
+    for (int rid = first; rid < first + count; rid++) {
+      u.reservations.put(rid, new MemoryDatabase.Reservation(rid, flight1, flight2, price));
+      rids.add(rid);
+    }
+    undo.add(() -> u.reservations.keySet().removeAll(rids));
+    return rids;
+  }
+
+  public Map<String, Integer> insertReservations(List<NewReservation> rows) {
+    Map<String, Integer> rids = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    for (NewReservation r : rows) {
+      rids.put(r.username, insertReservations(r.username, r.fid1, r.fid2, r.price, 1).get(0));
+    }
+    return rids;
+  }
+
+  public ReservationRow reservation(String username, int rid) {
+    MemoryDatabase.Reservation r = locked(username).reservations.get(rid);
+    return r == null ? null : row(r);
+  }
+
+  private static ReservationRow row(MemoryDatabase.Reservation r) {
+    return new ReservationRow(r.rid, r.flight1.fid, r.flight2 == null ? -1 : r.flight2.fid,
+        r.price, r.paid);
+  }
+
+  public List<ReservationRow> unpaidReservations(String username, Collection<Integer> rids) {
+    List<ReservationRow> unpaid = new ArrayList<>();
+    for (MemoryDatabase.Reservation r : locked(username).reservations.values()) {
+      if (!r.paid && (rids == null || rids.contains(r.rid))) {
+        unpaid.add(row(r));
+      }
+    }
+    return unpaid;
+  }
+
+  public void markPaid(String username, Collection<Integer> rids) {
+    MemoryDatabase.User u = locked(username);
+    for (int rid : rids) {
+      MemoryDatabase.Reservation r = u.reservations.get(rid);
+      if (r != null && !r.paid) {
+        r.paid = true;
+        undo.add(() -> r.paid = false);
+      }
+    }
+  }
+
+  public void deleteReservation(String username, int rid) {
+    MemoryDatabase.User u = locked(username);
+    MemoryDatabase.Reservation r = u.reservations.remove(rid);
+    if (r != null) {
+      undo.add(() -> u.reservations.put(rid, r));
+    }
+  }
+
+  public ReservationList reservations(String username) {
+    MemoryDatabase.User u = db.user(username);
+    u.lock.lock();
+    try {
+      List<ReservationRow> rows = new ArrayList<>();
+      for (MemoryDatabase.Reservation r : u.reservations.values()) {
+        rows.add(row(r));
+      }
+      return new ReservationList(u.resVersion, rows);
+    } finally {
+      u.lock.unlock();
+    }
+  }
+
+  public int reservationVersion(String username) {
+    MemoryDatabase.User u = db.user(username);
+    u.lock.lock();
+    try {
+      return u.resVersion;
+    } finally {
+      u.lock.unlock();
+    }
+  }
+
+  /**
+   * Booked days are derived from the reservations here, so only the version moves.
+   */
+  public int markBookedDays(String username, int dayBits) {
+    MemoryDatabase.User u = locked(username);
+    u.resVersion++;
+    undo.add(() -> u.resVersion--);
+    return u.resVersion;
+  }
+
+  public void markBookedDays(Map<String, Integer> dayBitsByUser) {
+    for (Map.Entry<String, Integer> user : dayBitsByUser.entrySet()) {
+      markBookedDays(user.getKey(), user.getValue());
+    }
+  }
+
+  public int rebuildBookedDays(String username) {
+    return markBookedDays(username, 0);
+  }
+
+  // Capacity
+
+  public int freeSeats(int fid) {
+    MemoryDatabase.Seats s = db.seats(fid);
+    hold(s.lock);
+    return s.free;
+  }
+
+  public void setFreeSeats(int fid, int freeSeats) {
+    MemoryDatabase.Seats s = db.seats(fid);
+    hold(s.lock);
+    int before = s.free;
+    s.free = freeSeats;
+    undo.add(() -> s.free = before);
+  }
+
+  public void releaseSeats(int fid, int seats) {
+    MemoryDatabase.Seats s = db.seats(fid);
+    hold(s.lock);
+    s.free += seats;
+    undo.add(() -> s.free -= seats);
+  }
+
+  // Lifecycle
+
+  public void clear() {
+    db.clear();
+  }
+
+  public void close() {
+    // nothing to release
+  }
+}
@@ -0,0 +1,301 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Versioned schema migrations. Brings a database created by any earlier createTables.sql forward to
+ * the schema this code expects.
+ *
+ * Applied versions are recorded in schema_version. Each pending migration runs in its own
+ * transaction, which also inserts its row, so a failed migration leaves nothing half applied.
+ * Every statement checks the catalog before changing it, so a migration is a no-op on a database
+ * that already has its changes (for example one created from the current createTables.sql), and it
+ * is then only recorded. Two processes migrating at once serialize on the schema_version row.
+ *
+ * In a sharded deployment every shard is migrated.
+ *
+ * Usage: Migrations [status]   applies the pending migrations, or with "status" only lists them
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.migrate_on_startup  migrate when FlightService starts (default false)
+ */
+public class Migrations {
+  static class Migration {
+    final int version;
+    final String description;
+    final String[] statements;
+
+    Migration(int version, String description, String... statements) {
+      this.version = version;
+      this.description = description;
+      this.statements = statements;
+    }
+  }
+
+  private static final String CREATE_SCHEMA_VERSION_SQL =
+      "IF OBJECT_ID('schema_version', 'U') IS NULL CREATE TABLE schema_version("
+      + "version int PRIMARY KEY, description varchar(200) NOT NULL, "
+      + "applied_at datetime2 NOT NULL DEFAULT SYSUTCDATETIME())";
+  private static final String APPLIED_SQL =
+      "SELECT version FROM schema_version WITH (UPDLOCK, HOLDLOCK) WHERE version = ?";
+  private static final String RECORD_SQL =
+      "INSERT INTO schema_version (version, description) VALUES(?,?)";
+
+  // In version order; never edit or reorder an applied migration, append a new one instead. The
+  // SQL is written out in full rather than shared with Query, so later query changes cannot alter
+  // what an old migration does.
+  static final List<Migration> MIGRATIONS = Arrays.asList(
+      new Migration(1, "users, reservations and capacity",
+          "IF OBJECT_ID('users', 'U') IS NULL CREATE TABLE users("
+          + "username varchar(20) PRIMARY KEY, hash varbinary(100), salt varbinary(100), "
+          + "balance int)",
+          "IF OBJECT_ID('reservations', 'U') IS NULL CREATE TABLE reservations("
+          + "rid int IDENTITY(1,1) PRIMARY KEY, username varchar(20), fid1 int, fid2 int, "
+          + "paid bit, canceled bit, price int, "
+          + "CONSTRAINT FK_USERNAME FOREIGN KEY (username) REFERENCES users(username))",
+          "IF OBJECT_ID('capacity', 'U') IS NULL CREATE TABLE capacity("
+          + "fid int FOREIGN KEY REFERENCES flights(fid), freeSeat int)"),
+      new Migration(2, "users.res_version and users.booked_days",
+          "IF COL_LENGTH('users', 'res_version') IS NULL "
+          + "ALTER TABLE users ADD res_version int NOT NULL DEFAULT 0",
+          "IF COL_LENGTH('users', 'booked_days') IS NULL "
+          + "ALTER TABLE users ADD booked_days int NOT NULL DEFAULT 0",
+          // Existing reservations predate the bitmap
+          "UPDATE users SET booked_days = "
+          + "(SELECT COALESCE(SUM(DISTINCT POWER(2, F.day_of_month - 1)), 0) "
+          + "FROM reservations AS R JOIN flights AS F ON F.fid = R.fid1 "
+          + "WHERE R.username = users.username AND R.canceled = 0)"),
+      new Migration(3, "reservations.booked_at",
+          "IF COL_LENGTH('reservations', 'booked_at') IS NULL "
+          + "ALTER TABLE reservations ADD booked_at datetime2 DEFAULT SYSUTCDATETIME()"),
+      new Migration(4, "balance ledger",
+          "IF OBJECT_ID('ledger', 'U') IS NULL CREATE TABLE ledger("
+          + "entry_id bigint IDENTITY(1,1) PRIMARY KEY, username varchar(20) NOT NULL, "
+          + "delta int NOT NULL)",
+          "IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'IX_ledger_username') "
+          + "CREATE INDEX IX_ledger_username ON ledger(username) INCLUDE (delta)"),
+      new Migration(5, "capacity primary key",
+          // fid must be NOT NULL to be the key; the foreign key is recreated under a fixed name
+          "IF OBJECTPROPERTY(OBJECT_ID('capacity'), 'TableHasPrimaryKey') = 0 BEGIN "
+          + "DECLARE @fk sysname = (SELECT name FROM sys.foreign_keys "
+          + "WHERE parent_object_id = OBJECT_ID('capacity')); "
+          + "IF @fk IS NOT NULL EXEC('ALTER TABLE capacity DROP CONSTRAINT ' + @fk); "
+          + "EXEC('ALTER TABLE capacity ALTER COLUMN fid int NOT NULL'); "
+          + "EXEC('ALTER TABLE capacity ADD CONSTRAINT PK_capacity PRIMARY KEY (fid), "
+          + "CONSTRAINT FK_capacity_fid FOREIGN KEY (fid) REFERENCES flights(fid)'); END"),
+      new Migration(6, "reservations indexes",
+          // A user's reservations: listing, cancel, payBulk and the booked_days rebuild
+          "IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'IX_reservations_username') "
+          + "CREATE INDEX IX_reservations_username ON reservations(username, canceled) "
+          + "INCLUDE (fid1, fid2, paid, price)",
+          // Unpaid holds by age, for HoldExpiry
+          "IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'IX_reservations_hold') "
+          + "CREATE INDEX IX_reservations_hold ON reservations(booked_at) "
+          + "INCLUDE (username, fid1, fid2) WHERE paid = 0 AND canceled = 0"),
+      new Migration(7, "flights search indexes",
+          // Direct search, and the second leg of a one-hop search, in actual_time order
+          "IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'IX_flights_route') "
+          + "CREATE INDEX IX_flights_route ON flights(origin_city, dest_city, day_of_month, "
+          + "actual_time) INCLUDE (canceled, carrier_id, flight_num, capacity, price)",
+          // First leg of a one-hop search: every flight leaving the origin that day
+          "IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'IX_flights_departure') "
+          + "CREATE INDEX IX_flights_departure ON flights(origin_city, day_of_month) "
+          + "INCLUDE (dest_city, actual_time, canceled, carrier_id, flight_num, capacity, price)"),
+      new Migration(8, "one-hop connections",
+          "IF OBJECT_ID('connection_routes', 'U') IS NULL CREATE TABLE connection_routes("
+          + "origin_city varchar(34) NOT NULL, dest_city varchar(34) NOT NULL, "
+          + "day_of_month int NOT NULL, "
+          + "CONSTRAINT PK_connection_routes PRIMARY KEY (origin_city, dest_city, day_of_month))",
+          "IF OBJECT_ID('connections', 'U') IS NULL CREATE TABLE connections("
+          + "origin_city varchar(34) NOT NULL, dest_city varchar(34) NOT NULL, "
+          + "day_of_month int NOT NULL, total_time int NOT NULL, fid1 int NOT NULL, "
+          + "fid2 int NOT NULL, CONSTRAINT PK_connections PRIMARY KEY "
+          + "(origin_city, dest_city, day_of_month, total_time, fid1, fid2))",
+          "IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'IX_connections_fid1') "
+          + "CREATE INDEX IX_connections_fid1 ON connections(fid1)",
+          "IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'IX_connections_fid2') "
+          + "CREATE INDEX IX_connections_fid2 ON connections(fid2)",
+          // CREATE TRIGGER must start its batch
+          "EXEC('CREATE OR ALTER TRIGGER TR_flights_connections ON flights "
+          + "AFTER INSERT, UPDATE, DELETE AS BEGIN "
+          + "SET NOCOUNT ON "
+          + "IF EXISTS (SELECT * FROM inserted) AND EXISTS (SELECT * FROM deleted) "
+          + "AND NOT (UPDATE(origin_city) OR UPDATE(dest_city) OR UPDATE(day_of_month) "
+          + "OR UPDATE(actual_time) OR UPDATE(canceled)) RETURN "
+          + "DELETE FROM connections WHERE fid1 IN (SELECT fid FROM deleted) "
+          + "DELETE FROM connections WHERE fid2 IN (SELECT fid FROM deleted) "
+          + "INSERT INTO connections "
+          + "(origin_city, dest_city, day_of_month, total_time, fid1, fid2) "
+          + "SELECT f1.origin_city, f2.dest_city, f1.day_of_month, "
+          + "f1.actual_time + f2.actual_time, "
+          + "f1.fid, f2.fid FROM flights AS f1 JOIN flights AS f2 "
+          + "ON f1.dest_city = f2.origin_city AND f1.day_of_month = f2.day_of_month "
+          + "JOIN connection_routes AS R ON R.origin_city = f1.origin_city "
+          + "AND R.dest_city = f2.dest_city AND R.day_of_month = f1.day_of_month "
+          + "WHERE f1.canceled = 0 AND f2.canceled = 0 "
+          + "AND (f1.fid IN (SELECT fid FROM inserted) "
+          + "OR f2.fid IN (SELECT fid FROM inserted)) END')"),
+      new Migration(9, "connection routes age",
+          "IF COL_LENGTH('connection_routes', 'materialized_at') IS NULL "
+          + "ALTER TABLE connection_routes ADD materialized_at datetime2 NOT NULL "
+          + "CONSTRAINT DF_connection_routes_materialized_at DEFAULT SYSUTCDATETIME()",
+          "IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'IX_connection_routes_age') "
+          + "CREATE INDEX IX_connection_routes_age ON connection_routes(materialized_at)",
+          // A route being materialized is marked before its pairs are read from Flights, so the
+          // trigger must wait for that marker instead of reading past it under snapshot reads
+          "EXEC('CREATE OR ALTER TRIGGER TR_flights_connections ON flights "
+          + "AFTER INSERT, UPDATE, DELETE AS BEGIN "
+          + "SET NOCOUNT ON "
+          + "IF EXISTS (SELECT * FROM inserted) AND EXISTS (SELECT * FROM deleted) "
+          + "AND NOT (UPDATE(origin_city) OR UPDATE(dest_city) OR UPDATE(day_of_month) "
+          + "OR UPDATE(actual_time) OR UPDATE(canceled)) RETURN "
+          + "DELETE FROM connections WHERE fid1 IN (SELECT fid FROM deleted) "
+          + "DELETE FROM connections WHERE fid2 IN (SELECT fid FROM deleted) "
+          + "INSERT INTO connections "
+          + "(origin_city, dest_city, day_of_month, total_time, fid1, fid2) "
+          + "SELECT f1.origin_city, f2.dest_city, f1.day_of_month, "
+          + "f1.actual_time + f2.actual_time, "
+          + "f1.fid, f2.fid FROM flights AS f1 JOIN flights AS f2 "
+          + "ON f1.dest_city = f2.origin_city AND f1.day_of_month = f2.day_of_month "
+          + "JOIN connection_routes AS R WITH (READCOMMITTEDLOCK) ON R.origin_city = f1.origin_city "
+          + "AND R.dest_city = f2.dest_city AND R.day_of_month = f1.day_of_month "
+          + "WHERE f1.canceled = 0 AND f2.canceled = 0 "
+          + "AND (f1.fid IN (SELECT fid FROM inserted) "
+          + "OR f2.fid IN (SELECT fid FROM inserted)) END')"),
+      new Migration(10, "event outbox",
+          "IF OBJECT_ID('event_outbox', 'U') IS NULL CREATE TABLE event_outbox("
+          + "seq bigint IDENTITY(1,1) PRIMARY KEY, type tinyint NOT NULL, rid int NOT NULL, "
+          + "username varchar(20) NOT NULL, fid1 int NOT NULL, fid2 int NOT NULL, "
+          + "amount int NOT NULL)"));
+
+  private Migrations() {
+  }
+
+  public static void main(String[] args) throws SQLException, IOException {
+    boolean statusOnly = args.length > 0 && args[0].equals("status");
+    for (Connection conn : openAll()) {
+      try {
+        if (statusOnly) {
+          for (Migration m : pending(conn)) {
+            System.out.println("pending " + m.version + " " + m.description);
+          }
+        } else {
+          for (Migration m : migrate(conn)) {
+            System.out.println("applied " + m.version + " " + m.description);
+          }
+        }
+      } finally {
+        conn.close();
+      }
+    }
+  }
+
+  /**
+   * Migrates every database of the configured deployment if flightapp.migrate_on_startup is set.
+   */
+  public static void migrateOnStartup() throws SQLException, IOException {
+    if (!Boolean.parseBoolean(Query.getSetting("flightapp.migrate_on_startup", "false"))) {
+      return;
+    }
+    for (Connection conn : openAll()) {
+      try {
+        migrate(conn);
+      } finally {
+        conn.close();
+      }
+    }
+  }
+
+  /**
+   * Migrations not yet recorded in the database of {@code conn}, in version order.
+   */
+  public static List<Migration> pending(Connection conn) throws SQLException {
+    try (Statement s = conn.createStatement()) {
+      s.execute(CREATE_SCHEMA_VERSION_SQL);
+    }
+    Set<Integer> applied = new HashSet<>();
+    try (Statement s = conn.createStatement();
+        ResultSet rs = s.executeQuery("SELECT version FROM schema_version")) {
+      while (rs.next()) {
+        applied.add(rs.getInt("version"));
+      }
+    }
+    List<Migration> pending = new ArrayList<>();
+    for (Migration m : MIGRATIONS) {
+      if (!applied.contains(m.version)) {
+        pending.add(m);
+      }
+    }
+    return pending;
+  }
+
+  /**
+   * Applies the pending migrations to the database of {@code conn}.
+   *
+   * @return the migrations this call applied
+   */
+  public static List<Migration> migrate(Connection conn) throws SQLException {
+    List<Migration> applied = new ArrayList<>();
+    for (Migration m : pending(conn)) {
+      if (apply(conn, m)) {
+        applied.add(m);
+      }
+    }
+    return applied;
+  }
+
+  /**
+   * Runs one migration and records it in one transaction.
+   *
+   * @return false if another process applied it first
+   */
+  private static boolean apply(Connection conn, Migration m) throws SQLException {
+    conn.setAutoCommit(false);
+    try {
+      try (PreparedStatement check = conn.prepareStatement(APPLIED_SQL)) {
+        check.setInt(1, m.version);
+        try (ResultSet rs = check.executeQuery()) {
+          if (rs.next()) {
+            conn.rollback();
+            return false;
+          }
+        }
+      }
+      try (Statement s = conn.createStatement()) {
+        for (String sql : m.statements) {
+          s.execute(sql);
+        }
+      }
+      try (PreparedStatement record = conn.prepareStatement(RECORD_SQL)) {
+        record.setInt(1, m.version);
+        record.setString(2, m.description);
+        record.executeUpdate();
+      }
+      conn.commit();
+      return true;
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  /**
+   * Opens the single database, or every shard.
+   */
+  static List<Connection> openAll() throws SQLException, IOException {
+    List<Connection> conns = new ArrayList<>();
+    ShardMap shardMap = ShardMap.fromSettings();
+    if (shardMap == null) {
+      conns.add(Query.openConnectionFromDbConn());
+    } else {
+      for (int i = 0; i < shardMap.size(); i++) {
+        conns.add(shardMap.open(i));
+      }
+    }
+    return conns;
+  }
+}
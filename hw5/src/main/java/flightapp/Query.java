@@ -3,60 +3,63 @@ package flightapp;
 import java.io.*;
 import java.sql.*;
 import java.util.*;
+import java.util.function.*;
 import java.security.*;
 import java.security.spec.*;
 import javax.crypto.*;
 import javax.crypto.spec.*;
 
 /**
- * Runs queries against a back-end database
+ * Runs the transactions of one user session. Every rule and every response lives here; where the
+ * flights, users, reservations and seat counts are kept is up to the {@link Storage} engine, SQL
+ * Server ({@link JdbcStorage}) or process memory ({@link MemoryStorage}).
+ *
+ * A transaction that loses a deadlock is rerun, up to 10 times. Locks are taken in one order:
+ * reservations, users, a user's ledger, then flights in increasing fid order. Book locks its user
+ * for the same-day check, pay for the debit and cancel to recompute the booked days before it
+ * refunds; pay and cancel lock only the reservations they change.
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.storage  jdbc or memory (default jdbc)
  */
 public class Query {
-  private boolean login = false;
-  private String user;
-  private List<Itinerary> output = new ArrayList<>();
+  // Login, last search and reservation view of the session this Query is serving
+  private Session session = new Session();
 
-  // DB Connection
-  private Connection conn;
+  private final Storage storage;
 
   // Password hashing parameter constants
   private static final int HASH_STRENGTH = 65536;
   private static final int KEY_LENGTH = 128;
 
-  // Canned queries
-  private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
-  private PreparedStatement checkFlightCapacityStatement;
-
-  // For check dangling
-  private static final String TRANCOUNT_SQL = "SELECT @@TRANCOUNT AS tran_count";
-  private PreparedStatement tranCountStatement;
-  private PreparedStatement checkUsernameStatement;
-  private PreparedStatement insertUserStatement;
-  private PreparedStatement checkSameDay;
-  private PreparedStatement getCapacity;
-  private PreparedStatement insertCapacity;
-  private PreparedStatement insertReservation;
-  private PreparedStatement getRid;
-  private PreparedStatement getReservation;
-  private PreparedStatement updateBalance;
-  private PreparedStatement updateReservation;
-  private PreparedStatement listValidReservation;
-  private PreparedStatement getFlightInfo;
-  private PreparedStatement listSingleValidReservation;
-  private PreparedStatement updateCapacity;
-  private PreparedStatement deleteReservation;
-  // TODO: YOUR CODE HERE
+  // Largest party a single group booking may reserve: a sanity bound that rejects mistyped sizes
+  // before any database work. It is well below the 350 rows (6 parameters each, 2100 per
+  // statement) one reservation insert can carry, so a party is always a single insert
+  static final int MAX_PARTY_SIZE = 50;
+
+  private static final int MAX_ATTEMPTS = 10;
 
   public Query() throws SQLException, IOException {
-    this(null, null, null, null);
+    this(new JdbcStorage());
   }
 
   protected Query(String serverURL, String dbName, String adminName, String password)
       throws SQLException, IOException {
-    conn = serverURL == null ? openConnectionFromDbConn()
-        : openConnectionFromCredential(serverURL, dbName, adminName, password);
+    this(new JdbcStorage(serverURL, dbName, adminName, password));
+  }
 
-    prepareStatements();
+  public Query(Storage storage) {
+    this.storage = storage;
+  }
+
+  /**
+   * Opens a session on the engine selected by flightapp.storage.
+   */
+  public static Query open() throws SQLException, IOException {
+    if ("memory".equals(getSetting("flightapp.storage", "jdbc"))) {
+      return new Query(new MemoryStorage(MemoryDatabase.shared()));
+    }
+    return new Query();
   }
 
   /**
@@ -88,10 +91,25 @@ public class Query {
    */
   protected static Connection openConnectionFromCredential(String serverURL, String dbName,
       String adminName, String password) throws SQLException {
+    return openConnectionFromCredential(serverURL, dbName, adminName, password, null);
+  }
+
+  /**
+   * Return a connecion by using the provided parameter and extra connection properties, such as
+   * "applicationIntent=ReadOnly".
+   */
+  static Connection openConnectionFromCredential(String serverURL, String dbName,
+      String adminName, String password, String options) throws SQLException {
     String connectionUrl =
         String.format("jdbc:sqlserver://%s:1433;databaseName=%s;user=%s;password=%s", serverURL,
             dbName, adminName, password);
+    if (options != null) {
+      connectionUrl = connectionUrl + ";" + options;
+    }
     Connection conn = DriverManager.getConnection(connectionUrl);
+    if (Tracing.ENABLED) {
+      conn = Tracing.wrap(conn);
+    }
 
     // By default, automatically commit after each statement
     conn.setAutoCommit(true);
@@ -103,62 +121,81 @@ public class Query {
   }
 
   /**
-   * Get underlying connection
+   * Returns the setting {@code key}, looking at system properties first and dbconn.properties
+   * second, or {@code defaultValue} if neither defines it.
    */
-  public Connection getConnection() {
-    return conn;
+  static String getSetting(String key, String defaultValue) {
+    String value = System.getProperty(key);
+    if (value != null) {
+      return value;
+    }
+    Properties configProps = new Properties();
+    try (FileInputStream in = new FileInputStream("dbconn.properties")) {
+      configProps.load(in);
+    } catch (IOException e) {
+      return defaultValue;
+    }
+    return configProps.getProperty(key, defaultValue);
   }
 
   /**
-   * Closes the application-to-database connection
+   * The storage engine this session runs on.
+   */
+  Storage storage() {
+    return storage;
+  }
+
+  /**
+   * Closes the session's storage, e.g. its database connections
    */
   public void closeConnection() throws SQLException {
-    conn.close();
+    storage.close();
+  }
+
+  public String loggedInUser() {
+    return session.login ? session.user : null;
   }
 
   /**
    * Clear the data in any custom tables created.
-   * 
+   *
    * WARNING! Do not drop any tables and do not clear the flights table.
    */
   public void clearTables() {
-    try {
-      Statement statement = conn.createStatement();
-      statement.executeUpdate("ALTER TABLE reservations\n" +
-              "DROP CONSTRAINT FK_username");
-      statement.executeUpdate("TRUNCATE TABLE users");
-      statement.executeUpdate("TRUNCATE TABLE reservations");
-      statement.executeUpdate("TRUNCATE TABLE capacity");
-      statement.executeUpdate("ALTER TABLE reservations\n" +
-              "ADD CONSTRAINT FK_username\n" +
-              "FOREIGN KEY (username) REFERENCES users(username)");
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
+    storage.clear();
+  }
+
+  /**
+   * The body of a write transaction. It must end the transaction with {@link Storage#commit()} or
+   * {@link Storage#rollback()} before returning its response.
+   */
+  private interface Work {
+    String run() throws SQLException;
   }
 
-  /*
-   * prepare all the SQL statements in this method.
+  /**
+   * Runs {@code work} in a transaction for {@code username}, rerunning it while the engine says a
+   * rerun may succeed.
+   *
+   * @return the response of {@code work}, or {@code failure} if it could not complete
    */
-  private void prepareStatements() throws SQLException {
-    checkFlightCapacityStatement = conn.prepareStatement(CHECK_FLIGHT_CAPACITY);
-    tranCountStatement = conn.prepareStatement(TRANCOUNT_SQL);
-    checkUsernameStatement = conn.prepareStatement("SELECT * FROM USERS WHERE Username = ?");
-    insertUserStatement = conn.prepareStatement("INSERT INTO users VALUES(?,?,?,?)");
-    checkSameDay = conn.prepareStatement("SELECT * FROM RESERVATIONS AS R, FLIGHTS AS F WHERE F.fid = R.fid1 and R.username = ? AND F.day_of_month = ?");
-    getCapacity = conn.prepareStatement("SELECT * FROM CAPACITY AS CAP WHERE CAP.FID = ?");
-    insertCapacity = conn.prepareStatement("INSERT INTO capacity VALUES(?,?)");
-    insertReservation = conn.prepareStatement("INSERT INTO RESERVATIONS VALUES(?,?,?,?,?,?)");
-    getRid = conn.prepareStatement("SELECT MAX(R.rid) as rid FROM RESERVATIONS AS R");
-    getReservation = conn.prepareStatement("SELECT * FROM RESERVATIONS WHERE rid = ? AND username = ? AND paid = ?");
-    listValidReservation = conn.prepareStatement("SELECT * FROM RESERVATIONS WHERE username = ? AND canceled = 0");
-    updateBalance = conn.prepareStatement("UPDATE USERS SET balance = ? Where username = ?");
-    updateReservation = conn.prepareStatement("UPDATE RESERVATIONS SET PAID = 1 WHERE rid = ?");
-    getFlightInfo = conn.prepareStatement("SELECT * FROM Flights WHERE fid = ?");
-    listSingleValidReservation = conn.prepareStatement("SELECT * FROM RESERVATIONS WHERE username = ? AND canceled = 0 AND rid = ?");
-    updateCapacity = conn.prepareStatement("UPDATE capacity set freeSeat = ? where fid = ?");
-    deleteReservation = conn.prepareStatement("DELETE FROM RESERVATIONS WHERE rid = ?");
-    // TODO: YOUR CODE HERE
+  private String transaction(String username, String failure, Work work) {
+    try {
+      for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+        try {
+          storage.begin(username);
+          return work.run();
+        } catch (SQLException e) {
+          if (!storage.abort(e)) {
+            return failure;
+          }
+        }
+      }
+      System.out.println("Deadlock retry timeout");
+      return failure;
+    } finally {
+      storage.checkDanglingTransaction();
+    }
   }
 
   /**
@@ -171,44 +208,41 @@ public class Query {
    *         errors, return "Login failed\n". Otherwise, return "Logged in as [username]\n".
    */
   public String transaction_login(String username, String password) {
+    Tracing.tag("transaction_login");
     try {
-      // TODO: YOUR CODE HERE
-      if(login) {
+      if (session.login) {
         return "User already logged in\n";
       }
-      checkUsernameStatement.clearParameters();
-      checkUsernameStatement.setString(1, username);      // Sets the first parameter (the first “?”) to the value of the variable “originCity”
-      ResultSet rs = checkUsernameStatement.executeQuery();
-      if(rs.next()) {
-        String getUser = rs.getString("username");
-        byte[] getSalt = rs.getBytes("salt");
-        byte[] getHash = rs.getBytes("hash");
-
-        // Specify the hash parameters
-        KeySpec spec = new PBEKeySpec(password.toCharArray(), getSalt, HASH_STRENGTH, KEY_LENGTH);
-
-        // Generate the hash
-        SecretKeyFactory factory = null;
-        byte[] hash = null;
-        try {
-          factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-          hash = factory.generateSecret(spec).getEncoded();
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
-          throw new IllegalStateException();
-        }
-
-        if(Arrays.equals(getHash, hash)){
-          login = true;
-          user = getUser;
-          return ("Logged in as " + getUser + "\n");
-        }
+      Storage.UserRow user = storage.user(username);
+      if (user != null && Arrays.equals(user.hash, hashPassword(password, user.salt))) {
+        session.login = true;
+        session.user = user.username;
+        session.reservationView = null;
+        return "Logged in as " + user.username + "\n";
       }
       return "Login failed\n";
-    } catch(SQLException se){
-        se.printStackTrace();
-    }finally {
-      checkDanglingTransaction();
-    }return "Login failed\n";
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return "Login failed\n";
+    } finally {
+      storage.checkDanglingTransaction();
+    }
+  }
+
+  /**
+   * Hashes {@code password} with {@code salt} the way users.hash is stored.
+   */
+  static byte[] hashPassword(String password, byte[] salt) {
+    // Specify the hash parameters
+    KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
+
+    // Generate the hash
+    try {
+      SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+      return factory.generateSecret(spec).getEncoded();
+    } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
+      throw new IllegalStateException();
+    }
   }
 
   /**
@@ -222,73 +256,21 @@ public class Query {
    * @return either "Created user {@code username}\n" or "Failed to create user\n" if failed.
    */
   public String transaction_createCustomer(String username, String password, int initAmount) {
-    boolean deadlock = false;
-    int retrycount = 0;
-    do{
-    try {
-      // TODO: YOUR CODE HERE
-      if(initAmount < 0){
-        return "Failed to create user\n";
-      }
-      conn.setAutoCommit(false);
-      checkUsernameStatement.clearParameters();
-      checkUsernameStatement.setString(1, username);      // Sets the first parameter (the first “?”) to the value of the variable “originCity”
-      ResultSet rs = checkUsernameStatement.executeQuery();
-      if(!rs.next()){
-        SecureRandom random = new SecureRandom();
-        byte[] salt = new byte[16];
-        random.nextBytes(salt);
-
-        // Specify the hash parameters
-        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
-
-        // Generate the hash
-        SecretKeyFactory factory = null;
-        byte[] hash = null;
-        try {
-          factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-          hash = factory.generateSecret(spec).getEncoded();
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
-          throw new IllegalStateException();
-        }
-
-        insertUserStatement.clearParameters();
-        insertUserStatement.setString(1, username);      // Sets the first parameter (the first “?”) to the value of the variable “originCity”
-        insertUserStatement.setBytes(2, hash);
-        insertUserStatement.setBytes(3, salt);
-        insertUserStatement.setInt(4, initAmount);
-        insertUserStatement.executeUpdate();
-        conn.commit();
-        conn.setAutoCommit(true);
-        return "Created user " + username +"\n";
-
-      }else{
-        conn.commit();
-        conn.setAutoCommit(true);
+    Tracing.tag("transaction_createCustomer");
+    if (initAmount < 0) {
+      return "Failed to create user\n";
+    }
+    byte[] salt = new byte[16];
+    new SecureRandom().nextBytes(salt);
+    byte[] hash = hashPassword(password, salt);
+    return transaction(username, "Failed to create user\n", () -> {
+      if (!storage.insertUser(username, hash, salt, initAmount)) {
+        storage.rollback();
         return "Failed to create user\n";
       }
-    } catch(SQLException se){
-      try{
-        conn.rollback();
-        conn.setAutoCommit(true);
-        deadlock = isDeadLock(se);
-        if(!deadlock){
-          deadlock = false;
-          se.printStackTrace();
-          return "Failed to create user\n";
-        }
-        retrycount = retrycount + 1;
-//         System.out.println("Deadlock retry: " + (retrycount));
-      }
-      catch (SQLException se2){
-        se2.printStackTrace();
-      }
-    } finally {
-      checkDanglingTransaction();
-    }
-  }while(deadlock && retrycount<10);
-    System.out.println("Deadlock retry timeout");
-    return "Failed to create user\n";
+      storage.commit();
+      return "Created user " + username + "\n";
+    });
   }
 
   /**
@@ -323,128 +305,88 @@ public class Query {
    */
   public String transaction_search(String originCity, String destinationCity, boolean directFlight,
       int dayOfMonth, int numberOfItineraries) {
+    return transaction_search(originCity, destinationCity, directFlight, dayOfMonth,
+        numberOfItineraries, SearchFilter.NONE);
+  }
+
+  /**
+   * Searches like {@link #transaction_search(String, String, boolean, int, int)}, counting only
+   * the itineraries that match {@code filter}; the filter is part of the search queries.
+   */
+  public String transaction_search(String originCity, String destinationCity, boolean directFlight,
+      int dayOfMonth, int numberOfItineraries, SearchFilter filter) {
+    Tracing.tag("transaction_search");
+    session.clearItineraries();
+    CityIndex cities = CityIndex.REJECT_UNKNOWN ? cityIndex() : null;
+    if (cities != null && !(cities.contains(originCity) && cities.contains(destinationCity))) {
+      return "No flights match your selection\n";
+    }
+    if (numberOfItineraries < 0) {
+      return "Failed to search\n";
+    }
     try {
-      // WARNING the below code is unsafe and only handles searches for direct flights
-      // You can use the below code as a starting reference point or you can get rid
-      // of it all and replace it with your own implementation.
-      //
-      // TODO: YOUR CODE HERE
+      return search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries,
+          filter);
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return "Failed to search\n";
+    } finally {
+      storage.checkDanglingTransaction();
+    }
+  }
 
-      StringBuffer sb = new StringBuffer();
-      output.clear();
-      // conn.setAutoCommit(false);
-      try {
-        // one hop itineraries
-        String unsafeSearchSQL = "SELECT TOP (" + numberOfItineraries
-            + ") fid, day_of_month,carrier_id,flight_num,origin_city,dest_city,actual_time,capacity,price "
-            + "FROM Flights " + "WHERE origin_city = \'" + originCity + "\' AND dest_city = \'"
-            + destinationCity + "\' AND canceled = 0 AND day_of_month =  " + dayOfMonth + " "
-            + "ORDER BY actual_time ASC";
-
-        Statement searchStatement = conn.createStatement();
-        ResultSet oneHopResults = searchStatement.executeQuery(unsafeSearchSQL);
-
-        int rs_count = 0; // keep track of the number of output
-        if (!oneHopResults.next() && directFlight) {
-          oneHopResults.close();
-          return "No flights match your selection\n";
-        }
-        do {
-          int fid = oneHopResults.getInt("fid");
-          int result_dayOfMonth = oneHopResults.getInt("day_of_month");
-          String result_carrierId = oneHopResults.getString("carrier_id");
-          String result_flightNum = oneHopResults.getString("flight_num");
-          String result_originCity = oneHopResults.getString("origin_city");
-          String result_destCity = oneHopResults.getString("dest_city");
-          int result_time = oneHopResults.getInt("actual_time");
-          int result_capacity = oneHopResults.getInt("capacity");
-          int result_price = oneHopResults.getInt("price");
-          
-          // initialize the Flight obj
-          Flight f = new Flight();
-          f.fid = fid;
-          f.dayOfMonth = result_dayOfMonth;
-          f.carrierId = result_carrierId;
-          f.flightNum = result_flightNum;
-          f.originCity = result_originCity;
-          f.destCity = result_destCity;
-          f.time = result_time;
-          f.capacity = result_capacity;
-          f.price = result_price;
-
-          Itinerary direct_Itin = new Itinerary(rs_count, true, f, null);
-          output.add(direct_Itin);
-          // sb.append(direct_Itin.toSring());
-
-          rs_count++; // update the count
-
-          // sb.append("Day: " + result_dayOfMonth + " Carrier: " + result_carrierId + " Number: "
-          //     + result_flightNum + " Origin: " + result_originCity + " Destination: "
-          //     + result_destCity + " Duration: " + result_time + " Capacity: " + result_capacity
-          //     + " Price: " + result_price + "\n");
-        } while (oneHopResults.next()) ;
-        oneHopResults.close();
-        // only check for indirect flights when there are not enough direct flights and the direct flight
-        // flag is set to 0
-        if (rs_count < numberOfItineraries && !directFlight) {
-          int new_num_Itin = numberOfItineraries - rs_count;
-          String new_SearchSQL = "SELECT TOP (" + new_num_Itin
-            + ") f1.fid as f1_fid, f1.day_of_month as f1_day_of_month, f1.carrier_id as f1_carrier_id, f1.flight_num as f1_flight_num, f1.origin_city as f1_origin_city, f1.dest_city as f1_dest_city, f1.actual_time as f1_actual_time, f1.capacity as f1_capacity, f1.price as f1_price, "
-            + "f2.fid as f2_fid, f2.day_of_month as f2_day_of_month, f2.carrier_id as f2_carrier_id, f2.flight_num as f2_flight_num, f2.origin_city as f2_origin_city, f2.dest_city as f2_dest_city, f2.actual_time as f2_actual_time, f2.capacity as f2_capacity, f2.price as f2_price "
-            + "FROM Flights as f1, Flights as f2 " + "WHERE f1.origin_city = \'" + originCity + "\' AND f2.dest_city = \'"
-            + destinationCity + "\' AND f1.dest_city = f2.origin_city AND f1.day_of_month = f2.day_of_month AND f1.day_of_month =  " + dayOfMonth + " "
-            + "AND f1.canceled = 0 and f2.canceled = 0 ORDER BY f1.actual_time+f2.actual_time ASC";
-
-          ResultSet new_results = searchStatement.executeQuery(new_SearchSQL);
-
-          while (new_results.next()) {
-            Flight f1 = new Flight();
-            f1.fid = new_results.getInt("f1_fid");
-            f1.dayOfMonth = new_results.getInt("f1_day_of_month");
-            f1.carrierId = new_results.getString("f1_carrier_id");
-            f1.flightNum = new_results.getString("f1_flight_num");
-            f1.originCity = new_results.getString("f1_origin_city");
-            f1.destCity = new_results.getString("f1_dest_city");
-            f1.time = new_results.getInt("f1_actual_time");
-            f1.capacity = new_results.getInt("f1_capacity");
-            f1.price = new_results.getInt("f1_price");
-
-            Flight f2 = new Flight();
-            f2.fid = new_results.getInt("f2_fid");
-            f2.dayOfMonth = new_results.getInt("f2_day_of_month");
-            f2.carrierId = new_results.getString("f2_carrier_id");
-            f2.flightNum = new_results.getString("f2_flight_num");
-            f2.originCity = new_results.getString("f2_origin_city");
-            f2.destCity = new_results.getString("f2_dest_city");
-            f2.time = new_results.getInt("f2_actual_time");
-            f2.capacity = new_results.getInt("f2_capacity");
-            f2.price = new_results.getInt("f2_price");
-
-            Itinerary indirect_Itin = new Itinerary(rs_count, directFlight, f1, f2);
-            output.add(indirect_Itin);
-            // sb.append(undirect_Itin.toSring());
-
-            rs_count++;
-          }
-          if (rs_count == 0) {
-            new_results.close();
-            return "No flights match your selection\n";
-          }
-          new_results.close();
-        }
-        Collections.sort(output);
-        for (int i = 0; i < output.size(); i++) {
-          String cur_output = "Itinerary " + i + output.get(i).toSring();
-          sb.append(cur_output);
-        }
-        return sb.toString();
-      } catch (SQLException e) {
-        e.printStackTrace();
-        // conn.setAutoCommit(true);
-        return "Failed to search\n";
+  private String search(String originCity, String destinationCity, boolean directFlight,
+      int dayOfMonth, int numberOfItineraries, SearchFilter filter) throws SQLException {
+    List<Itinerary> output = new ArrayList<>();
+    directFlight = filter.directOnly(directFlight);
+    for (Flight f : storage.directFlights(originCity, destinationCity, dayOfMonth,
+        numberOfItineraries, filter)) {
+      output.add(new Itinerary(output.size(), true, f, null));
+    }
+    if (output.isEmpty() && directFlight) {
+      return "No flights match your selection\n";
+    }
+    // only check for indirect flights when there are not enough direct flights and the direct flight
+    // flag is set to 0
+    if (output.size() < numberOfItineraries && !directFlight) {
+      for (Flight[] hop : storage.oneHopFlights(originCity, destinationCity, dayOfMonth,
+          numberOfItineraries - output.size(), filter)) {
+        output.add(new Itinerary(output.size(), false, hop[0], hop[1]));
+      }
+      if (output.isEmpty()) {
+        return "No flights match your selection\n";
       }
-    }  finally {
-      checkDanglingTransaction();
+    }
+    Collections.sort(output);
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < output.size(); i++) {
+      sb.append("Itinerary " + i + output.get(i).toSring());
+    }
+    session.setItineraries(output);
+    return sb.toString();
+  }
+
+  /**
+   * Lists up to 20 cities starting with {@code prefix}, one per line, in alphabetical order.
+   *
+   * @return the cities, or "No cities match [prefix]\n" if there are none, or "Failed to list
+   *         cities\n" if the city names cannot be read
+   */
+  public String transaction_cities(String prefix) {
+    Tracing.tag("transaction_cities");
+    CityIndex cities = cityIndex();
+    return cities == null ? "Failed to list cities\n" : cities.suggest(prefix);
+  }
+
+  /**
+   * Returns the city index of the storage engine, or null if it cannot be loaded.
+   */
+  CityIndex cityIndex() {
+    try {
+      return storage.cities();
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return null;
     }
   }
 
@@ -466,98 +408,211 @@ public class Query {
    *         increments by 1 each time a successful reservation is made by any user in the system.
    */
   public String transaction_book(int itineraryId) {
-    boolean deadlock = false;
-    int retryCount = 0;
-    do{
-    try {
-      // TODO: YOUR CODE HERE
-      if(!login){
-        return "Cannot book reservations, not logged in\n";
-      }else if(output == null || itineraryId > output.size() - 1){
-        return "No such itinerary " + itineraryId + "\n";
-      }
-      Itinerary itinerary = output.get(itineraryId);
-      Flight flight1 = itinerary.flight1;
-      Flight flight2 = itinerary.flight2;
-      int date = flight1.dayOfMonth;
-      checkSameDay.clearParameters();
-      checkSameDay.setString(1, user);
-      checkSameDay.setInt(2, date);
-      conn.setAutoCommit(false);
-      ResultSet rs = checkSameDay.executeQuery();
-      if(rs.next()){
-        conn.rollback();
-        conn.setAutoCommit(true);
-        return "You cannot book two flights in the same day\n";
-      }
-      rs.close();
-      int f1Seats = remainCapacity(flight1.fid);
-      int f2Seats = 0;
-      if(flight2 != null){
-        f2Seats = remainCapacity(flight2.fid);
-      }
-      if((f1Seats > 0) && (flight2 == null || f2Seats>0)){
-        int fid1 = flight1.fid;
-        int fid2 = (flight2 == null) ? -1:flight2.fid;
-        int price1 = flight1.price;
-        int price2 = (flight2 == null) ? 0:flight2.price;
-        insertReservation.clearParameters();
-        insertReservation.setString(1, user);      // Sets the first parameter (the first “?”) to the value of the variable “originCity”
-        insertReservation.setInt(2, fid1);
-        insertReservation.setInt(3, fid2);
-        insertReservation.setBoolean(4, false);
-        insertReservation.setBoolean(5, false);
-        insertReservation.setInt(6, price1 + price2);
-        insertReservation.executeUpdate();
-
-        updateCapacity.clearParameters();
-        updateCapacity.setInt(1,f1Seats-1);
-        updateCapacity.setInt(2,fid1);
-        updateCapacity.executeUpdate();
-        if(flight2 != null){
-          updateCapacity.clearParameters();
-          updateCapacity.setInt(1,f2Seats-1);
-          updateCapacity.setInt(2,fid2);
-          updateCapacity.executeUpdate();
-        }
+    Tracing.tag("transaction_book");
+    if (session.login && storage.committer() != null) {
+      return storage.committer().submit(this, q -> q.transaction_book(itineraryId),
+          "Booking failed\n");
+    }
+    if (!session.login) {
+      return "Cannot book reservations, not logged in\n";
+    } else if (itineraryId < 0 || itineraryId > session.itineraryCount() - 1) {
+      return "No such itinerary " + itineraryId + "\n";
+    }
+    Session.Handle itinerary = session.itinerary(itineraryId);
+    if (storage.combiner() != null) {
+      return storage.combiner().book(this, itinerary);
+    }
+    return transaction(session.user, "Booking failed\n", () -> reserve(itinerary, 1,
+        rids -> "Booked flight(s), reservation ID: " + rids.get(0) + "\n"));
+  }
 
-        getRid.clearParameters();
-        ResultSet rs1 = getRid.executeQuery();
-        rs1.next();
-        int rid = rs1.getInt("rid");
-        conn.commit();
-        conn.setAutoCommit(true);
-        return "Booked flight(s), reservation ID: "+ rid + "\n";
-      }else{
-        conn.commit();
-        conn.setAutoCommit(true);
-        return "Booking failed\n";
+  /**
+   * Implements the group book function. Reserves {@code seats} seats on one itinerary in a single
+   * transaction, so either the whole party is booked or nothing is.
+   *
+   * The same-day check runs once for the party, each flight's capacity is read and written once,
+   * and all reservations are created by one insert.
+   *
+   * @param itineraryId ID of the itinerary to book. This must be one that is returned by search in
+   *                    the current session.
+   * @param seats       number of seats to reserve, between 1 and {@code MAX_PARTY_SIZE}
+   *
+   * @return The same errors as {@link #transaction_book(int)}. If {@code seats} is out of range,
+   *         return "Party size must be between 1 and [max]\n".
+   *
+   *         If booking succeeded, return "Booked [seats] seat(s), reservation IDs: [rid], [rid],
+   *         ...\n" with one reservation ID per seat in increasing order.
+   */
+  public String transaction_bookGroup(int itineraryId, int seats) {
+    Tracing.tag("transaction_bookGroup");
+    if (!session.login) {
+      return "Cannot book reservations, not logged in\n";
+    } else if (itineraryId < 0 || itineraryId > session.itineraryCount() - 1) {
+      return "No such itinerary " + itineraryId + "\n";
+    } else if (seats < 1 || seats > MAX_PARTY_SIZE) {
+      return "Party size must be between 1 and " + MAX_PARTY_SIZE + "\n";
+    }
+    Session.Handle itinerary = session.itinerary(itineraryId);
+    return transaction(session.user, "Booking failed\n", () -> reserve(itinerary, seats, rids -> {
+      StringBuffer sb = new StringBuffer("Booked " + seats + " seat(s), reservation IDs: ");
+      for (int i = 0; i < rids.size(); i++) {
+        sb.append(i == 0 ? "" : ", ").append(rids.get(i));
       }
-    } catch (SQLException e){
-      try{
-        conn.rollback();
-        conn.setAutoCommit(true);
-        deadlock = isDeadLock(e);
-        if(!deadlock){
-          e.printStackTrace();
-          deadlock = false;
-          return "Booking failed\n";
-        }
-        retryCount= retryCount + 1;
-//        System.out.println("Deadlock retry: "+ (retryCount));
-      }catch (SQLException a){
-        a.printStackTrace();
+      return sb.append("\n").toString();
+    }));
+  }
+
+  /**
+   * Reserves {@code seats} seats on {@code itinerary} for the logged in user in the open
+   * transaction, and ends it.
+   *
+   * @param booked the response for the new reservation IDs, in increasing order
+   */
+  private String reserve(Session.Handle itinerary, int seats,
+      Function<List<Integer>, String> booked) throws SQLException {
+    int fid1 = itinerary.fid1;
+    int fid2 = itinerary.fid2;
+    int day = dayBit(itinerary.dayOfMonth);
+    if ((storage.lockUser(session.user) & day) != 0) {
+      storage.rollback();
+      return "You cannot book two flights in the same day\n";
+    }
+    SortedMap<Integer, Integer> free = lockSeats(fid1, fid2);
+    for (int f : free.values()) {
+      if (f < seats) {
+        storage.rollback();
         return "Booking failed\n";
       }
     }
-      finally {
-      checkDanglingTransaction();
+    int price = itinerary.price;
+    List<Integer> rids = storage.insertReservations(session.user, fid1, fid2, price, seats);
+    for (Map.Entry<Integer, Integer> f : free.entrySet()) {
+      storage.setFreeSeats(f.getKey(), f.getValue() - seats);
     }
-    }while(deadlock);
-    System.out.println("Deadlock retry timeout");
-    return "Failed to create user\n";
+    int version = storage.markBookedDays(session.user, day);
+    for (int rid : rids) {
+      publish(EventLog.BOOK, session.user, rid, fid1, fid2, price);
+    }
+    storage.commit();
+    if (advanceViewVersion(version)) {
+      for (int rid : rids) {
+        // the flights are loaded if the reservations are listed
+        session.reservationView.put(rid, new Reservation(rid, false, fid1, fid2));
+      }
+    }
+    return booked.apply(rids);
   }
 
+  /**
+   * Locks the seat counts of {@code fids} (-1 entries are skipped) in increasing fid order and
+   * returns the free seats by fid.
+   */
+  private SortedMap<Integer, Integer> lockSeats(int... fids) throws SQLException {
+    SortedMap<Integer, Integer> free = new TreeMap<>();
+    for (int fid : fids) {
+      if (fid != -1) {
+        free.put(fid, 0);
+      }
+    }
+    for (Map.Entry<Integer, Integer> f : free.entrySet()) {
+      f.setValue(storage.freeSeats(f.getKey()));
+    }
+    return free;
+  }
+
+  /**
+   * Books one seat for each request of a {@link BookingCombiner} batch in a single transaction,
+   * with the result each booking would have had on its own, in batch order. The batch's users are
+   * locked in name order and each flight's capacity is read and written once; all reservations are
+   * created by one insert.
+   *
+   * The reservations of a batch all share their first flight, hence their day, so a user books at
+   * most once per batch.
+   *
+   * @return null if the batch lost a deadlock and may succeed when rerun
+   */
+  String[] bookCombined(List<BookingCombiner.Request> batch) {
+    String[] results = new String[batch.size()];
+    List<BookingCombiner.Request> accepted = new ArrayList<>();
+    Map<String, Integer> rids = Collections.emptyMap();
+    try {
+      storage.begin(batch.get(0).session.user);
+      Map<String, Integer> bookedDaysOf = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+      SortedMap<Integer, Integer> seats = new TreeMap<>();
+      for (BookingCombiner.Request r : batch) {
+        bookedDaysOf.put(r.session.user, 0);
+        seats.put(r.itinerary.fid1, 0);
+        if (r.itinerary.fid2 != -1) {
+          seats.put(r.itinerary.fid2, 0);
+        }
+      }
+      for (Map.Entry<String, Integer> user : bookedDaysOf.entrySet()) {
+        user.setValue(storage.lockUser(user.getKey()));
+      }
+      for (Map.Entry<Integer, Integer> flight : seats.entrySet()) {
+        flight.setValue(storage.freeSeats(flight.getKey()));
+      }
+      Set<Integer> changed = new TreeSet<>();
+      for (int i = 0; i < batch.size(); i++) {
+        BookingCombiner.Request r = batch.get(i);
+        int fid1 = r.itinerary.fid1;
+        int fid2 = r.itinerary.fid2;
+        int bit = dayBit(r.itinerary.dayOfMonth);
+        if ((bookedDaysOf.get(r.session.user) & bit) != 0) {
+          results[i] = "You cannot book two flights in the same day\n";
+        } else if (seats.get(fid1) < 1 || (fid2 != -1 && seats.get(fid2) < 1)) {
+          results[i] = "Booking failed\n";
+        } else {
+          bookedDaysOf.merge(r.session.user, bit, (a, b) -> a | b);
+          seats.merge(fid1, -1, Integer::sum);
+          changed.add(fid1);
+          if (fid2 != -1) {
+            seats.merge(fid2, -1, Integer::sum);
+            changed.add(fid2);
+          }
+          accepted.add(r);
+        }
+      }
+      if (!accepted.isEmpty()) {
+        List<Storage.NewReservation> rows = new ArrayList<>();
+        Map<String, Integer> days = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (BookingCombiner.Request r : accepted) {
+          rows.add(new Storage.NewReservation(r.session.user, r.itinerary.fid1, r.itinerary.fid2,
+              r.itinerary.price));
+          days.put(r.session.user, dayBit(r.itinerary.dayOfMonth));
+        }
+        rids = storage.insertReservations(rows);
+        for (int fid : changed) {
+          storage.setFreeSeats(fid, seats.get(fid));
+        }
+        storage.markBookedDays(days);
+        for (Storage.NewReservation row : rows) {
+          publish(EventLog.BOOK, row.username, rids.get(row.username), row.fid1, row.fid2,
+              row.price);
+        }
+        for (int i = 0; i < batch.size(); i++) {
+          if (results[i] == null) {
+            results[i] = "Booked flight(s), reservation ID: " + rids.get(batch.get(i).session.user)
+                + "\n";
+          }
+        }
+      }
+      storage.commit();
+    } catch (SQLException e) {
+      if (storage.abort(e)) {
+        return null;
+      }
+      Arrays.fill(results, "Booking failed\n");
+      return results;
+    } finally {
+      storage.checkDanglingTransaction();
+    }
+    // The reservation versions moved; each session reloads its view when next listing
+    for (BookingCombiner.Request r : accepted) {
+      r.session.reservationView = null;
+    }
+    return results;
+  }
 
   /**
    * Implements the pay function.
@@ -575,68 +630,150 @@ public class Query {
    *         [balance]\n" where [balance] is the remaining balance in the user's account.
    */
   public String transaction_pay(int reservationId) {
-    try {
-      int price;
-      int fid1;
-      int fid2;
-
-      if(!login){
-        return "Cannot pay, not logged in\n";
-      }
-
-      getReservation.clearParameters();
-      getReservation.setInt(1, reservationId);
-      getReservation.setString(2, user);
-      getReservation.setBoolean(3, false);
-//      conn.execute("BEGIN TRANSACTION;");
-      conn.setAutoCommit(false);
-      ResultSet rs = getReservation.executeQuery();
-      if(!rs.next()){
-        conn.commit();
-        conn.setAutoCommit(true);
-        return "Cannot find unpaid reservation " + reservationId + " under user: " + user +"\n";
-      }else{
-         fid1 = rs.getInt("fid1");
-         fid2 = rs.getInt("fid2");
-         price = rs.getInt("price");
-      }
-      checkUsernameStatement.clearParameters();
-      checkUsernameStatement.setString(1, user);
-      ResultSet rs2 = checkUsernameStatement.executeQuery();
-      rs2.next();
-      int balance = rs2.getInt("balance");
-      if(balance < price){
-        conn.commit();
-        conn.setAutoCommit(true);
-        return "User has only " + balance + " in account but itinerary costs " + price + "\n";
-      }
-      int newBalance = balance - price;
-      updateBalance.clearParameters();
-      updateBalance.setInt(1, newBalance);
-      updateBalance.setString(2, user);
-      updateBalance.executeUpdate();
-
-      updateReservation.clearParameters();
-      updateReservation.setInt(1, reservationId);
-      updateReservation.executeUpdate();
-      conn.commit();
-      conn.setAutoCommit(true);
-      return "Paid reservation: " + reservationId + " remaining balance: " + newBalance + "\n";
-    }
-    catch(SQLException a){
-      try{
-        conn.rollback();
-        conn.setAutoCommit(true);
-        a.printStackTrace();
-        return "Failed to pay for reservation " + reservationId + "\n";
-      }catch(SQLException a2){
-        a2.printStackTrace();
-        return "Failed to pay for reservation " + reservationId + "\n";
-      }
-    }
-    finally {
-      checkDanglingTransaction();
+    Tracing.tag("transaction_pay");
+    if (session.login && storage.committer() != null) {
+      return storage.committer().submit(this, q -> q.transaction_pay(reservationId),
+          "Failed to pay for reservation " + reservationId + "\n");
+    }
+    if (!session.login) {
+      return "Cannot pay, not logged in\n";
     }
+    return transaction(session.user, "Failed to pay for reservation " + reservationId + "\n", () -> {
+      Storage.ReservationRow r = storage.reservation(session.user, reservationId);
+      if (r == null || r.paid) {
+        storage.rollback();
+        return "Cannot find unpaid reservation " + reservationId + " under user: " + session.user
+            + "\n";
+      }
+      int balance = storage.debit(session.user, r.price);
+      if (balance < r.price) {
+        storage.rollback();
+        return "User has only " + balance + " in account but itinerary costs " + r.price + "\n";
+      }
+      storage.markPaid(session.user, Collections.singletonList(reservationId));
+      int version = storage.markBookedDays(session.user, 0);
+      publish(EventLog.PAY, session.user, reservationId, r.fid1, r.fid2, r.price);
+      storage.commit();
+      if (advanceViewVersion(version) && session.reservationView.containsKey(reservationId)) {
+        session.reservationView.get(reservationId).paid = true;
+      }
+      return "Paid reservation: " + reservationId + " remaining balance: " + (balance - r.price)
+          + "\n";
+    });
+  }
+
+  /**
+   * Implements the bulk pay function. Pays several reservations of the logged in user in one
+   * transaction: the balance is checked against the total once and debited with a single ledger
+   * entry, and all reservations are marked paid together.
+   *
+   * @param reservationIds the reservations to pay for, or {@code null} to pay every unpaid
+   *                       reservation of the user
+   *
+   * @return If no user has logged in, then return "Cannot pay, not logged in\n". If paying all and
+   *         nothing is unpaid, return "No unpaid reservations found\n". If the user does not have
+   *         enough money for the total, nothing is paid and "User has only [balance] in account but
+   *         itinerary costs [total]\n" is returned. For all other errors, return "Failed to pay for
+   *         reservation [reservationId]\n" for every requested reservation.
+   *
+   *         Otherwise, one line per requested reservation in ascending ID order, each in the format
+   *         of {@link #transaction_pay(int)}: "Paid reservation: [reservationId] remaining balance:
+   *         [balance]\n" with the balance left after that reservation, or "Cannot find unpaid
+   *         reservation [reservationId] under user: [username]\n".
+   */
+  public String transaction_payBulk(List<Integer> reservationIds) {
+    Tracing.tag("transaction_payBulk");
+    if (!session.login) {
+      return "Cannot pay, not logged in\n";
+    }
+    SortedSet<Integer> requested = reservationIds == null ? null : new TreeSet<>(reservationIds);
+    return transaction(session.user, failedPayments(requested), () -> {
+      SortedMap<Integer, Storage.ReservationRow> unpaid = new TreeMap<>();
+      for (Storage.ReservationRow r : storage.unpaidReservations(session.user, requested)) {
+        unpaid.put(r.rid, r);
+      }
+      if (requested == null && unpaid.isEmpty()) {
+        storage.rollback();
+        return "No unpaid reservations found\n";
+      }
+      int total = 0;
+      for (Storage.ReservationRow r : unpaid.values()) {
+        total += r.price;
+      }
+      int balance = 0;
+      if (total > 0) {
+        balance = storage.debit(session.user, total);
+        if (balance < total) {
+          storage.rollback();
+          return "User has only " + balance + " in account but itinerary costs " + total + "\n";
+        }
+      }
+      if (unpaid.isEmpty()) {
+        storage.rollback();
+      } else {
+        storage.markPaid(session.user, unpaid.keySet());
+        int version = storage.markBookedDays(session.user, 0);
+        for (Storage.ReservationRow r : unpaid.values()) {
+          publish(EventLog.PAY, session.user, r.rid, r.fid1, r.fid2, r.price);
+        }
+        storage.commit();
+        if (advanceViewVersion(version)) {
+          for (int rid : unpaid.keySet()) {
+            if (session.reservationView.containsKey(rid)) {
+              session.reservationView.get(rid).paid = true;
+            }
+          }
+        }
+      }
+
+      StringBuffer sb = new StringBuffer();
+      int remaining = balance;
+      for (int rid : (requested == null ? unpaid.keySet() : requested)) {
+        if (unpaid.containsKey(rid)) {
+          remaining -= unpaid.get(rid).price;
+          sb.append("Paid reservation: " + rid + " remaining balance: " + remaining + "\n");
+        } else {
+          sb.append("Cannot find unpaid reservation " + rid + " under user: " + session.user + "\n");
+        }
+      }
+      return sb.toString();
+    });
+  }
+
+  /**
+   * Implements the top up function: adds money to the logged in user's balance.
+   *
+   * @param amount the amount to add
+   *
+   * @return If no user has logged in, then return "Cannot top up, not logged in\n". If the amount
+   *         is not positive, or for any other error, return "Failed to top up\n".
+   *
+   *         If successful, return "Topped up [amount]\n".
+   */
+  public String transaction_topUp(int amount) {
+    Tracing.tag("transaction_topUp");
+    if (!session.login) {
+      return "Cannot top up, not logged in\n";
+    }
+    if (amount <= 0) {
+      return "Failed to top up\n";
+    }
+    return transaction(session.user, "Failed to top up\n", () -> {
+      storage.credit(session.user, amount);
+      storage.commit();
+      return "Topped up " + amount + "\n";
+    });
+  }
+
+  private static String failedPayments(SortedSet<Integer> reservationIds) {
+    if (reservationIds == null) {
+      return "Failed to pay for reservations\n";
+    }
+    StringBuffer sb = new StringBuffer();
+    for (int rid : reservationIds) {
+      sb.append("Failed to pay for reservation " + rid + "\n");
+    }
+    return sb.toString();
   }
 
   /**
@@ -658,82 +795,68 @@ public class Query {
    * @see Flight#toString()
    */
   public String transaction_reservations() {
+    Tracing.tag("transaction_reservations");
     try {
-      // TODO: YOUR CODE HERE
-      if (!login) {
+      if (!session.login) {
         return "Cannot view reservations, not logged in\n";
       }
 
-      conn.setAutoCommit(false);
+      // Fast path: one primary-key lookup confirms nothing changed since the view was built
+      if (session.reservationView != null
+          && storage.reservationVersion(session.user) == session.viewVersion) {
+        return renderReservations();
+      }
 
-      listValidReservation.clearParameters();
-      listValidReservation.setString(1, user);
-      ResultSet rs = listValidReservation.executeQuery();
-      if (!rs.next()) {
-        rs.close();
-        conn.rollback();
-        conn.setAutoCommit(true);
-        return "No reservations found\n";
+      Storage.ReservationList list = storage.reservations(session.user);
+      SortedMap<Integer, Reservation> view = new TreeMap<>();
+      for (Storage.ReservationRow r : list.rows) {
+        view.put(r.rid, new Reservation(r.rid, r.paid, storage.flight(r.fid1),
+            r.fid2 != -1 ? storage.flight(r.fid2) : null));
       }
-      StringBuffer sb = new StringBuffer();
-      do { 
-        int rid = rs.getInt("rid");
-        int fid1 = rs.getInt("fid1");
-        int fid2 = rs.getInt("fid2");
-        boolean paid = rs.getBoolean("paid");
-        getFlightInfo.clearParameters();
-        getFlightInfo.setInt(1, fid1);
-        ResultSet rs_1 = getFlightInfo.executeQuery();
-        Flight f1 = new Flight();
-        rs_1.next();
-        f1.fid = rs_1.getInt("fid");
-        f1.dayOfMonth = rs_1.getInt("day_of_month");
-        f1.carrierId = rs_1.getString("carrier_id");
-        f1.flightNum = rs_1.getString("flight_num");
-        f1.originCity = rs_1.getString("origin_city");
-        f1.destCity = rs_1.getString("dest_city");
-        f1.time = rs_1.getInt("actual_time");
-        f1.capacity = rs_1.getInt("capacity");
-        f1.price = rs_1.getInt("price");
-        rs_1.close();
-        Flight f2 = null;
-        if (fid2 != -1) {
-          f2 = new Flight();
-          getFlightInfo.clearParameters();
-          getFlightInfo.setInt(1, fid2);
-          ResultSet rs_2 = getFlightInfo.executeQuery();
-          rs_2.next();
-          f1.fid = rs_2.getInt("fid");
-          f2.dayOfMonth = rs_2.getInt("day_of_month");
-          f2.carrierId = rs_2.getString("carrier_id");
-          f2.flightNum = rs_2.getString("flight_num");
-          f2.originCity = rs_2.getString("origin_city");
-          f2.destCity = rs_2.getString("dest_city");
-          f2.time = rs_2.getInt("actual_time");
-          f2.capacity = rs_2.getInt("capacity");
-          f2.price = rs_2.getInt("price");
-          rs_2.close();
-        }
-        if (paid) {
-          sb.append("Reservation " + rid + " paid: true:\n");
-        } else {
-          sb.append("Reservation " + rid + " paid: false:\n");
-        }
-        sb.append(f1.toString() + "\n");
-        if (fid2 != -1) {
-          sb.append(f2.toString() + "\n");
-        }
-      } while(rs.next());
-      rs.close();
-      conn.commit();
-      conn.setAutoCommit(true);
-      return sb.toString();
+      session.reservationView = view;
+      session.viewVersion = list.version;
+      return renderReservations();
     } catch (SQLException e) {
       e.printStackTrace();
       return "Failed to retrieve reservations\n";
     } finally {
-      checkDanglingTransaction();
+      storage.checkDanglingTransaction();
+    }
+  }
+
+  private String renderReservations() throws SQLException {
+    if (session.reservationView.isEmpty()) {
+      return "No reservations found\n";
+    }
+    StringBuffer sb = new StringBuffer();
+    for (Reservation r : session.reservationView.values()) {
+      if (r.flight1 == null) {
+        r.flight1 = storage.flight(r.fid1);
+        r.flight2 = r.fid2 != -1 ? storage.flight(r.fid2) : null;
+      }
+      sb.append(r.toString());
+    }
+    return sb.toString();
+  }
+
+  private static int dayBit(int dayOfMonth) {
+    return 1 << (dayOfMonth - 1);
+  }
+
+  /**
+   * Called after committing a change that moved the user's reservation version to
+   * {@code newVersion}. Returns true if the session's view was current before the change, in which
+   * case the caller applies the change to it in place; otherwise the view is dropped.
+   */
+  private boolean advanceViewVersion(int newVersion) {
+    // A batched transaction may still be rerun, so only invalidate the view
+    if (!storage.batched() && session.reservationView != null
+        && session.viewVersion == newVersion - 1) {
+      session.viewVersion = newVersion;
+      return true;
     }
+    session.reservationView = null;
+    return false;
   }
 
   /**
@@ -749,141 +872,74 @@ public class Query {
    *         Even though a reservation has been canceled, its ID should not be reused by the system.
    */
   public String transaction_cancel(int reservationId) {
-    try {
-      // TODO: YOUR CODE HERE
-      if (!login) {
-        return "Cannot cancel reservations, not logged in\n";
-      }
-      conn.setAutoCommit(false);
-      listSingleValidReservation.clearParameters();
-      listSingleValidReservation.setString(1, user);
-      listSingleValidReservation.setInt(2, reservationId);
-      ResultSet rs = listSingleValidReservation.executeQuery();
-      if (!rs.next()) {
-        rs.close();
-        conn.rollback();
-        conn.setAutoCommit(true);
-        return "Failed to cancel reservation " + reservationId + "\n";
-      }
-      int fid1 = rs.getInt("fid1");
-      int fid2 = rs.getInt("fid2");
-      int price = rs.getInt("price");
-      boolean paid = rs.getBoolean("paid");
-      checkUsernameStatement.clearParameters();
-      checkUsernameStatement.setString(1, user);
-      ResultSet rs_1 = checkUsernameStatement.executeQuery();
-      rs_1.next();
-      int cur_balance = rs_1.getInt("balance");
-      if (paid) {
-        int new_balance = cur_balance + price;
-        updateBalance.clearParameters();
-        updateBalance.setInt(1, new_balance);
-        updateBalance.setString(2, user);
-        updateBalance.executeUpdate();
-      }
-      // update flight1
-      int cur_cap_f1 = remainCapacity(fid1);
-      updateCapacity.clearParameters();
-      updateCapacity.setInt(1, cur_cap_f1 + 1);
-      updateCapacity.setInt(2, fid1);
-      updateCapacity.executeUpdate();
-      // update flight2 if exists
-      if (fid2 != -1) {
-        int cur_cap_f2 = remainCapacity(fid2);
-        updateCapacity.clearParameters();
-        updateCapacity.setInt(1, cur_cap_f2 + 1);
-        updateCapacity.setInt(2, fid2);
-        updateCapacity.executeUpdate();
-      }
-      //delete current reservation
-      deleteReservation.clearParameters();
-      deleteReservation.setInt(1, reservationId);
-      deleteReservation.executeUpdate();
-      conn.commit();
-      conn.setAutoCommit(true);
-      rs.close();
-      rs_1.close();
-      return "Canceled reservation " + reservationId +"\n";
-    } catch (SQLException e){
-      try{
-        conn.rollback();
-        conn.setAutoCommit(true);
-        if(!isDeadLock(e)){
-          e.printStackTrace();
-          return "Failed to cancel reservation" + reservationId + "\n";
+    Tracing.tag("transaction_cancel");
+    if (!session.login) {
+      return "Cannot cancel reservations, not logged in\n";
+    }
+    String failure = "Failed to cancel reservation " + reservationId + "\n";
+    return transaction(session.user, failure, () -> {
+      Storage.ReservationRow r = storage.reservation(session.user, reservationId);
+      if (r == null) {
+        storage.rollback();
+        return failure;
+      }
+      storage.deleteReservation(session.user, reservationId);
+      // Another reservation (e.g. of a group booking) may still hold the day, so recompute the mask
+      int version = storage.rebuildBookedDays(session.user);
+      if (r.paid) {
+        storage.credit(session.user, r.price);
+      }
+      for (int fid : new TreeSet<>(Arrays.asList(r.fid1, r.fid2))) {
+        if (fid != -1) {
+          storage.releaseSeats(fid, 1);
         }
-        // System.out.println("Deadlock retry: " + (retrycount+1));
       }
-      catch (SQLException e2){
-        e2.printStackTrace();
+      publish(EventLog.CANCEL, session.user, reservationId, r.fid1, r.fid2, r.paid ? r.price : 0);
+      storage.commit();
+      if (advanceViewVersion(version)) {
+        session.reservationView.remove(reservationId);
       }
-      return "Failed to cancel reservation" + reservationId + "\n";
-    } finally {
-      checkDanglingTransaction();
-    }
+      return "Canceled reservation " + reservationId + "\n";
+    });
   }
 
   /**
-   * Example utility function that uses prepared statements
+   * Queues a booking event of the current transaction, if booking events are enabled, so it is
+   * published if and only if the transaction commits.
    */
-  private int checkFlightCapacity(int fid) throws SQLException {
-    checkFlightCapacityStatement.clearParameters();
-    checkFlightCapacityStatement.setInt(1, fid);
-    ResultSet results = checkFlightCapacityStatement.executeQuery();
-    results.next();
-    int capacity = results.getInt("capacity");
-    results.close();
-
-    return capacity;
+  private void publish(byte type, String user, int rid, int fid1, int fid2, int amount)
+      throws SQLException {
+    if (EventLog.enabled()) {
+      storage.queueEvent(type, rid, user, fid1, fid2, amount);
+    }
   }
 
-  private int remainCapacity(int fid) throws SQLException{
-      int capacity = 0;
-      getCapacity.clearParameters();
-      getCapacity.setInt(1, fid);
-      ResultSet rs = getCapacity.executeQuery();
-      if(rs.next()){
-        capacity = rs.getInt("freeSeat");
-      }else{
-        capacity = checkFlightCapacity(fid);
-        insertCapacity.clearParameters();
-        insertCapacity.setInt(1, fid);      // Sets the first parameter (the first “?”) to the value of the variable “originCity”
-        insertCapacity.setInt(2, capacity);
-        insertCapacity.executeUpdate();
-      }
-      return capacity;
+  /**
+   * Returns the session this Query is serving.
+   */
+  public Session session() {
+    return session;
   }
 
   /**
-   * Throw IllegalStateException if transaction not completely complete, rollback.
-   * 
+   * Serves {@code session} from now on, e.g. one taken from a {@link SessionStore}.
    */
-  private void checkDanglingTransaction() {
-    try {
-      try (ResultSet rs = tranCountStatement.executeQuery()) {
-        rs.next();
-        int count = rs.getInt("tran_count");
-        if (count > 0) {
-          throw new IllegalStateException(
-              "Transaction not fully commit/rollback. Number of transaction in process: " + count);
-        }
-      } finally {
-        conn.setAutoCommit(true);
-      }
-    } catch (SQLException e) {
-      throw new IllegalStateException("Database error", e);
-    }
+  public void attach(Session session) {
+    this.session = session;
   }
 
-  private static boolean isDeadLock(SQLException ex) {
-    return ex.getErrorCode() == 1205;
+  /**
+   * Takes over the session of {@code other}, so this committer-owned Query can run its book or pay.
+   */
+  void adopt(Query other) {
+    session = other.session;
   }
 
   /**
    * A class to store flight information.
    */
 
-  class Itinerary implements Comparable<Itinerary>{
+  static class Itinerary implements Comparable<Itinerary>{
     public int id;
     public int flightCount;
     public boolean directFlight;
@@ -913,7 +969,7 @@ public class Query {
           return this.flight1.fid - a.flight1.fid;
         }else{
           return this.flight2.fid - a.flight2.fid;
-        } 
+        }
       }else{
         return 1;
       }
@@ -930,7 +986,37 @@ public class Query {
   }
 
 
-  class Flight {
+  static class Reservation {
+    public int rid;
+    public boolean paid;
+    final int fid1;
+    final int fid2;
+    // Null until loaded, for a reservation the session booked itself
+    Flight flight1;
+    Flight flight2;
+
+    public Reservation(int rid, boolean paid, Flight flight1, Flight flight2) {
+      this(rid, paid, flight1.fid, flight2 == null ? -1 : flight2.fid);
+      this.flight1 = flight1;
+      this.flight2 = flight2;
+    }
+
+    Reservation(int rid, boolean paid, int fid1, int fid2) {
+      this.rid = rid;
+      this.paid = paid;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+    }
+
+    @Override
+    public String toString() {
+      String str = "Reservation " + rid + " paid: " + paid + ":\n" + flight1.toString() + "\n";
+      return flight2 == null ? str : str + flight2.toString() + "\n";
+    }
+  }
+
+
+  static class Flight {
     public int fid;
     public int dayOfMonth;
     public String carrierId;
@@ -0,0 +1,417 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Rebooks the passengers of a canceled flight onto the best remaining itinerary of the same route
+ * and day.
+ *
+ * The affected reservations are the active ones holding the flight; a reservation's route runs
+ * from the origin of its first flight to the destination of its last. The candidate itineraries
+ * of each distinct route are searched in parallel, one worker connection per thread, with the
+ * search queries, and ranked by {@link Query.Itinerary#compareTo}, as search ranks them.
+ *
+ * Seats are then allocated by a single thread from one snapshot of the free seats of every
+ * candidate flight, so the last seat of a flight goes to one passenger only: paid reservations
+ * first, then by reservation ID (earliest booking first), each passenger takes the best candidate
+ * that still has a seat on all of its flights, counting the seat they already hold on the other
+ * flight of their itinerary. The plan is committed in batches, one transaction each: users are
+ * locked in name order and capacity rows in fid order, as bookings lock them, each reservation and
+ * seat is checked again, and the reservation is moved to its new flights in place, keeping its ID,
+ * price and payment, while the seat on its old flight that is not canceled is returned. Passengers
+ * whose seats live bookings took meanwhile are planned again, for up to three rounds; the rest stay
+ * on the canceled flight, for {@link FlightCancellation} to cancel and refund.
+ *
+ * Only used with a single database.
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.reaccommodate.threads     worker connections searching alternatives (default 4)
+ * flightapp.reaccommodate.candidates  itineraries considered per route (default 20)
+ * flightapp.reaccommodate.batch_size  reservations moved per transaction (default 100)
+ */
+public class Reaccommodation {
+  private static final int MAX_ATTEMPTS = 10;
+  private static final int MAX_ROUNDS = 3;
+  // Parameters per statement are limited to 2100
+  private static final int MAX_IN_LIST = 2000;
+
+  private static final String AFFECTED_SQL = "SELECT R.rid, R.username, R.fid1, R.fid2, R.paid, "
+      + "F1.origin_city, COALESCE(F2.dest_city, F1.dest_city) AS dest_city, F1.day_of_month "
+      + "FROM RESERVATIONS AS R JOIN FLIGHTS AS F1 ON F1.fid = R.fid1 "
+      + "LEFT JOIN FLIGHTS AS F2 ON F2.fid = R.fid2 "
+      + "WHERE R.canceled = 0 AND (R.fid1 = ? OR R.fid2 = ?)";
+  private static final String MOVE_RESERVATION_SQL = "UPDATE RESERVATIONS SET fid1 = ?, fid2 = ? "
+      + "WHERE rid = ? AND canceled = 0 AND (fid1 = ? OR fid2 = ?)";
+  private static final String BUMP_VERSION_SQL =
+      "UPDATE USERS SET res_version = res_version + 1 WHERE username = ?";
+
+  private final Connection conn;
+  // Statements of the commits, reused by every batch
+  private final StatementCache statements;
+  private final CapacityStatements capacity;
+  private final int threads;
+  private final int candidatesPerRoute;
+  private final int batchSize;
+
+  /**
+   * One reservation of the canceled flight.
+   */
+  static class Affected {
+    final int rid;
+    final String username;
+    final int fid1;
+    final int fid2;
+    final boolean paid;
+    final String route;
+    // The planned itinerary, null if none had seats
+    Query.Itinerary rebooked;
+
+    Affected(int rid, String username, int fid1, int fid2, boolean paid, String route) {
+      this.rid = rid;
+      this.username = username;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+      this.paid = paid;
+      this.route = route;
+    }
+
+    /**
+     * The reservation's flight other than {@code canceledFid}, or -1 for a direct flight.
+     */
+    int otherFid(int canceledFid) {
+      return fid1 == canceledFid ? fid2 : fid1;
+    }
+  }
+
+  public Reaccommodation(Connection conn, int threads, int candidatesPerRoute, int batchSize) {
+    this.conn = conn;
+    this.statements = new StatementCache(conn);
+    this.capacity = new CapacityStatements(statements);
+    this.threads = threads;
+    this.candidatesPerRoute = candidatesPerRoute;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Creates a job on {@code conn} configured from the settings.
+   */
+  public static Reaccommodation fromSettings(Connection conn) {
+    return new Reaccommodation(conn,
+        Integer.parseInt(Query.getSetting("flightapp.reaccommodate.threads", "4")),
+        Integer.parseInt(Query.getSetting("flightapp.reaccommodate.candidates", "20")),
+        Integer.parseInt(Query.getSetting("flightapp.reaccommodate.batch_size", "100")));
+  }
+
+  /**
+   * Moves the active reservations of flight {@code fid}, which must already be closed to
+   * bookings, to the best alternatives with free seats.
+   *
+   * @return a one-line summary
+   */
+  public String run(int fid) throws SQLException, IOException {
+    List<Affected> affected = affected(fid);
+    Map<String, List<Query.Itinerary>> candidates = candidates(affected, fid);
+    affected.sort(Comparator.comparing((Affected a) -> !a.paid).thenComparingInt(a -> a.rid));
+    int moved = 0;
+    List<Affected> pending = affected;
+    for (int round = 0; round < MAX_ROUNDS && !pending.isEmpty(); round++) {
+      List<Affected> planned = plan(pending, candidates, fid);
+      List<Affected> lost = new ArrayList<>();
+      for (int i = 0; i < planned.size(); i += batchSize) {
+        List<Affected> batch = planned.subList(i, Math.min(planned.size(), i + batchSize));
+        List<Affected> batchLost = commit(batch, fid);
+        moved += batch.size() - batchLost.size();
+        lost.addAll(batchLost);
+      }
+      pending = lost;
+    }
+    return "Rebooked " + moved + " of " + affected.size() + " reservations of flight " + fid
+        + "\n";
+  }
+
+  /**
+   * Active reservations holding flight {@code fid}.
+   */
+  List<Affected> affected(int fid) throws SQLException {
+    List<Affected> affected = new ArrayList<>();
+    try (PreparedStatement ps = conn.prepareStatement(AFFECTED_SQL)) {
+      ps.setInt(1, fid);
+      ps.setInt(2, fid);
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          int fid2 = rs.getInt("fid2");
+          affected.add(new Affected(rs.getInt("rid"), rs.getString("username"), rs.getInt("fid1"),
+              rs.wasNull() ? -1 : fid2, rs.getBoolean("paid"), routeKey(rs.getString("origin_city"),
+                  rs.getString("dest_city"), rs.getInt("day_of_month"))));
+        }
+      }
+    }
+    return affected;
+  }
+
+  /**
+   * Searches the best itineraries of every route of {@code affected} that avoid {@code fid}, the
+   * routes spread over the worker connections.
+   */
+  private Map<String, List<Query.Itinerary>> candidates(List<Affected> affected, int fid)
+      throws SQLException, IOException {
+    Set<String> distinct = new TreeSet<>();
+    for (Affected a : affected) {
+      distinct.add(a.route);
+    }
+    List<String> routes = new ArrayList<>(distinct);
+    Map<String, List<Query.Itinerary>> candidates = new ConcurrentHashMap<>();
+    if (routes.isEmpty()) {
+      return candidates;
+    }
+    int workers = Math.max(1, Math.min(threads, routes.size()));
+    ExecutorService pool = Executors.newFixedThreadPool(workers);
+    try {
+      List<Future<Void>> done = new ArrayList<>();
+      for (int w = 0; w < workers; w++) {
+        int worker = w;
+        done.add(pool.submit(() -> {
+          try (Connection search = Query.openConnectionFromDbConn()) {
+            for (int i = worker; i < routes.size(); i += workers) {
+              candidates.put(routes.get(i), search(search, routes.get(i), fid));
+            }
+          }
+          return null;
+        }));
+      }
+      for (Future<Void> f : done) {
+        FlightService.await(f);
+      }
+    } finally {
+      pool.shutdown();
+    }
+    return candidates;
+  }
+
+  /**
+   * The best {@code candidatesPerRoute} itineraries of one route without flight {@code fid}.
+   */
+  private List<Query.Itinerary> search(Connection search, String route, int fid)
+      throws SQLException {
+    String[] key = route.split("\\|", -1);
+    List<Query.Itinerary> itineraries = new ArrayList<>();
+    try (PreparedStatement direct = search.prepareStatement(
+        JdbcStorage.DIRECT_SEARCH_SQL + " ORDER BY actual_time, fid")) {
+      bindRoute(direct, key);
+      try (ResultSet rs = direct.executeQuery()) {
+        while (rs.next()) {
+          Query.Flight f = flight(rs, "");
+          if (f.fid != fid) {
+            itineraries.add(new Query.Itinerary(0, true, f, null));
+          }
+        }
+      }
+    }
+    try (PreparedStatement oneHop = search.prepareStatement(JdbcStorage.ONE_HOP_SEARCH_SQL
+        + " ORDER BY f1.actual_time + f2.actual_time, f1.fid, f2.fid")) {
+      bindRoute(oneHop, key);
+      try (ResultSet rs = oneHop.executeQuery()) {
+        while (rs.next()) {
+          Query.Flight f1 = flight(rs, "f1_");
+          Query.Flight f2 = flight(rs, "f2_");
+          if (f1.fid != fid && f2.fid != fid) {
+            itineraries.add(new Query.Itinerary(0, false, f1, f2));
+          }
+        }
+      }
+    }
+    Collections.sort(itineraries);
+    return itineraries.subList(0, Math.min(itineraries.size(), candidatesPerRoute));
+  }
+
+  private void bindRoute(PreparedStatement ps, String[] key) throws SQLException {
+    // One more than needed, in case the canceled flight is among them
+    ps.setInt(1, candidatesPerRoute + 1);
+    ps.setString(2, key[0]);
+    ps.setString(3, key[1]);
+    ps.setInt(4, Integer.parseInt(key[2]));
+  }
+
+  private static Query.Flight flight(ResultSet rs, String prefix) throws SQLException {
+    Query.Flight f = new Query.Flight();
+    f.fid = rs.getInt(prefix + "fid");
+    f.dayOfMonth = rs.getInt(prefix + "day_of_month");
+    f.carrierId = rs.getString(prefix + "carrier_id");
+    f.flightNum = rs.getString(prefix + "flight_num");
+    f.originCity = rs.getString(prefix + "origin_city");
+    f.destCity = rs.getString(prefix + "dest_city");
+    f.time = rs.getInt(prefix + "actual_time");
+    f.capacity = rs.getInt(prefix + "capacity");
+    f.price = rs.getInt(prefix + "price");
+    return f;
+  }
+
+  /**
+   * Assigns each of {@code pending}, in order, its best candidate with free seats.
+   *
+   * @return the reservations that got an itinerary, in order
+   */
+  private List<Affected> plan(List<Affected> pending, Map<String, List<Query.Itinerary>> candidates,
+      int fid) throws SQLException {
+    Set<Integer> fids = new HashSet<>();
+    for (Affected a : pending) {
+      for (Query.Itinerary it : candidates.get(a.route)) {
+        fids.add(it.flight1.fid);
+        if (it.flight2 != null) {
+          fids.add(it.flight2.fid);
+        }
+      }
+    }
+    Map<Integer, Integer> free = freeSeats(fids);
+    List<Affected> planned = new ArrayList<>();
+    for (Affected a : pending) {
+      a.rebooked = null;
+      int other = a.otherFid(fid);
+      // The passenger's own seat on their other flight is theirs to keep
+      free.computeIfPresent(other, (k, n) -> n + 1);
+      for (Query.Itinerary it : candidates.get(a.route)) {
+        if (free.getOrDefault(it.flight1.fid, 0) >= 1
+            && (it.flight2 == null || free.getOrDefault(it.flight2.fid, 0) >= 1)) {
+          a.rebooked = it;
+          break;
+        }
+      }
+      if (a.rebooked == null) {
+        free.computeIfPresent(other, (k, n) -> n - 1);
+        continue;
+      }
+      free.merge(a.rebooked.flight1.fid, -1, Integer::sum);
+      if (a.rebooked.flight2 != null) {
+        free.merge(a.rebooked.flight2.fid, -1, Integer::sum);
+      }
+      planned.add(a);
+    }
+    return planned;
+  }
+
+  /**
+   * Free seats of {@code fids}, from capacity or, for flights never booked, Flights.
+   */
+  private Map<Integer, Integer> freeSeats(Set<Integer> fids) throws SQLException {
+    Map<Integer, Integer> free = new HashMap<>();
+    List<Integer> all = new ArrayList<>(fids);
+    for (int i = 0; i < all.size(); i += MAX_IN_LIST) {
+      List<Integer> chunk = all.subList(i, Math.min(all.size(), i + MAX_IN_LIST));
+      String sql = "SELECT F.fid, COALESCE(C.freeSeat, F.capacity) AS free FROM FLIGHTS AS F "
+          + "LEFT JOIN CAPACITY AS C ON C.fid = F.fid WHERE F.fid IN ("
+          + String.join(",", Collections.nCopies(chunk.size(), "?")) + ")";
+      try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        for (int j = 0; j < chunk.size(); j++) {
+          ps.setInt(j + 1, chunk.get(j));
+        }
+        try (ResultSet rs = ps.executeQuery()) {
+          while (rs.next()) {
+            free.put(rs.getInt("fid"), rs.getInt("free"));
+          }
+        }
+      }
+    }
+    return free;
+  }
+
+  /**
+   * Moves the reservations of {@code batch} to their planned itineraries in one transaction,
+   * rerunning it after a deadlock.
+   *
+   * @return the reservations that could not be moved because a flight had no seat left
+   */
+  private List<Affected> commit(List<Affected> batch, int fid) throws SQLException {
+    for (int attempt = 1; ; attempt++) {
+      List<Affected> lost = new ArrayList<>();
+      try {
+        conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        conn.setAutoCommit(false);
+        Set<String> users = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        SortedMap<Integer, Integer> seats = new TreeMap<>();
+        for (Affected a : batch) {
+          users.add(a.username);
+          seats.put(a.rebooked.flight1.fid, 0);
+          if (a.rebooked.flight2 != null) {
+            seats.put(a.rebooked.flight2.fid, 0);
+          }
+          if (a.otherFid(fid) != -1) {
+            seats.put(a.otherFid(fid), 0);
+          }
+        }
+        PreparedStatement lockUser = statements.get(JdbcStorage.LOCK_USER_SQL);
+        for (String user : users) {
+          lockUser.clearParameters();
+          lockUser.setString(1, user);
+          try (ResultSet rs = lockUser.executeQuery()) {
+            rs.next();
+          }
+        }
+        for (Map.Entry<Integer, Integer> flight : seats.entrySet()) {
+          flight.setValue(capacity.remaining(flight.getKey()));
+        }
+        Set<String> movedUsers = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        PreparedStatement move = statements.get(MOVE_RESERVATION_SQL);
+        for (Affected a : batch) {
+          int other = a.otherFid(fid);
+          Query.Flight f1 = a.rebooked.flight1;
+          Query.Flight f2 = a.rebooked.flight2;
+          if (other != -1) {
+            seats.merge(other, 1, Integer::sum);
+          }
+          if (seats.get(f1.fid) < 1 || (f2 != null && seats.get(f2.fid) < 1)) {
+            if (other != -1) {
+              seats.merge(other, -1, Integer::sum);
+            }
+            lost.add(a);
+            continue;
+          }
+          move.clearParameters();
+          move.setInt(1, f1.fid);
+          move.setInt(2, f2 == null ? -1 : f2.fid);
+          move.setInt(3, a.rid);
+          move.setInt(4, fid);
+          move.setInt(5, fid);
+          if (move.executeUpdate() == 0) {
+            // canceled by its owner before the batch locked them
+            if (other != -1) {
+              seats.merge(other, -1, Integer::sum);
+            }
+            continue;
+          }
+          seats.merge(f1.fid, -1, Integer::sum);
+          if (f2 != null) {
+            seats.merge(f2.fid, -1, Integer::sum);
+          }
+          movedUsers.add(a.username);
+        }
+        for (Map.Entry<Integer, Integer> flight : seats.entrySet()) {
+          capacity.update(flight.getKey(), flight.getValue());
+        }
+        PreparedStatement bumpVersion = statements.get(BUMP_VERSION_SQL);
+        for (String user : movedUsers) {
+          bumpVersion.setString(1, user);
+          bumpVersion.addBatch();
+        }
+        if (!movedUsers.isEmpty()) {
+          bumpVersion.executeBatch();
+        }
+        conn.commit();
+        return lost;
+      } catch (SQLException e) {
+        conn.rollback();
+        if (!JdbcStorage.isDeadLock(e) || attempt == MAX_ATTEMPTS) {
+          throw e;
+        }
+      } finally {
+        conn.setAutoCommit(true);
+      }
+    }
+  }
+
+  private static String routeKey(String originCity, String destCity, int dayOfMonth) {
+    return originCity + "|" + destCity + "|" + dayOfMonth;
+  }
+}
@@ -0,0 +1,143 @@
+package flightapp;
+
+import java.sql.*;
+
+/**
+ * Routes read-only work (searches and flight lookups) to a read-only replica connection while
+ * writes stay on the primary.
+ *
+ * The replica is used only while its replication lag, as reported by the primary, is within the
+ * configured staleness bound. The lag is checked at most once per check interval. If the replica
+ * cannot be reached, is too far behind or its lag is unknown, readers fall back to the primary
+ * until the next check.
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.replica.server_url      replica server; unset disables the read/write split
+ * flightapp.replica.database_name   defaults to flightapp.database_name
+ * flightapp.replica.username        defaults to flightapp.username
+ * flightapp.replica.password        defaults to flightapp.password
+ * flightapp.replica.max_lag_seconds staleness bound (default 30)
+ * flightapp.replica.check_seconds   interval between lag checks (default 5)
+ */
+class ReplicaRouter {
+  // Largest lag of any secondary of the current database. NULL when the primary reports no
+  // secondary (no availability group, or the replica is disconnected), which counts as stale.
+  private static final String REPLICA_LAG_SQL =
+      "SELECT MAX(secondary_lag_seconds) AS lag FROM sys.dm_hadr_database_replica_states "
+      + "WHERE is_local = 0 AND database_id = DB_ID()";
+
+  private final String serverURL;
+  private final String dbName;
+  private final String adminName;
+  private final String password;
+  private final int maxLagSeconds;
+  private final long checkMillis;
+
+  private Connection replica;
+  private PreparedStatement flightInfo;
+  private boolean usable;
+  private long nextCheck;
+
+  ReplicaRouter(String serverURL, String dbName, String adminName, String password,
+      int maxLagSeconds, int checkSeconds) {
+    this.serverURL = serverURL;
+    this.dbName = dbName;
+    this.adminName = adminName;
+    this.password = password;
+    this.maxLagSeconds = maxLagSeconds;
+    this.checkMillis = checkSeconds * 1000L;
+  }
+
+  /**
+   * Returns the configured router, or null if no replica is configured.
+   */
+  static ReplicaRouter fromSettings() {
+    String serverURL = Query.getSetting("flightapp.replica.server_url", null);
+    if (serverURL == null) {
+      return null;
+    }
+    return new ReplicaRouter(serverURL,
+        Query.getSetting("flightapp.replica.database_name",
+            Query.getSetting("flightapp.database_name", null)),
+        Query.getSetting("flightapp.replica.username", Query.getSetting("flightapp.username", null)),
+        Query.getSetting("flightapp.replica.password", Query.getSetting("flightapp.password", null)),
+        Integer.parseInt(Query.getSetting("flightapp.replica.max_lag_seconds", "30")),
+        Integer.parseInt(Query.getSetting("flightapp.replica.check_seconds", "5")));
+  }
+
+  /**
+   * Returns the connection reads should use: the replica if it is reachable and fresh enough,
+   * otherwise {@code primary}.
+   */
+  Connection reader(Connection primary) {
+    long now = System.currentTimeMillis();
+    if (now >= nextCheck) {
+      nextCheck = now + checkMillis;
+      usable = connect() && withinStaleness(primary);
+    }
+    return usable ? replica : primary;
+  }
+
+  /**
+   * Returns a statement selecting a Flights row by fid on the replica.
+   */
+  PreparedStatement flightInfo() throws SQLException {
+    if (flightInfo == null) {
+      flightInfo = replica.prepareStatement("SELECT * FROM Flights WHERE fid = ?");
+    }
+    return flightInfo;
+  }
+
+  /**
+   * Records that a read on the replica failed; reads go to the primary until the next check.
+   */
+  void failed(SQLException e) {
+    System.err.println("Replica read failed, falling back to primary: " + e.getMessage());
+    usable = false;
+    close();
+  }
+
+  void close() {
+    if (replica != null) {
+      try {
+        replica.close();
+      } catch (SQLException e) {
+        // already broken
+      }
+    }
+    replica = null;
+    flightInfo = null;
+  }
+
+  private boolean connect() {
+    try {
+      if (replica == null || !replica.isValid(1)) {
+        close();
+        replica = Query.openConnectionFromCredential(serverURL, dbName, adminName, password,
+            "applicationIntent=ReadOnly");
+        replica.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        replica.setReadOnly(true);
+      }
+      return true;
+    } catch (SQLException e) {
+      System.err.println("Replica unavailable: " + e.getMessage());
+      close();
+      return false;
+    }
+  }
+
+  private boolean withinStaleness(Connection primary) {
+    try (Statement s = primary.createStatement(); ResultSet rs = s.executeQuery(REPLICA_LAG_SQL)) {
+      rs.next();
+      long lag = rs.getLong("lag");
+      if (rs.wasNull()) {
+        System.err.println("Replica lag unknown, reading from the primary");
+        return false;
+      }
+      return lag <= maxLagSeconds;
+    } catch (SQLException e) {
+      System.err.println("Cannot read replica lag: " + e.getMessage());
+      return false;
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Measures the latency of the hot queries before and after the pending {@link Migrations}.
+ *
+ * Seeds a synthetic load of users (named bench_*) with reservations on random flights, times every
+ * query, applies the pending migrations, times them again and removes the seeded rows. On a
+ * database with no pending migrations both runs use the same schema.
+ *
+ * Usage: SchemaBenchmark [users] [reservations per user] [runs per query]
+ * (default 10000 20 200), against the database of dbconn.properties
+ */
+public class SchemaBenchmark {
+  private static final String PREFIX = "bench_";
+
+  // Hold expiry's scan, without its update
+  private static final String EXPIRED_HOLDS_SQL = "SELECT TOP (500) rid FROM RESERVATIONS "
+      + "WHERE paid = 0 AND canceled = 0 AND booked_at < DATEADD(second, -?, SYSUTCDATETIME())";
+  private static final String BOOKED_DAYS_OF_USER_SQL =
+      "SELECT " + JdbcStorage.BOOKED_DAYS_SQL + " FROM USERS WHERE username = ?";
+
+  private final Connection conn;
+  private final Random random = new Random(42);
+  private final int users;
+  private final int runs;
+  private final int[] fids;
+  private final String[][] routes;
+
+  SchemaBenchmark(Connection conn, int users, int runs) throws SQLException {
+    this.conn = conn;
+    this.users = users;
+    this.runs = runs;
+    List<Integer> sampled = new ArrayList<>();
+    List<String[]> sampledRoutes = new ArrayList<>();
+    try (Statement s = conn.createStatement(); ResultSet rs = s.executeQuery(
+        "SELECT TOP (1000) fid, origin_city, dest_city, day_of_month FROM Flights "
+        + "WHERE canceled = 0 ORDER BY NEWID()")) {
+      while (rs.next()) {
+        sampled.add(rs.getInt("fid"));
+        sampledRoutes.add(new String[] { rs.getString("origin_city"), rs.getString("dest_city"),
+            rs.getString("day_of_month") });
+      }
+    }
+    fids = sampled.stream().mapToInt(Integer::intValue).toArray();
+    routes = sampledRoutes.toArray(new String[0][]);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int users = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int perUser = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    int runs = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+    Connection conn = Query.openConnectionFromDbConn();
+    try {
+      SchemaBenchmark bench = new SchemaBenchmark(conn, users, runs);
+      bench.seed(perUser);
+      try {
+        Map<String, long[]> before = bench.measure();
+        List<Migrations.Migration> applied = Migrations.migrate(conn);
+        Map<String, long[]> after = bench.measure();
+        System.out.println(applied.isEmpty() ? "no pending migrations"
+            : "applied migrations " + applied.get(0).version + " to "
+                + applied.get(applied.size() - 1).version);
+        System.out.printf("%-28s %12s %12s %12s %12s%n", "query", "before p50", "before p95",
+            "after p50", "after p95");
+        for (String name : before.keySet()) {
+          long[] b = before.get(name);
+          long[] a = after.get(name);
+          System.out.printf("%-28s %10d us %10d us %10d us %10d us%n", name, b[0], b[1], a[0],
+              a[1]);
+        }
+      } finally {
+        bench.unseed();
+      }
+    } finally {
+      conn.close();
+    }
+  }
+
+  /**
+   * Adds {@code users} users with {@code perUser} reservations each, a quarter of them unpaid,
+   * and capacity rows for the sampled flights that have none.
+   */
+  void seed(int perUser) throws SQLException {
+    conn.setAutoCommit(false);
+    try (PreparedStatement user = conn.prepareStatement(
+            "INSERT INTO users (username, hash, salt, balance) VALUES(?,?,?,?)");
+        PreparedStatement reservation = conn.prepareStatement(
+            "INSERT INTO reservations (username, fid1, fid2, paid, canceled, price) "
+            + "VALUES(?,?,NULL,?,0,100)")) {
+      byte[] empty = new byte[0];
+      for (int i = 0; i < users; i++) {
+        user.setString(1, PREFIX + i);
+        user.setBytes(2, empty);
+        user.setBytes(3, empty);
+        user.setInt(4, 1000);
+        user.addBatch();
+        for (int j = 0; j < perUser; j++) {
+          reservation.setString(1, PREFIX + i);
+          reservation.setInt(2, fids[random.nextInt(fids.length)]);
+          reservation.setInt(3, j % 4 == 0 ? 0 : 1);
+          reservation.addBatch();
+        }
+        if (i % 500 == 499 || i == users - 1) {
+          user.executeBatch();
+          reservation.executeBatch();
+          conn.commit();
+        }
+      }
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+    }
+    try (Statement s = conn.createStatement()) {
+      s.executeUpdate("INSERT INTO capacity (fid, freeSeat) SELECT F.fid, F.capacity "
+          + "FROM Flights AS F WHERE F.fid IN (" + inList(fids) + ") "
+          + "AND NOT EXISTS (SELECT * FROM capacity AS C WHERE C.fid = F.fid)");
+    }
+  }
+
+  /**
+   * Removes the seeded users and reservations. Capacity rows are left, as after a booking.
+   */
+  void unseed() throws SQLException {
+    try (Statement s = conn.createStatement()) {
+      s.executeUpdate("DELETE FROM reservations WHERE username LIKE 'bench[_]%'");
+      s.executeUpdate("DELETE FROM users WHERE username LIKE 'bench[_]%'");
+    }
+  }
+
+  /**
+   * Times every query {@code runs} times with random parameters.
+   *
+   * @return p50 and p95 latency in microseconds by query name
+   */
+  Map<String, long[]> measure() throws SQLException {
+    Map<String, long[]> result = new LinkedHashMap<>();
+    result.put("search direct", time(this::searchDirect));
+    result.put("search one hop", time(this::searchOneHop));
+    result.put("list reservations", time(() -> query(JdbcStorage.LIST_VALID_RESERVATION_SQL,
+        randomUser())));
+    result.put("find reservation", time(() -> query(JdbcStorage.LIST_SINGLE_VALID_RESERVATION_SQL,
+        randomUser(), random.nextInt(Integer.MAX_VALUE))));
+    result.put("lock user and balance", time(() -> query(JdbcStorage.LOCK_USER_SQL, randomUser())));
+    result.put("booked days", time(() -> query(BOOKED_DAYS_OF_USER_SQL, randomUser())));
+    result.put("capacity", time(() -> query(CapacityStatements.GET_CAPACITY_SQL,
+        fids[random.nextInt(fids.length)])));
+    result.put("expired holds", time(() -> query(EXPIRED_HOLDS_SQL, 3600)));
+    return result;
+  }
+
+  private interface Run {
+    void run() throws SQLException;
+  }
+
+  private long[] time(Run run) throws SQLException {
+    for (int i = 0; i < Math.min(runs, 10); i++) {
+      run.run();
+    }
+    long[] micros = new long[runs];
+    for (int i = 0; i < runs; i++) {
+      long start = System.nanoTime();
+      run.run();
+      micros[i] = (System.nanoTime() - start) / 1000;
+    }
+    Arrays.sort(micros);
+    return new long[] { micros[runs / 2], micros[runs * 95 / 100] };
+  }
+
+  private void searchDirect() throws SQLException {
+    String[] r = routes[random.nextInt(routes.length)];
+    search("SELECT TOP (10) fid, actual_time FROM Flights WHERE origin_city = ? AND dest_city = ? "
+        + "AND canceled = 0 AND day_of_month = ? ORDER BY actual_time ASC", r);
+  }
+
+  private void searchOneHop() throws SQLException {
+    String[] r = routes[random.nextInt(routes.length)];
+    search("SELECT TOP (10) f1.fid, f2.fid FROM Flights AS f1, Flights AS f2 "
+        + "WHERE f1.origin_city = ? AND f2.dest_city = ? AND f1.dest_city = f2.origin_city "
+        + "AND f1.day_of_month = f2.day_of_month AND f1.day_of_month = ? "
+        + "AND f1.canceled = 0 AND f2.canceled = 0 ORDER BY f1.actual_time + f2.actual_time ASC",
+        r);
+  }
+
+  private void search(String sql, String[] route) throws SQLException {
+    query(sql, route[0], route[1], Integer.parseInt(route[2]));
+  }
+
+  private void query(String sql, Object... params) throws SQLException {
+    try (PreparedStatement ps = conn.prepareStatement(sql)) {
+      for (int i = 0; i < params.length; i++) {
+        ps.setObject(i + 1, params[i]);
+      }
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          // drain
+        }
+      }
+    }
+  }
+
+  private String randomUser() {
+    return PREFIX + random.nextInt(users);
+  }
+
+  private static String inList(int[] values) {
+    StringBuilder sb = new StringBuilder();
+    for (int v : values) {
+      sb.append(sb.length() == 0 ? "" : ",").append(v);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,150 @@
+package flightapp;
+
+import java.sql.*;
+
+/**
+ * Optional restrictions of a search: carrier, maximum total price, maximum total flight time and
+ * maximum number of flights (legs).
+ *
+ * The restrictions are applied where itineraries are selected, as predicates of the search query
+ * ({@link #where}) or while walking the in-memory index ({@link #accepts}), so the requested
+ * number of itineraries counts only matching ones and nothing is filtered afterwards. A carrier
+ * restriction applies to every flight of an itinerary.
+ */
+public final class SearchFilter {
+  public static final SearchFilter NONE = new SearchFilter(null, Integer.MAX_VALUE,
+      Integer.MAX_VALUE, 2);
+
+  // null for any carrier
+  public final String carrierId;
+  public final int maxPrice;
+  public final int maxMinutes;
+  public final int maxLegs;
+
+  public SearchFilter(String carrierId, int maxPrice, int maxMinutes, int maxLegs) {
+    this.carrierId = carrierId;
+    this.maxPrice = maxPrice;
+    this.maxMinutes = maxMinutes;
+    this.maxLegs = maxLegs;
+  }
+
+  /**
+   * Parses search options of the form carrier=AS, max_price=300, max_minutes=300 or max_legs=1.
+   *
+   * @throws IllegalArgumentException on an unknown option, a malformed value or a max_legs other
+   *     than 1 or 2
+   */
+  public static SearchFilter parse(String[] options) {
+    String carrierId = null;
+    int maxPrice = Integer.MAX_VALUE;
+    int maxMinutes = Integer.MAX_VALUE;
+    int maxLegs = 2;
+    for (String option : options) {
+      int eq = option.indexOf('=');
+      String name = eq < 0 ? option : option.substring(0, eq);
+      String value = eq < 0 ? "" : option.substring(eq + 1);
+      switch (name) {
+        case "carrier":
+          if (value.isEmpty()) {
+            throw new IllegalArgumentException("carrier needs a value");
+          }
+          carrierId = value;
+          break;
+        case "max_price":
+          maxPrice = Integer.parseInt(value);
+          break;
+        case "max_minutes":
+          maxMinutes = Integer.parseInt(value);
+          break;
+        case "max_legs":
+          maxLegs = Integer.parseInt(value);
+          if (maxLegs < 1 || maxLegs > 2) {
+            throw new IllegalArgumentException("max_legs must be 1 or 2");
+          }
+          break;
+        default:
+          throw new IllegalArgumentException("unknown search option " + option);
+      }
+    }
+    return new SearchFilter(carrierId, maxPrice, maxMinutes, maxLegs);
+  }
+
+  /**
+   * Whether a search may only return direct flights: it asked for them, or it set max_legs=1.
+   */
+  public boolean directOnly(boolean direct) {
+    return direct || maxLegs < 2;
+  }
+
+  /**
+   * Whether the itinerary of {@code flight1}, followed by {@code flight2} unless it is null,
+   * matches.
+   */
+  public boolean accepts(Query.Flight flight1, Query.Flight flight2) {
+    if (flight2 == null) {
+      return matchesCarrier(flight1) && flight1.price <= maxPrice && flight1.time <= maxMinutes;
+    }
+    return maxLegs >= 2 && matchesCarrier(flight1) && matchesCarrier(flight2)
+        && (long) flight1.price + flight2.price <= maxPrice
+        && (long) flight1.time + flight2.time <= maxMinutes;
+  }
+
+  /**
+   * Whether a one-hop itinerary starting with {@code flight1} can still match, so the second
+   * flights of a departure need not be looked at if not.
+   */
+  public boolean acceptsFirst(Query.Flight flight1) {
+    return maxLegs >= 2 && matchesCarrier(flight1) && flight1.price <= maxPrice
+        && flight1.time <= maxMinutes;
+  }
+
+  private boolean matchesCarrier(Query.Flight flight) {
+    return carrierId == null || carrierId.equals(flight.carrierId);
+  }
+
+  /**
+   * SQL predicates, each starting with AND, for the restrictions that are set; the values are
+   * parameters bound by {@link #bind}. {@code minutes} is the expression of the total flight time
+   * and {@code legs} the column prefixes of the itinerary's flights (such as "f1.").
+   */
+  String where(String minutes, String... legs) {
+    StringBuilder sql = new StringBuilder();
+    if (carrierId != null) {
+      for (String leg : legs) {
+        sql.append(" AND ").append(leg).append("carrier_id = ?");
+      }
+    }
+    if (maxPrice != Integer.MAX_VALUE) {
+      sql.append(" AND ");
+      for (int i = 0; i < legs.length; i++) {
+        sql.append(i == 0 ? "" : " + ").append(legs[i]).append("price");
+      }
+      sql.append(" <= ?");
+    }
+    if (maxMinutes != Integer.MAX_VALUE) {
+      sql.append(" AND ").append(minutes).append(" <= ?");
+    }
+    return sql.toString();
+  }
+
+  /**
+   * Binds the parameters of {@link #where} with {@code legs} flights from parameter {@code index}
+   * on.
+   *
+   * @return the index of the next parameter
+   */
+  int bind(PreparedStatement statement, int index, int legs) throws SQLException {
+    if (carrierId != null) {
+      for (int i = 0; i < legs; i++) {
+        statement.setString(index++, carrierId);
+      }
+    }
+    if (maxPrice != Integer.MAX_VALUE) {
+      statement.setInt(index++, maxPrice);
+    }
+    if (maxMinutes != Integer.MAX_VALUE) {
+      statement.setInt(index++, maxMinutes);
+    }
+    return index;
+  }
+}
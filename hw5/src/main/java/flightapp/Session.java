@@ -0,0 +1,105 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Per-user state of a session: the login, the last search and the cached reservation view. It is
+ * kept apart from the connection and prepared statements of a {@link Query}, so many sessions can
+ * be parked in a {@link SessionStore} and served by a few Query instances of a
+ * {@link SessionPool}, which attaches them with {@link Query#attach(Session)}.
+ *
+ * The last search is stored as compact itinerary handles, four ints per itinerary (fid1, fid2 or
+ * -1, day of month, total price) in listed order, instead of Itinerary and Flight objects. That is
+ * all booking needs, so it reads no flights.
+ *
+ * A session is used by one thread at a time.
+ */
+public class Session {
+  private static final int[] NO_ITINERARIES = new int[0];
+  private static final int HANDLE_INTS = 4;
+  private static final AtomicLong NEXT_ID = new AtomicLong();
+
+  /**
+   * What booking needs of one itinerary of the last search.
+   */
+  static class Handle {
+    final int fid1;
+    // -1 if the itinerary is direct
+    final int fid2;
+    final int dayOfMonth;
+    final int price;
+
+    Handle(int fid1, int fid2, int dayOfMonth, int price) {
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+      this.dayOfMonth = dayOfMonth;
+      this.price = price;
+    }
+  }
+
+  // Unique in this process, unlike an identity hash code; keys e.g. the session's admission buckets
+  final long id = NEXT_ID.incrementAndGet();
+
+  boolean login;
+  String user;
+
+  // Reservations of the user, valid while users.res_version == viewVersion
+  SortedMap<Integer, Query.Reservation> reservationView;
+  int viewVersion;
+
+  // fid1, fid2, day, price of each itinerary of the last search, in listed order
+  private int[] itineraries = NO_ITINERARIES;
+
+  volatile long lastUsed = System.currentTimeMillis();
+
+  void setItineraries(List<Query.Itinerary> listed) {
+    int[] handles = new int[listed.size() * HANDLE_INTS];
+    for (int i = 0; i < listed.size(); i++) {
+      Query.Itinerary it = listed.get(i);
+      int h = HANDLE_INTS * i;
+      handles[h] = it.flight1.fid;
+      handles[h + 1] = it.flight2 == null ? -1 : it.flight2.fid;
+      handles[h + 2] = it.flight1.dayOfMonth;
+      handles[h + 3] = it.flight1.price + (it.flight2 == null ? 0 : it.flight2.price);
+    }
+    itineraries = handles;
+  }
+
+  void clearItineraries() {
+    itineraries = NO_ITINERARIES;
+  }
+
+  int itineraryCount() {
+    return itineraries.length / HANDLE_INTS;
+  }
+
+  Handle itinerary(int itineraryId) {
+    int h = HANDLE_INTS * itineraryId;
+    return new Handle(itineraries[h], itineraries[h + 1], itineraries[h + 2], itineraries[h + 3]);
+  }
+
+  public boolean isLoggedIn() {
+    return login;
+  }
+
+  public String user() {
+    return user;
+  }
+
+  /**
+   * Rough heap footprint in bytes, used for the store's memory cap. A cached reservation is
+   * counted at 400 bytes (two flights with their strings).
+   */
+  long approxBytes() {
+    long bytes = 96 + 16 + 4L * itineraries.length;
+    if (user != null) {
+      bytes += 40 + 2L * user.length();
+    }
+    SortedMap<Integer, Query.Reservation> view = reservationView;
+    if (view != null) {
+      bytes += 48 + 400L * view.size();
+    }
+    return bytes;
+  }
+}
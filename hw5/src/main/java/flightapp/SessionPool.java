@@ -0,0 +1,91 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Serves the sessions of a {@link SessionStore} from a small pool of {@link Query} instances, so
+ * many clients share a few connections and their prepared statements.
+ *
+ * A command takes an idle Query, attaches the caller's session to it, runs the command through
+ * {@link FlightService#execute(Query, String)} and hands the Query back with an empty session
+ * attached. Commands of one session run one at a time; a command waits while every Query is busy.
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.session.pool_size  Query instances in the pool (default 4)
+ */
+public class SessionPool implements AutoCloseable {
+  static final String EXPIRED = "Session expired, please log in again\n";
+
+  private final SessionStore store;
+  private final List<Query> queries;
+  private final BlockingQueue<Query> idle;
+
+  public SessionPool(SessionStore store, List<Query> queries) {
+    this.store = store;
+    this.queries = new ArrayList<>(queries);
+    this.idle = new ArrayBlockingQueue<>(queries.size(), false, queries);
+  }
+
+  /**
+   * Opens a pool of flightapp.session.pool_size sessions on the engine selected by
+   * flightapp.storage, over a store configured by {@link SessionStore#fromSettings()}.
+   */
+  public static SessionPool fromSettings() throws SQLException, IOException {
+    int size = Integer.parseInt(Query.getSetting("flightapp.session.pool_size", "4"));
+    List<Query> queries = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      queries.add(Query.open());
+    }
+    return new SessionPool(SessionStore.fromSettings(), queries);
+  }
+
+  /**
+   * Creates a session that is not logged in and returns its ID.
+   */
+  public String open() {
+    return store.open();
+  }
+
+  /**
+   * Runs a FlightService command line, e.g. "login ..." or "book 0", in session {@code id}.
+   *
+   * @return the command's response, or {@link #EXPIRED} if the session was closed or dropped
+   */
+  public String execute(String id, String command) throws InterruptedException {
+    Session session = store.get(id);
+    if (session == null) {
+      return EXPIRED;
+    }
+    synchronized (session) {
+      Query q = idle.take();
+      try {
+        q.attach(session);
+        return FlightService.execute(q, command);
+      } finally {
+        q.attach(new Session());
+        idle.add(q);
+      }
+    }
+  }
+
+  public void close(String id) {
+    store.close(id);
+  }
+
+  public SessionStore store() {
+    return store;
+  }
+
+  /**
+   * Closes the connections of the pool's Query instances; no command may be running.
+   */
+  @Override
+  public void close() throws SQLException {
+    for (Query q : queries) {
+      q.closeConnection();
+    }
+  }
+}
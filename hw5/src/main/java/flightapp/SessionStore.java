@@ -0,0 +1,136 @@
+package flightapp;
+
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Holds many {@link Session}s by opaque ID so a front end can serve them from a small pool of
+ * {@link Query} instances.
+ *
+ * Sessions unused for longer than the idle timeout are dropped. When the estimated footprint of all
+ * sessions exceeds the memory cap, the least recently used ones are dropped until it fits again.
+ * A dropped session's ID simply stops resolving; the client logs in again. Both checks run at most
+ * once a second, piggybacked on {@link #open()} and {@link #get(String)}.
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.session.idle_seconds idle timeout (default 1800)
+ * flightapp.session.max_mb       memory cap of all sessions (default 64)
+ */
+public class SessionStore {
+  private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+  private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+  private final SecureRandom random = new SecureRandom();
+  private final long idleMillis;
+  private final long maxBytes;
+  private volatile long nextSweep;
+
+  /**
+   * A session with the last use time it had when the sweep started, so the sort sees fixed keys.
+   */
+  private static class Aged {
+    final String id;
+    final Session session;
+    final long lastUsed;
+
+    Aged(String id, Session session) {
+      this.id = id;
+      this.session = session;
+      this.lastUsed = session.lastUsed;
+    }
+  }
+
+  public SessionStore(long idleMillis, long maxBytes) {
+    this.idleMillis = idleMillis;
+    this.maxBytes = maxBytes;
+  }
+
+  public static SessionStore fromSettings() {
+    return new SessionStore(
+        Long.parseLong(Query.getSetting("flightapp.session.idle_seconds", "1800")) * 1000,
+        Long.parseLong(Query.getSetting("flightapp.session.max_mb", "64")) << 20);
+  }
+
+  /**
+   * Creates a session that is not logged in and returns its ID.
+   */
+  public String open() {
+    byte[] bytes = new byte[16];
+    random.nextBytes(bytes);
+    StringBuilder id = new StringBuilder();
+    for (byte b : bytes) {
+      id.append(String.format("%02x", b));
+    }
+    sessions.put(id.toString(), new Session());
+    maybeSweep();
+    return id.toString();
+  }
+
+  /**
+   * Returns session {@code id} and marks it used, or null if it does not exist or has expired.
+   */
+  public Session get(String id) {
+    maybeSweep();
+    Session session = sessions.get(id);
+    if (session == null) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    if (now - session.lastUsed > idleMillis) {
+      sessions.remove(id, session);
+      return null;
+    }
+    session.lastUsed = now;
+    return session;
+  }
+
+  public void close(String id) {
+    sessions.remove(id);
+  }
+
+  public int size() {
+    return sessions.size();
+  }
+
+  /**
+   * Drops idle sessions, then the least recently used ones while over the memory cap.
+   */
+  public void sweep() {
+    long now = System.currentTimeMillis();
+    sessions.entrySet().removeIf(e -> now - e.getValue().lastUsed > idleMillis);
+    long total = 0;
+    for (Session s : sessions.values()) {
+      total += s.approxBytes();
+    }
+    if (total <= maxBytes) {
+      return;
+    }
+    // lastUsed keeps changing under concurrent get()s, which would break the sort's contract
+    List<Aged> byAge = new ArrayList<>();
+    for (Map.Entry<String, Session> e : sessions.entrySet()) {
+      byAge.add(new Aged(e.getKey(), e.getValue()));
+    }
+    byAge.sort(Comparator.comparingLong(a -> a.lastUsed));
+    for (Aged a : byAge) {
+      if (total <= maxBytes) {
+        break;
+      }
+      if (sessions.remove(a.id, a.session)) {
+        total -= a.session.approxBytes();
+      }
+    }
+  }
+
+  private void maybeSweep() {
+    long now = System.currentTimeMillis();
+    if (now >= nextSweep) {
+      synchronized (this) {
+        if (now >= nextSweep) {
+          nextSweep = now + SWEEP_INTERVAL_MILLIS;
+          sweep();
+        }
+      }
+    }
+  }
+}
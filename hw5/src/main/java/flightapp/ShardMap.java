@@ -0,0 +1,93 @@
+package flightapp;
+
+import java.sql.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Describes a sharded deployment in which users and their reservations are partitioned across
+ * several databases.
+ *
+ * A user lives on shard hash(lower-case username) mod n together with all of their reservations.
+ * Flights is replicated on every shard as reference data, and the capacity row of flight fid is
+ * owned by shard fid mod n. Reservation IDs stay unique across shards by interleaving each shard's
+ * IDENTITY values: local rid r on shard s is reservation (r - 1) * n + s + 1.
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.shards                number of shards, unset or 1 for a single database
+ * flightapp.shard.[i].server_url  connection settings of shard i, as the flightapp.* keys
+ * flightapp.shard.[i].database_name
+ * flightapp.shard.[i].username
+ * flightapp.shard.[i].password
+ * flightapp.shard.lock_timeout_ms  longest a shard connection waits for a lock before the statement
+ *                                  fails with error 1222 and the transaction is rerun (default 5000)
+ */
+public class ShardMap {
+  private final int size;
+
+  ShardMap(int size) {
+    this.size = size;
+  }
+
+  /**
+   * Returns the configured shard map, or null when running against a single database.
+   */
+  public static ShardMap fromSettings() {
+    int size = Integer.parseInt(Query.getSetting("flightapp.shards", "1"));
+    return size > 1 ? new ShardMap(size) : null;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Home shard of a user. User names are case insensitive, so is the hash.
+   */
+  public int shardOf(String username) {
+    CRC32 crc = new CRC32();
+    crc.update(username.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8));
+    return (int) (crc.getValue() % size);
+  }
+
+  /**
+   * Shard that owns the capacity row of flight {@code fid}.
+   */
+  public int capacityShardOf(int fid) {
+    return Math.floorMod(fid, size);
+  }
+
+  /**
+   * Converts an IDENTITY value of {@code shard}'s reservations table to a reservation ID.
+   */
+  public int globalRid(int shard, int localRid) {
+    return (localRid - 1) * size + shard + 1;
+  }
+
+  /**
+   * Converts a reservation ID to the IDENTITY value on {@code shard}, or 0 if it lives elsewhere.
+   */
+  public int localRid(int shard, int rid) {
+    if (rid < 1 || (rid - 1) % size != shard) {
+      return 0;
+    }
+    return (rid - 1) / size + 1;
+  }
+
+  /**
+   * Opens a connection to shard {@code shard}. A transaction can wait for locks on two shards, and
+   * neither server sees such a deadlock, so lock waits are bounded by LOCK_TIMEOUT.
+   */
+  public Connection open(int shard) throws SQLException {
+    String prefix = "flightapp.shard." + shard + ".";
+    Connection conn = Query.openConnectionFromCredential(Query.getSetting(prefix + "server_url", null),
+        Query.getSetting(prefix + "database_name", null), Query.getSetting(prefix + "username", null),
+        Query.getSetting(prefix + "password", null));
+    int lockTimeout = Integer.parseInt(Query.getSetting("flightapp.shard.lock_timeout_ms", "5000"));
+    try (Statement statement = conn.createStatement()) {
+      statement.execute("SET LOCK_TIMEOUT " + lockTimeout);
+    }
+    return conn;
+  }
+}
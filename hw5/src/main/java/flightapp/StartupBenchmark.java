@@ -0,0 +1,36 @@
+package flightapp;
+
+import java.lang.management.*;
+
+/**
+ * Measures how long a fresh JVM takes to answer its first search: JVM start to main, opening the
+ * backend, and the search itself. Run it once per configuration being compared, e.g. with and
+ * without -XX:SharedArchiveFile (see the fast-startup profile in pom.xml).
+ *
+ * Usage: StartupBenchmark [origin city] [destination city] [day of month]
+ * (default "Seattle WA" "Boston MA" 1)
+ */
+public class StartupBenchmark {
+  public static void main(String[] args) throws Exception {
+    long mainNanos = System.nanoTime();
+    long jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+    long toMainMillis = System.currentTimeMillis() - jvmStartMillis;
+
+    String origin = args.length > 0 ? args[0] : "Seattle WA";
+    String dest = args.length > 1 ? args[1] : "Boston MA";
+    int day = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+    Query q = Query.open();
+    long openedNanos = System.nanoTime();
+    String response = q.transaction_search(origin, dest, false, day, 10);
+    long searchedNanos = System.nanoTime();
+    q.closeConnection();
+
+    System.out.print(response);
+    System.out.printf("jvm start to main   %6d ms%n", toMainMillis);
+    System.out.printf("open backend        %6d ms%n", (openedNanos - mainNanos) / 1_000_000);
+    System.out.printf("first search        %6d ms%n", (searchedNanos - openedNanos) / 1_000_000);
+    System.out.printf("total to first reply%6d ms%n",
+        toMainMillis + (searchedNanos - mainNanos) / 1_000_000);
+  }
+}
@@ -0,0 +1,30 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Prepared statements of one connection, each prepared the first time it is used and then reused
+ * for the life of the connection. Not thread-safe, like the connection itself.
+ */
+class StatementCache {
+  private final Connection conn;
+  private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+  StatementCache(Connection conn) {
+    this.conn = conn;
+  }
+
+  PreparedStatement get(String sql) throws SQLException {
+    PreparedStatement ps = statements.get(sql);
+    if (ps == null) {
+      ps = conn.prepareStatement(sql);
+      statements.put(sql, ps);
+    }
+    return ps;
+  }
+
+  int size() {
+    return statements.size();
+  }
+}
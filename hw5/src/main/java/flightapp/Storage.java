@@ -0,0 +1,291 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Storage of flights, users, reservations and seat counts for one session, as the entity
+ * operations {@link Query} builds the application's transactions from. Query holds every rule and
+ * every response string; an engine only stores, locks and reads.
+ *
+ * {@link JdbcStorage} keeps everything in SQL Server; {@link MemoryStorage} keeps it in process.
+ * Select the engine with flightapp.storage=jdbc (default) or flightapp.storage=memory.
+ *
+ * Writes run between {@link #begin} and {@link #commit()} or {@link #rollback()}. Locks taken by
+ * {@link #lockUser}, {@link #reservation}, {@link #debit} and {@link #freeSeats} are held until the
+ * transaction ends. Callers lock reservations, then users in name order, then balances, then
+ * flights in increasing fid order, so engines that cannot detect deadlocks never see one. A failed
+ * transaction is ended with {@link #abort}, which tells the caller whether to rerun it. Reads
+ * outside a transaction are single consistent reads.
+ *
+ * Reservation IDs are system-wide. Like a connection, a Storage is used by one thread at a time.
+ */
+public interface Storage {
+  /**
+   * Login credentials of a user.
+   */
+  class UserRow {
+    final String username;
+    final byte[] hash;
+    final byte[] salt;
+
+    UserRow(String username, byte[] hash, byte[] salt) {
+      this.username = username;
+      this.hash = hash;
+      this.salt = salt;
+    }
+  }
+
+  /**
+   * An active (not canceled) reservation; fid2 is -1 for a direct flight.
+   */
+  class ReservationRow {
+    final int rid;
+    final int fid1;
+    final int fid2;
+    final int price;
+    final boolean paid;
+
+    ReservationRow(int rid, int fid1, int fid2, int price, boolean paid) {
+      this.rid = rid;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+      this.price = price;
+      this.paid = paid;
+    }
+  }
+
+  /**
+   * An unpaid reservation to insert.
+   */
+  class NewReservation {
+    final String username;
+    final int fid1;
+    final int fid2;
+    final int price;
+
+    NewReservation(String username, int fid1, int fid2, int price) {
+      this.username = username;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+      this.price = price;
+    }
+  }
+
+  /**
+   * A user's active reservations in ID order, with the reservation version they were read at.
+   */
+  class ReservationList {
+    final int version;
+    final List<ReservationRow> rows;
+
+    ReservationList(int version, List<ReservationRow> rows) {
+      this.version = version;
+      this.rows = rows;
+    }
+  }
+
+  // Transactions
+
+  /**
+   * Starts a transaction on behalf of {@code username}; an engine that partitions users runs it
+   * where that user is stored.
+   */
+  void begin(String username) throws SQLException;
+
+  void commit() throws SQLException;
+
+  /**
+   * Ends the transaction without its changes, after a rule rejected it.
+   */
+  void rollback() throws SQLException;
+
+  /**
+   * Ends a transaction that failed with {@code e}, reporting unexpected errors.
+   *
+   * @return true if the transaction may succeed when rerun (e.g. it was a deadlock victim)
+   */
+  boolean abort(SQLException e);
+
+  /**
+   * Throws IllegalStateException, after cleaning up, if a transaction is still open. Called when a
+   * transaction method returns.
+   */
+  void checkDanglingTransaction();
+
+  /**
+   * Queues a booking event of the current transaction, to be published if and only if the
+   * transaction commits (with its group commit batch, if batched).
+   */
+  void queueEvent(byte type, int rid, String username, int fid1, int fid2, int amount)
+      throws SQLException;
+
+  /**
+   * Whether transactions run inside a group commit batch, which may still be rolled back and rerun
+   * after {@link #commit()} returned.
+   */
+  default boolean batched() {
+    return false;
+  }
+
+  /**
+   * The group committer book and pay are handed to, or null if they commit on their own.
+   */
+  default GroupCommitter committer() {
+    return null;
+  }
+
+  /**
+   * The combiner single-seat bookings are handed to, or null if they run on their own.
+   */
+  default BookingCombiner combiner() {
+    return null;
+  }
+
+  // Flights
+
+  Query.Flight flight(int fid) throws SQLException;
+
+  /**
+   * Up to {@code limit} direct flights of a route and day matching {@code filter}, shortest first.
+   */
+  List<Query.Flight> directFlights(String originCity, String destCity, int dayOfMonth, int limit,
+      SearchFilter filter) throws SQLException;
+
+  /**
+   * Up to {@code limit} one-hop itineraries (pairs of flights) of a route and day matching
+   * {@code filter}, shortest total time first.
+   */
+  List<Query.Flight[]> oneHopFlights(String originCity, String destCity, int dayOfMonth,
+      int limit, SearchFilter filter) throws SQLException;
+
+  /**
+   * Cities of the flights that are not canceled.
+   */
+  CityIndex cities() throws SQLException;
+
+  // Users
+
+  /**
+   * Returns the user named {@code username} (case-insensitively), or null.
+   */
+  UserRow user(String username) throws SQLException;
+
+  /**
+   * Inserts a user in the current transaction.
+   *
+   * @return false, with nothing inserted, if the name is taken or not storable
+   */
+  boolean insertUser(String username, byte[] hash, byte[] salt, int balance) throws SQLException;
+
+  /**
+   * Locks the user until the transaction ends and returns the bitmap of the days (bit day - 1) on
+   * which they hold an active reservation.
+   */
+  int lockUser(String username) throws SQLException;
+
+  /**
+   * Debits {@code amount} from the user's balance if the balance covers it. The check and the debit
+   * are one step that locks the balance until the transaction ends, without locking the user, so
+   * it needs no {@link #lockUser} before it.
+   *
+   * @return the balance before the debit; nothing was debited if it is less than {@code amount}
+   */
+  int debit(String username, int amount) throws SQLException;
+
+  /**
+   * Adds {@code amount} to the user's balance without reading or locking it.
+   */
+  void credit(String username, int amount) throws SQLException;
+
+  // Reservations
+
+  /**
+   * Inserts {@code count} identical unpaid reservations.
+   *
+   * @return their reservation IDs in increasing order
+   */
+  List<Integer> insertReservations(String username, int fid1, int fid2, int price, int count)
+      throws SQLException;
+
+  /**
+   * Inserts unpaid reservations of distinct users.
+   *
+   * @return the reservation ID by user name
+   */
+  Map<String, Integer> insertReservations(List<NewReservation> rows) throws SQLException;
+
+  /**
+   * Locks and returns the user's active reservation {@code rid}, or null if there is none.
+   */
+  ReservationRow reservation(String username, int rid) throws SQLException;
+
+  /**
+   * Locks and returns the user's active unpaid reservations among {@code rids}, or all of them if
+   * {@code rids} is null, in ID order.
+   */
+  List<ReservationRow> unpaidReservations(String username, Collection<Integer> rids)
+      throws SQLException;
+
+  void markPaid(String username, Collection<Integer> rids) throws SQLException;
+
+  void deleteReservation(String username, int rid) throws SQLException;
+
+  /**
+   * The user's active reservations and reservation version, read consistently.
+   */
+  ReservationList reservations(String username) throws SQLException;
+
+  /**
+   * The user's reservation version, which every change to their reservations increments.
+   */
+  int reservationVersion(String username) throws SQLException;
+
+  /**
+   * Increments the user's reservation version and adds {@code dayBits} to their booked days.
+   *
+   * @return the new reservation version
+   */
+  int markBookedDays(String username, int dayBits) throws SQLException;
+
+  /**
+   * {@link #markBookedDays(String, int)} for several users.
+   */
+  void markBookedDays(Map<String, Integer> dayBitsByUser) throws SQLException;
+
+  /**
+   * Increments the user's reservation version and recomputes their booked days, after a
+   * reservation went away.
+   *
+   * @return the new reservation version
+   */
+  int rebuildBookedDays(String username) throws SQLException;
+
+  // Capacity
+
+  /**
+   * Locks flight {@code fid}'s seat count and returns the free seats.
+   */
+  int freeSeats(int fid) throws SQLException;
+
+  /**
+   * Sets the free seats of a flight whose count this transaction locked.
+   */
+  void setFreeSeats(int fid, int freeSeats) throws SQLException;
+
+  /**
+   * Returns {@code seats} to a flight a reservation of which this transaction removed. An engine
+   * may apply it only after the transaction commits, so a failure in between leaves the seats held
+   * rather than overbooks the flight.
+   */
+  void releaseSeats(int fid, int seats) throws SQLException;
+
+  // Lifecycle
+
+  /**
+   * Deletes all users, reservations and seat counts; flights are kept.
+   */
+  void clear();
+
+  void close() throws SQLException;
+}
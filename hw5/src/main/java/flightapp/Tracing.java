@@ -0,0 +1,213 @@
+package flightapp;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.sql.*;
+import java.time.*;
+import java.util.concurrent.*;
+
+/**
+ * JDBC tracing: wraps a connection so every statement it creates is timed, and writes a sampled
+ * log of the executions to a local file.
+ *
+ * Each log line carries the time, the transaction_* command running on the thread (see
+ * {@link #tag(String)}), the execution time in microseconds, the row count (rows updated, or rows
+ * read once the result set is exhausted or closed; -1 when unknown), the outcome (ok, deadlock,
+ * lock-timeout or the SQL error code) and the statement. Slow and failed executions are always
+ * logged, the others at the sample rate. Lines are queued to a writer thread and dropped if it
+ * falls behind, so a statement never waits on the disk.
+ *
+ * Settings (system property or dbconn.properties):
+ * flightapp.trace          wrap connections opened by Query (default false)
+ * flightapp.trace.file     log file, appended to (default flightapp-trace.log)
+ * flightapp.trace.slow_ms  executions at least this slow are always logged (default 50)
+ * flightapp.trace.sample   fraction of the other executions logged (default 0.01)
+ */
+final class Tracing {
+  static final boolean ENABLED = Boolean.parseBoolean(Query.getSetting("flightapp.trace", "false"));
+
+  private static final long SLOW_NANOS =
+      Long.parseLong(Query.getSetting("flightapp.trace.slow_ms", "50")) * 1_000_000;
+  private static final double SAMPLE =
+      Double.parseDouble(Query.getSetting("flightapp.trace.sample", "0.01"));
+  private static final int MAX_SQL_LENGTH = 300;
+
+  private static final ThreadLocal<String> COMMAND = new ThreadLocal<>();
+  private static final BlockingQueue<String> lines = new ArrayBlockingQueue<>(10000);
+  private static volatile Thread writer;
+
+  private Tracing() {
+  }
+
+  /**
+   * Tags the statements this thread runs from now on with {@code command}.
+   */
+  static void tag(String command) {
+    if (ENABLED) {
+      COMMAND.set(command);
+    }
+  }
+
+  /**
+   * Returns {@code conn} wrapped so that the statements it creates are traced.
+   */
+  static Connection wrap(Connection conn) {
+    startWriter();
+    return proxy(Connection.class, conn, (proxy, method, args) -> {
+      Object result = invoke(conn, method, args);
+      String name = method.getName();
+      if (result instanceof Statement
+          && (name.equals("prepareStatement") || name.equals("prepareCall"))) {
+        return traced(method.getReturnType(), (Statement) result, (String) args[0]);
+      } else if (result instanceof Statement && name.equals("createStatement")) {
+        return traced(Statement.class, (Statement) result, null);
+      }
+      return result;
+    });
+  }
+
+  /**
+   * One execution, logged once its row count is known.
+   */
+  private static class Execution {
+    final String command = COMMAND.get();
+    final String sql;
+    final long nanos;
+    final String outcome;
+    long rows;
+    boolean done;
+
+    Execution(String sql, long nanos, String outcome, long rows) {
+      this.sql = sql;
+      this.nanos = nanos;
+      this.outcome = outcome;
+      this.rows = rows;
+    }
+
+    void finish() {
+      if (done) {
+        return;
+      }
+      done = true;
+      if (nanos >= SLOW_NANOS || !outcome.equals("ok")
+          || ThreadLocalRandom.current().nextDouble() < SAMPLE) {
+        String text = sql == null ? "?" : sql.replaceAll("\\s+", " ");
+        if (text.length() > MAX_SQL_LENGTH) {
+          text = text.substring(0, MAX_SQL_LENGTH) + "...";
+        }
+        lines.offer(Instant.now() + "\t" + (command == null ? "-" : command) + "\t"
+            + nanos / 1000 + "us\t" + rows + " rows\t" + outcome + "\t" + text);
+      }
+    }
+  }
+
+  private static <T> T traced(Class<T> type, Statement statement, String preparedSql) {
+    Execution[] pending = new Execution[1];
+    return proxy(type, statement, (proxy, method, args) -> {
+      String name = method.getName();
+      if (name.equals("close") && pending[0] != null) {
+        pending[0].finish();
+      }
+      if (!name.startsWith("execute")) {
+        return invoke(statement, method, args);
+      }
+      if (pending[0] != null) {
+        pending[0].finish();
+        pending[0] = null;
+      }
+      String sql = args != null && args.length > 0 && args[0] instanceof String
+          ? (String) args[0] : preparedSql;
+      long start = System.nanoTime();
+      Object result;
+      try {
+        result = invoke(statement, method, args);
+      } catch (SQLException e) {
+        new Execution(sql, System.nanoTime() - start, outcome(e), -1).finish();
+        throw e;
+      }
+      long nanos = System.nanoTime() - start;
+      if (result instanceof ResultSet) {
+        Execution execution = new Execution(sql, nanos, "ok", 0);
+        pending[0] = execution;
+        return counted((ResultSet) result, execution);
+      }
+      long rows = -1;
+      if (result instanceof Integer || result instanceof Long) {
+        rows = ((Number) result).longValue();
+      } else if (result instanceof int[]) {
+        rows = 0;
+        for (int n : (int[]) result) {
+          rows += Math.max(n, 0);
+        }
+      }
+      new Execution(sql, nanos, "ok", rows).finish();
+      return result;
+    });
+  }
+
+  private static ResultSet counted(ResultSet rs, Execution execution) {
+    return proxy(ResultSet.class, rs, (proxy, method, args) -> {
+      Object result = invoke(rs, method, args);
+      String name = method.getName();
+      if (name.equals("next")) {
+        if ((Boolean) result) {
+          execution.rows++;
+        } else {
+          execution.finish();
+        }
+      } else if (name.equals("close")) {
+        execution.finish();
+      }
+      return result;
+    });
+  }
+
+  private static String outcome(SQLException e) {
+    switch (e.getErrorCode()) {
+      case 1205:
+        return "deadlock";
+      case 1222:
+        return "lock-timeout";
+      default:
+        return "error-" + e.getErrorCode();
+    }
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, Object target, InvocationHandler handler) {
+    return (T) Proxy.newProxyInstance(Tracing.class.getClassLoader(), new Class<?>[] { type },
+        handler);
+  }
+
+  private static synchronized void startWriter() {
+    if (writer != null) {
+      return;
+    }
+    String file = Query.getSetting("flightapp.trace.file", "flightapp-trace.log");
+    writer = new Thread(() -> {
+      try (Writer out = new BufferedWriter(new FileWriter(file, true))) {
+        while (true) {
+          out.write(lines.take());
+          out.write('\n');
+          if (lines.isEmpty()) {
+            out.flush();
+          }
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      } catch (InterruptedException e) {
+        // exiting
+      }
+    }, "trace-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+}
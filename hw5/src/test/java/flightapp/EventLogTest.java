@@ -0,0 +1,165 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the booking event log: appending, rolling segments, reopening an existing log,
+ * tailing it with a reader and the single-writer lock. Needs no database.
+ */
+public class EventLogTest {
+  // Room for a few events per segment, so a handful of appends rolls several times
+  private static final int SMALL_SEGMENT = 512;
+  private static final long RETAIN_ALL = Long.MAX_VALUE / 2;
+
+  private Path dir;
+
+  @Before
+  public void createDir() throws IOException {
+    dir = Files.createTempDirectory("events");
+  }
+
+  @After
+  public void deleteDir() throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(dir);
+  }
+
+  @Test
+  public void appendedEventsAreReadBackInOrder() throws IOException {
+    try (EventLog log = new EventLog(dir, 1 << 16, RETAIN_ALL)) {
+      assertEquals(0, log.lastSeq());
+      assertEquals(1, log.append(EventLog.BOOK, 7, "alice", 10, -1, 0));
+      assertEquals(2, log.append(EventLog.PAY, 7, "alice", 10, -1, 140));
+      assertEquals(3, log.append(EventLog.CANCEL, 8, "bob", 11, 12, 0));
+      assertEquals(3, log.lastSeq());
+
+      EventLog.Reader reader = log.reader(1);
+      EventLog.Event e = reader.poll();
+      assertEquals(1, e.seq);
+      assertEquals(EventLog.BOOK, e.type);
+      assertEquals(7, e.rid);
+      assertEquals("alice", e.username);
+      assertEquals(10, e.fid1);
+      assertEquals(-1, e.fid2);
+      e = reader.poll();
+      assertEquals(2, e.seq);
+      assertEquals(EventLog.PAY, e.type);
+      assertEquals(140, e.amount);
+      e = reader.poll();
+      assertEquals(3, e.seq);
+      assertEquals("bob", e.username);
+      assertEquals(12, e.fid2);
+      assertNull(reader.poll());
+      assertEquals(4, reader.position());
+    }
+  }
+
+  @Test
+  public void fullSegmentsRollWithoutGaps() throws IOException {
+    try (EventLog log = new EventLog(dir, SMALL_SEGMENT, RETAIN_ALL)) {
+      for (int i = 1; i <= 50; i++) {
+        log.append(EventLog.BOOK, i, "user" + i, i, -1, 0);
+      }
+    }
+    assertTrue("expected several segments", segmentCount() > 1);
+
+    try (EventLog.Reader reader = new EventLog.Reader(dir, 1)) {
+      for (int i = 1; i <= 50; i++) {
+        EventLog.Event e = reader.poll();
+        assertNotNull("event " + i + " missing", e);
+        assertEquals(i, e.seq);
+        assertEquals(i, e.rid);
+        assertEquals("user" + i, e.username);
+      }
+      assertNull(reader.poll());
+    }
+  }
+
+  @Test
+  public void reopenedLogContinuesTheSequence() throws IOException {
+    try (EventLog log = new EventLog(dir, SMALL_SEGMENT, RETAIN_ALL)) {
+      for (int i = 1; i <= 12; i++) {
+        log.append(EventLog.BOOK, i, "alice", i, -1, 0);
+      }
+    }
+    try (EventLog log = new EventLog(dir, SMALL_SEGMENT, RETAIN_ALL)) {
+      assertEquals(12, log.lastSeq());
+      assertEquals(13, log.append(EventLog.PAY, 1, "alice", 1, -1, 100));
+    }
+    try (EventLog.Reader reader = new EventLog.Reader(dir, 12)) {
+      assertEquals(12, reader.poll().seq);
+      EventLog.Event e = reader.poll();
+      assertEquals(13, e.seq);
+      assertEquals(EventLog.PAY, e.type);
+      assertNull(reader.poll());
+    }
+  }
+
+  @Test
+  public void readerTailsTheWriter() throws IOException {
+    try (EventLog log = new EventLog(dir, SMALL_SEGMENT, RETAIN_ALL);
+        EventLog.Reader reader = log.reader(1)) {
+      assertNull(reader.poll());
+      long expected = 1;
+      for (int round = 0; round < 10; round++) {
+        for (int i = 0; i < 3; i++) {
+          log.append(EventLog.BOOK, (int) expected + i, "carol", 1, -1, 0);
+        }
+        for (int i = 0; i < 3; i++) {
+          EventLog.Event e = reader.poll();
+          assertNotNull("event " + expected + " missing", e);
+          assertEquals(expected++, e.seq);
+        }
+        assertNull(reader.poll());
+      }
+    }
+  }
+
+  @Test
+  public void readerStartsAtTheRequestedSequence() throws IOException {
+    try (EventLog log = new EventLog(dir, SMALL_SEGMENT, RETAIN_ALL)) {
+      for (int i = 1; i <= 20; i++) {
+        log.append(EventLog.BOOK, i, "dave", i, -1, 0);
+      }
+      EventLog.Reader reader = log.reader(15);
+      assertEquals(15, reader.poll().seq);
+      assertEquals(16, reader.position());
+    }
+  }
+
+  @Test
+  public void secondWriterIsRejected() throws IOException {
+    try (EventLog log = new EventLog(dir, SMALL_SEGMENT, RETAIN_ALL)) {
+      log.append(EventLog.BOOK, 1, "erin", 1, -1, 0);
+      try {
+        new EventLog(dir, SMALL_SEGMENT, RETAIN_ALL).close();
+        fail("a second writer opened the log");
+      } catch (IOException expected) {
+        // the first writer still holds the lock
+      }
+      assertEquals(2, log.append(EventLog.BOOK, 2, "erin", 2, -1, 0));
+    }
+    // released on close
+    new EventLog(dir, SMALL_SEGMENT, RETAIN_ALL).close();
+  }
+
+  private long segmentCount() throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+      long n = 0;
+      for (Path ignored : files) {
+        n++;
+      }
+      return n;
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+import java.sql.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concurrent stress test of book, pay and cancel under the per-transaction isolation levels.
+ *
+ * Many users hammer the same few flights (one of them has a single seat) in parallel, then the
+ * database is checked for invariants that must hold whatever the interleaving: no flight is
+ * overbooked, free seats plus active reservations equal each flight's capacity, no balance is
+ * negative, money is conserved per user, reservation IDs are unique and nobody has two active
+ * reservations on one day.
+ *
+ * Too heavy for every build, so it only runs with -Dstress=true. -Dstress.users and
+ * -Dstress.rounds scale the load (default 40 users, 20 rounds).
+ */
+public class FlightServiceStressTest {
+  private static final int USERS = Integer.getInteger("stress.users", 40);
+  private static final int ROUNDS = Integer.getInteger("stress.rounds", 20);
+  private static final int INITIAL_BALANCE = 100000;
+  private static final Pattern BOOKED = Pattern.compile("reservation ID: (\\d+)");
+
+  // Day 6 has a one-seat flight (itinerary 5), day 1 is a different day for the same-day rule
+  private static final String[] SEARCHES = {
+      "search \"Kahului HI\" \"Los Angeles CA\" 0 6 7",
+      "search \"Seattle WA\" \"Boston MA\" 1 1 3"
+  };
+
+  @BeforeClass
+  public static void setup() throws Exception {
+    Assume.assumeTrue("stress test disabled, run with -Dstress=true", Boolean.getBoolean("stress"));
+    FlightServiceTest.initCredential();
+    Assume.assumeFalse("invariants are checked in the database", FlightServiceTest.memoryStorage());
+    Assume.assumeTrue("invariants are checked on a single database", ShardMap.fromSettings() == null);
+    FlightServiceTest.resetSchema();
+  }
+
+  @Test
+  public void invariantsHoldUnderParallelLoad() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(USERS);
+    List<Future<List<Integer>>> futures = new ArrayList<>();
+    for (int u = 0; u < USERS; u++) {
+      final int id = u;
+      futures.add(pool.submit(() -> runUser(id)));
+    }
+    List<Integer> booked = new ArrayList<>();
+    for (Future<List<Integer>> f : futures) {
+      booked.addAll(f.get(10, TimeUnit.MINUTES));
+    }
+    pool.shutdown();
+
+    assertEquals("reservation IDs handed out twice", new HashSet<>(booked).size(), booked.size());
+
+    Query q = FlightServiceTest.openQuery();
+    try {
+      Connection conn = ((JdbcStorage) q.storage()).connection();
+      assertNoRows(conn, "overbooked flight",
+          "SELECT fid FROM capacity WHERE freeSeat < 0");
+      assertNoRows(conn, "free seats do not match active reservations",
+          "SELECT C.fid FROM capacity AS C JOIN Flights AS F ON C.fid = F.fid "
+          + "WHERE C.freeSeat + (SELECT COUNT(*) FROM reservations AS R WHERE R.canceled = 0 "
+          + "AND (R.fid1 = C.fid OR R.fid2 = C.fid)) <> F.capacity");
+      assertNoRows(conn, "negative balance",
+          "SELECT U.username FROM users AS U WHERE " + JdbcStorage.BALANCE_SQL + " < 0");
+      assertNoRows(conn, "money not conserved",
+          "SELECT U.username FROM users AS U WHERE " + JdbcStorage.BALANCE_SQL + " + (SELECT COALESCE(SUM(R.price), 0) "
+          + "FROM reservations AS R WHERE R.username = U.username AND R.paid = 1 "
+          + "AND R.canceled = 0) <> " + INITIAL_BALANCE);
+      assertNoRows(conn, "two active reservations on one day",
+          "SELECT R.username FROM reservations AS R JOIN Flights AS F ON F.fid = R.fid1 "
+          + "WHERE R.canceled = 0 GROUP BY R.username, F.day_of_month HAVING COUNT(*) > 1");
+    } finally {
+      q.closeConnection();
+    }
+  }
+
+  /**
+   * Runs one user's random mix of searches, bookings, payments and cancellations.
+   *
+   * @return the reservation IDs this user was told it booked
+   */
+  private static List<Integer> runUser(int id) throws Exception {
+    Random random = new Random(id);
+    List<Integer> booked = new ArrayList<>();
+    Query q = FlightServiceTest.openQuery();
+    try {
+      String name = "stress" + id;
+      FlightService.execute(q, "create " + name + " " + name + " " + INITIAL_BALANCE);
+      FlightService.execute(q, "login " + name + " " + name);
+      for (int round = 0; round < ROUNDS; round++) {
+        FlightService.execute(q, SEARCHES[random.nextInt(SEARCHES.length)]);
+        Matcher m = BOOKED.matcher(FlightService.execute(q, "book " + random.nextInt(7)));
+        if (m.find()) {
+          booked.add(Integer.parseInt(m.group(1)));
+        }
+        if (!booked.isEmpty()) {
+          int rid = booked.get(random.nextInt(booked.size()));
+          FlightService.execute(q, random.nextBoolean() ? "pay " + rid : "cancel " + rid);
+        }
+        FlightService.execute(q, "reservations");
+      }
+    } finally {
+      q.closeConnection();
+    }
+    return booked;
+  }
+
+  private static void assertNoRows(Connection conn, String message, String sql)
+      throws SQLException {
+    try (Statement s = conn.createStatement(); ResultSet rs = s.executeQuery(sql)) {
+      if (rs.next()) {
+        fail(message + ": " + rs.getString(1));
+      }
+    }
+  }
+}
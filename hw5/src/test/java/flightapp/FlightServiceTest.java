@@ -88,7 +88,7 @@ public class FlightServiceTest {
     private List<String> results; // the expected results from those commands
 
     public User(List<String> cmds, List<String> results) throws IOException, SQLException {
-      this.q = new Query(serverURL, dbName, adminName, password);
+      this.q = openBackend();
       this.cmds = cmds;
       this.results = results;
     }
@@ -203,13 +203,34 @@ public class FlightServiceTest {
     System.out.println("running setup");
     pool = Executors.newFixedThreadPool(MAX_USERS);
     initCredential();
+    resetSchema();
+  }
+
+  /**
+   * Drops the custom tables and runs createTables.sql on every configured database. Exits the JVM
+   * if that fails.
+   */
+  static void resetSchema() {
+    if (memoryStorage()) {
+      return;
+    }
     try {
-      Connection conn = serverURL == null ? Query.openConnectionFromDbConn()
-              : Query.openConnectionFromCredential(serverURL, dbName, adminName, password);
-      TestUtils.dropTables(conn);
-      TestUtils.runCreateTables(conn);
-      TestUtils.checkTable(conn);
-      conn.close();
+      List<Connection> conns = new ArrayList<>();
+      ShardMap shardMap = serverURL == null ? ShardMap.fromSettings() : null;
+      if (shardMap != null) {
+        for (int i = 0; i < shardMap.size(); i++) {
+          conns.add(shardMap.open(i));
+        }
+      } else {
+        conns.add(serverURL == null ? Query.openConnectionFromDbConn()
+                : Query.openConnectionFromCredential(serverURL, dbName, adminName, password));
+      }
+      for (Connection conn : conns) {
+        TestUtils.dropTables(conn);
+        TestUtils.runCreateTables(conn);
+        TestUtils.checkTable(conn);
+        conn.close();
+      }
     } catch (Exception e) {
       System.err.println("Failed to drop tables and run createTables.sql");
       e.printStackTrace();
@@ -261,10 +282,31 @@ public class FlightServiceTest {
   }
 
 
+  /**
+   * Opens a Query session using the configured credential, or dbconn.properties if none.
+   */
+  static Query openQuery() throws SQLException, IOException {
+    return serverURL == null ? new Query() : new Query(serverURL, dbName, adminName, password);
+  }
+
+  /**
+   * Whether the cases run on the in-memory engine (-Dflightapp.storage=memory) instead of a
+   * database.
+   */
+  static boolean memoryStorage() {
+    return "memory".equals(System.getProperty("flightapp.storage"));
+  }
+
+  /**
+   * Opens a session on the engine under test.
+   */
+  static Query openBackend() throws SQLException, IOException {
+    return memoryStorage() ? new Query(new MemoryStorage(MemoryDatabase.shared())) : openQuery();
+  }
+
   @Before
   public void clearDB() throws SQLException, IOException {
-    Query query =
-            serverURL == null ? new Query() : new Query(serverURL, dbName, adminName, password);
+    Query query = openBackend();
     query.clearTables();
     query.closeConnection();
   }
@@ -0,0 +1,142 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the session store and of serving its sessions from a small {@link SessionPool}:
+ * sessions keep their own state across pooled Query instances, idle sessions expire, and the least
+ * recently used ones are dropped to stay under the memory cap. Runs on the memory engine, so it
+ * needs no database.
+ */
+public class SessionStoreTest {
+  // Single-digit user names, so every session has the same footprint
+  private static final int SESSIONS = 10;
+  private static final int POOL_SIZE = 3;
+  private static final long NEVER = Long.MAX_VALUE / 2;
+  private static final long HOUR = 3_600_000;
+  // A direct Seattle-Boston flight and a one-hop itinerary via Chicago, all on day 1
+  private static final String FLIGHTS =
+      "1,7,1,3,AA,100,Seattle WA,Washington,Boston MA,Massachusetts,0,0,0,0,300,2000,100,500\n"
+      + "2,7,1,3,UA,200,Seattle WA,Washington,Chicago IL,Illinois,0,0,0,0,120,1500,100,200\n"
+      + "3,7,1,3,UA,201,Chicago IL,Illinois,Boston MA,Massachusetts,0,0,0,0,100,900,100,150\n";
+
+  private static SessionPool pool(SessionStore store) throws IOException {
+    MemoryDatabase db = new MemoryDatabase();
+    db.load(new BufferedReader(new StringReader(FLIGHTS)));
+    List<Query> queries = new ArrayList<>();
+    for (int i = 0; i < POOL_SIZE; i++) {
+      queries.add(new Query(new MemoryStorage(db)));
+    }
+    return new SessionPool(store, queries);
+  }
+
+  /**
+   * Opens a session logged in as user{@code i}, with a search listed and one reservation in its
+   * reservation view.
+   */
+  private static String openSession(SessionPool pool, int i) throws InterruptedException {
+    String id = pool.open();
+    assertEquals("Created user user" + i + "\n", pool.execute(id, "create user" + i + " pw 1000"));
+    assertEquals("Logged in as user" + i + "\n", pool.execute(id, "login user" + i + " pw"));
+    assertTrue(pool.execute(id, "search \"Seattle WA\" \"Boston MA\" 0 1 5")
+        .startsWith("Itinerary 0"));
+    assertTrue(pool.execute(id, "book 0").startsWith("Booked flight(s)"));
+    assertTrue(pool.execute(id, "reservations").startsWith("Reservation "));
+    return id;
+  }
+
+  private static List<String> openSessions(SessionPool pool) throws InterruptedException {
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < SESSIONS; i++) {
+      ids.add(openSession(pool, i));
+    }
+    return ids;
+  }
+
+  /**
+   * Marks session {@code id}, if it still exists, as last used at {@code time}.
+   */
+  private static void lastUsed(SessionStore store, String id, long time) {
+    Session session = store.get(id);
+    if (session != null) {
+      session.lastUsed = time;
+    }
+  }
+
+  private static void assertAlive(SessionPool pool, String id, int i) throws InterruptedException {
+    assertEquals("User already logged in\n", pool.execute(id, "login user" + i + " pw"));
+  }
+
+  @Test
+  public void pooledSessionsKeepTheirOwnState() throws Exception {
+    try (SessionPool pool = pool(new SessionStore(NEVER, NEVER))) {
+      List<String> ids = openSessions(pool);
+      assertEquals(SESSIONS, pool.store().size());
+      for (int i = 0; i < SESSIONS; i++) {
+        assertAlive(pool, ids.get(i), i);
+        // booking itinerary 1 uses the session's own last search
+        assertEquals("You cannot book two flights in the same day\n",
+            pool.execute(ids.get(i), "book 1"));
+        assertTrue(pool.execute(ids.get(i), "reservations")
+            .startsWith("Reservation " + (i + 1) + " "));
+      }
+      // a new session is served by the same Query instances but is not logged in
+      assertEquals("Cannot view reservations, not logged in\n",
+          pool.execute(pool.open(), "reservations"));
+    }
+  }
+
+  @Test
+  public void idleSessionsExpire() throws Exception {
+    SessionStore store = new SessionStore(60_000, NEVER);
+    try (SessionPool pool = pool(store)) {
+      List<String> ids = openSessions(pool);
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < SESSIONS / 2; i++) {
+        lastUsed(store, ids.get(i), now - HOUR);
+      }
+      store.sweep();
+      assertEquals(SESSIONS - SESSIONS / 2, store.size());
+      for (int i = 0; i < SESSIONS; i++) {
+        if (i < SESSIONS / 2) {
+          assertEquals(SessionPool.EXPIRED, pool.execute(ids.get(i), "reservations"));
+        } else {
+          assertAlive(pool, ids.get(i), i);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void leastRecentlyUsedSessionsAreDroppedOverTheMemoryCap() throws Exception {
+    long sessionBytes;
+    SessionStore probe = new SessionStore(NEVER, NEVER);
+    try (SessionPool pool = pool(probe)) {
+      sessionBytes = probe.get(openSession(pool, 0)).approxBytes();
+    }
+    int kept = 4;
+    SessionStore store = new SessionStore(NEVER, kept * sessionBytes);
+    try (SessionPool pool = pool(store)) {
+      List<String> ids = openSessions(pool);
+      // sessions used in index order, whatever the periodic sweeps already dropped
+      long base = System.currentTimeMillis() - HOUR;
+      for (int i = 0; i < SESSIONS; i++) {
+        lastUsed(store, ids.get(i), base + i);
+      }
+      store.sweep();
+      assertEquals(kept, store.size());
+      for (int i = 0; i < SESSIONS; i++) {
+        if (i < SESSIONS - kept) {
+          assertEquals(SessionPool.EXPIRED, pool.execute(ids.get(i), "reservations"));
+        } else {
+          assertAlive(pool, ids.get(i), i);
+        }
+      }
+    }
+  }
+}